@@ -23,7 +23,7 @@
 
 static jstring NewString(JNIEnv *env, const char *str)
 {
-    static jchar *temp, *ptr;
+    jchar *temp, *ptr;
     
     temp = (jchar *) malloc((strlen(str) + 1) * sizeof(jchar));
     ptr = temp;
@@ -181,10 +181,8 @@ JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1setTune(
 }
 
 
-JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, int size)
+static jint render(GMEInfo *info, jshort *dest, jint size)
 {
-    GMEInfo *info = (GMEInfo*)song;
-
     if (!info->started) {
         gme_err_t err = gme_start_track(info->emu, 0);
         info->started = true;
@@ -194,12 +192,26 @@ JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1getSoundData
         return -1;
     }
 
+    gme_err_t err = gme_play(info->emu, size, dest);
+    return size;
+}
+
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, int size)
+{
     jshort *ptr = env->GetShortArrayElements(sArray, NULL);
+    jint rc = render((GMEInfo*)song, ptr, size);
+    env->ReleaseShortArrayElements(sArray, ptr, 0);
+    return rc;
+}
 
-    gme_err_t err = gme_play(info->emu, size, ptr);
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1getSoundDataDirect(JNIEnv *env, jobject obj, jlong song, jobject buffer, jint offset, jint size)
+{
+    jbyte *base = (jbyte*) env->GetDirectBufferAddress(buffer);
+    if (base == NULL) {
+        return -1;
+    }
 
-    env->ReleaseShortArrayElements(sArray, ptr, 0);
-    return size;
+    return render((GMEInfo*)song, (jshort*) (base + offset), size);
 }
 
 
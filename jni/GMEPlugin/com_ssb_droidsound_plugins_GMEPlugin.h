@@ -61,6 +61,14 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1unload
 JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1getSoundData
   (JNIEnv *, jobject, jlong, jshortArray, jint);
 
+/*
+ * Class:     com_ssb_droidsound_plugins_GMEPlugin
+ * Method:    N_getSoundDataDirect
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_GMEPlugin_N_1getSoundDataDirect
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
 /*
  * Class:     com_ssb_droidsound_plugins_GMEPlugin
  * Method:    N_seekTo
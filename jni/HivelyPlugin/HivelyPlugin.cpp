@@ -22,7 +22,7 @@ extern "C" {
 
 static jstring NewString(JNIEnv *env, const char *str)
 {
-	static jchar *temp, *ptr;
+	jchar *temp, *ptr;
     
     temp = (jchar *) malloc((strlen(str) + 1) * sizeof(jchar));
 	ptr = temp;
@@ -42,7 +42,7 @@
 
 static jstring NewString(JNIEnv *env, const char *str)
 {
-    static jchar *temp, *ptr;
+    jchar *temp, *ptr;
     
     temp = (jchar *) malloc((strlen(str) + 1) * sizeof(jchar));
     ptr = temp;
@@ -150,19 +150,31 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_ModPlugin_N_1unload(JNIEn
 }
 
 
-JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_ModPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, int size)
+static jint render(ModInfo *info, jshort *dest, jint size)
 {
-    ModInfo *info = (ModInfo*)song;
+    int rc = ModPlug_Read(info->mod, (void*)dest, size*2);
 
-    jbyte *ptr = (jbyte*)env->GetShortArrayElements(sArray, NULL);
+    if (rc == 0) return -1;
 
-    int rc = ModPlug_Read(info->mod, (void*)ptr, size*2);
+    return rc / 2;
+}
 
-    env->ReleaseShortArrayElements(sArray, (jshort*)ptr, 0);
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_ModPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, int size)
+{
+    jshort *ptr = env->GetShortArrayElements(sArray, NULL);
+    jint rc = render((ModInfo*)song, ptr, size);
+    env->ReleaseShortArrayElements(sArray, ptr, 0);
+    return rc;
+}
 
-    if (rc == 0) return -1;
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_ModPlugin_N_1getSoundDataDirect(JNIEnv *env, jobject obj, jlong song, jobject buffer, jint offset, jint size)
+{
+    jbyte *base = (jbyte*) env->GetDirectBufferAddress(buffer);
+    if (base == NULL) {
+        return -1;
+    }
 
-    return rc / 2;
+    return render((ModInfo*)song, (jshort*) (base + offset), size);
 }
 
 
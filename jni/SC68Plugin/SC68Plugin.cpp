@@ -125,17 +125,14 @@ JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1load(JNIEn
     return (long) pd;
 }
 
-JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, jint size)
+static jint render(PlayData *pd, jshort *dest, jint size)
 {
-    PlayData *pd = (PlayData*) song;
     if (pd->finished) {
         return 0;
     }
 
-    jshort *ptr = (jshort*) env->GetShortArrayElements(sArray, NULL);
     jint n = size / 2;
-    int code = sc68_process(pd->sc68, ptr, &n);
-    env->ReleaseShortArrayElements(sArray, ptr, 0);
+    int code = sc68_process(pd->sc68, dest, &n);
 
     if (code == SC68_ERROR) {
         return -1;
@@ -154,6 +151,24 @@ JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1getSoundDat
     return n * 2;
 }
 
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, jint size)
+{
+    jshort *ptr = env->GetShortArrayElements(sArray, NULL);
+    jint rc = render((PlayData*) song, ptr, size);
+    env->ReleaseShortArrayElements(sArray, ptr, 0);
+    return rc;
+}
+
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1getSoundDataDirect(JNIEnv *env, jobject obj, jlong song, jobject buffer, jint offset, jint size)
+{
+    jbyte *base = (jbyte*) env->GetDirectBufferAddress(buffer);
+    if (base == NULL) {
+        return -1;
+    }
+
+    return render((PlayData*) song, (jshort*) (base + offset), size);
+}
+
 JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1loadInfo(JNIEnv *env, jobject obj, jbyteArray data, jint size)
 {
 }
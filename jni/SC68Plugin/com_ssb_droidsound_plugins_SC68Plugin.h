@@ -73,6 +73,14 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1unload
 JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1getSoundData
   (JNIEnv *, jobject, jlong, jshortArray, jint);
 
+/*
+ * Class:     com_ssb_droidsound_plugins_SC68Plugin
+ * Method:    N_getSoundDataDirect
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SC68Plugin_N_1getSoundDataDirect
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
 /*
  * Class:     com_ssb_droidsound_plugins_SC68Plugin
  * Method:    N_seekTo
@@ -6,6 +6,7 @@ LOCAL_MODULE := sexypsf
  
 LOCAL_SRC_FILES := \
     SexyPSFPlugin.cpp \
+    ../common/memfile.c \
     sexypsf/PsxBios.c \
     sexypsf/PsxCounters.c \
     sexypsf/PsxDma.c \
@@ -16,7 +17,7 @@ LOCAL_SRC_FILES := \
     sexypsf/PsxHLE.c \
     sexypsf/spu/spu.c \
 
-LOCAL_C_INCLUDES := $(LOCAL_PATH)/sexypsf
+LOCAL_C_INCLUDES := $(LOCAL_PATH)/sexypsf $(LOCAL_PATH)/../common
 LOCAL_LDLIBS := -llog -lz
 LOCAL_CFLAGS += -DPSS_STYLE=1
 
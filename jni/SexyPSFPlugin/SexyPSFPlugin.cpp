@@ -12,6 +12,7 @@ extern "C"
 }
 
 #include "com_ssb_droidsound_plugins_SexyPSFPlugin.h"
+#include "memfile.h"
 
 #define INFO_TITLE 0
 #define INFO_AUTHOR 1
@@ -56,6 +57,23 @@ void sexyd_update(unsigned char *pSound, long lBytes)
 }
 
 
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1addFile(JNIEnv *env, jclass cl, jstring name, jbyteArray data)
+{
+	const char *cname = env->GetStringUTFChars(name, NULL);
+	jsize size = env->GetArrayLength(data);
+	void *ptr = env->GetPrimitiveArrayCritical(data, NULL);
+	int rc = memfile_add(cname, ptr, size);
+	env->ReleasePrimitiveArrayCritical(data, ptr, JNI_ABORT);
+	env->ReleaseStringUTFChars(name, cname);
+
+	return rc == 0;
+}
+
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1clearFiles(JNIEnv *env, jclass cl)
+{
+	memfile_clear();
+}
+
 JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1loadFile(JNIEnv *env, jobject obj, jstring fname)
 {
 	const char *filename = env->GetStringUTFChars(fname, NULL);
@@ -93,7 +111,7 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1unload(J
 	sexy_shutdown();
 }
 
-JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, jint size)
+static jint render(jshort *dest, jint size)
 {
 	playing = true;
 
@@ -111,7 +129,6 @@ JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1getSound
 	if(outPtr == outBuffer)
 		return 0;
 
-	jshort *dest = env->GetShortArrayElements(sArray, NULL);
 	int bytelen = size*2;
 
 	int filled = outPtr - outBuffer;
@@ -125,9 +142,25 @@ JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1getSound
 		memmove(outBuffer, &outBuffer[bytelen], filled - bytelen);
 	outPtr = &outBuffer[filled - bytelen];
 
+	return bytelen / 2;
+}
+
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, jint size)
+{
+	jshort *dest = env->GetShortArrayElements(sArray, NULL);
+	jint rc = render(dest, size);
 	env->ReleaseShortArrayElements(sArray, dest, 0);
+	return rc;
+}
 
-	return bytelen / 2;
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1getSoundDataDirect(JNIEnv *env, jobject obj, jlong song, jobject buffer, jint offset, jint size)
+{
+	jbyte *base = (jbyte*) env->GetDirectBufferAddress(buffer);
+	if (base == NULL) {
+		return -1;
+	}
+
+	return render((jshort*) (base + offset), size);
 }
 
 
@@ -45,6 +45,22 @@ extern "C" {
 #define com_ssb_droidsound_plugins_SexyPSFPlugin_OPT_FILTER_BIAS 6L
 #undef com_ssb_droidsound_plugins_SexyPSFPlugin_OPT_SID_MODEL
 #define com_ssb_droidsound_plugins_SexyPSFPlugin_OPT_SID_MODEL 7L
+/*
+ * Class:     com_ssb_droidsound_plugins_SexyPSFPlugin
+ * Method:    N_addFile
+ * Signature: (Ljava/lang/String;[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1addFile
+  (JNIEnv *, jclass, jstring, jbyteArray);
+
+/*
+ * Class:     com_ssb_droidsound_plugins_SexyPSFPlugin
+ * Method:    N_clearFiles
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1clearFiles
+  (JNIEnv *, jclass);
+
 /*
  * Class:     com_ssb_droidsound_plugins_SexyPSFPlugin
  * Method:    N_loadFile
@@ -69,6 +85,14 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1unload
 JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1getSoundData
   (JNIEnv *, jobject, jlong, jshortArray, jint);
 
+/*
+ * Class:     com_ssb_droidsound_plugins_SexyPSFPlugin
+ * Method:    N_getSoundDataDirect
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_SexyPSFPlugin_N_1getSoundDataDirect
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
+
 /*
  * Class:     com_ssb_droidsound_plugins_SexyPSFPlugin
  * Method:    N_getStringInfo
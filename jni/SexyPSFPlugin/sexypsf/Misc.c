@@ -24,6 +24,7 @@
 
 #include "PsxCommon.h"
 #include "driver.h"
+#include "memfile.h"
 
 // LOAD STUFF
 
@@ -238,7 +239,7 @@ static PSFINFO *LoadPSF(char *path, int level, int type) // Type==1 for just inf
 	PSFINFO *tmpi;
 
 	//printf("Loading: %s\n",path);
-	if(!(fp = fopen(path, "rb"))) {
+	if(!(fp = memfile_fopen(path, "rb"))) {
 		return (0);
 	}
 
@@ -8,6 +8,7 @@ FE = uade/frontends/common
 
 LOCAL_SRC_FILES := \
 UADEPlugin.cpp \
+../common/memfile.c \
 $(FE)/amifilemagic.c \
 $(FE)/eagleplayer.c \
 $(FE)/effects.c \
@@ -51,7 +52,8 @@ LOCAL_C_INCLUDES := \
 $(LOCAL_PATH)/uade \
 $(LOCAL_PATH)/uade/include \
 $(LOCAL_PATH)/uade/frontends/include \
-$(LOCAL_PATH)/$(FE)
+$(LOCAL_PATH)/$(FE) \
+$(LOCAL_PATH)/../common
 
 LOCAL_LDLIBS := -llog -lm
 
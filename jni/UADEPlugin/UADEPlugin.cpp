@@ -8,6 +8,7 @@
 
 #include <android/log.h>
 #include "com_ssb_droidsound_plugins_UADEPlugin.h"
+#include "memfile.h"
 
 extern "C" {
 #include <uade/eagleplayer.h>
@@ -401,6 +402,23 @@ static jstring NewString(JNIEnv *env, const char *str)
 }
 
 
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1addFile(JNIEnv *env, jclass cl, jstring name, jbyteArray data)
+{
+    const char *cname = env->GetStringUTFChars(name, NULL);
+    jsize size = env->GetArrayLength(data);
+    void *ptr = env->GetPrimitiveArrayCritical(data, NULL);
+    int rc = memfile_add(cname, ptr, size);
+    env->ReleasePrimitiveArrayCritical(data, ptr, JNI_ABORT);
+    env->ReleaseStringUTFChars(name, cname);
+
+    return rc == 0;
+}
+
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1clearFiles(JNIEnv *env, jclass cl)
+{
+    memfile_clear();
+}
+
 JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1loadFile(JNIEnv *env, jobject obj, jstring fname)
 {
     __android_log_print(ANDROID_LOG_VERBOSE, "UADEPlugin", "in load()");
@@ -438,7 +456,7 @@ JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1loadFile(J
 
     strcpy(current_format, "");
 
-    FILE *fp = fopen(filename, "rb");
+    FILE *fp = memfile_fopen(filename, "rb");
     if (fp) {
         fclose(fp);
     } else {
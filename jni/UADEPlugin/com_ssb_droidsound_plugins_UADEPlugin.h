@@ -69,6 +69,22 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1setOption
 JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1load
   (JNIEnv *, jobject, jbyteArray, jint);
 
+/*
+ * Class:     com_ssb_droidsound_plugins_UADEPlugin
+ * Method:    N_addFile
+ * Signature: (Ljava/lang/String;[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1addFile
+  (JNIEnv *, jclass, jstring, jbyteArray);
+
+/*
+ * Class:     com_ssb_droidsound_plugins_UADEPlugin
+ * Method:    N_clearFiles
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_UADEPlugin_N_1clearFiles
+  (JNIEnv *, jclass);
+
 /*
  * Class:     com_ssb_droidsound_plugins_UADEPlugin
  * Method:    N_loadFile
@@ -30,6 +30,7 @@
 #include <uade/ossupport.h>
 #include <uade/unixatomic.h>
 #include "support.h"
+#include "memfile.h"
 
 
 
@@ -123,7 +124,7 @@ static struct eagleplayer *analyze_file_format(int *content,
 					       const char *modulename,
 					       struct uade_state *state)
 {
-	struct stat st;
+	long filesize;
 	char ext[MAX_SUFFIX_LENGTH];
 	FILE *f;
 	struct eagleplayer *contentcandidate = NULL;
@@ -134,10 +135,11 @@ static struct eagleplayer *analyze_file_format(int *content,
 
 	*content = 0;
 
-	if ((f = fopen(modulename, "rb")) == NULL)
+	if ((f = memfile_fopen(modulename, "rb")) == NULL)
 		return NULL;
 
-	if (fstat(fileno(f), &st))
+	/* An in-memory stream has no file descriptor to fstat(). */
+	if (fseek(f, 0, SEEK_END) || (filesize = ftell(f)) < 0 || fseek(f, 0, SEEK_SET))
 		uadeerror("Very weird stat error: %s (%s)\n", modulename, strerror(errno));
 
 	bufsize = sizeof buf;
@@ -147,7 +149,7 @@ static struct eagleplayer *analyze_file_format(int *content,
 		return NULL;
 	memset(&buf[bytesread], 0, bufsize - bytesread);
 
-	uade_filemagic(buf, bytesread, ext, st.st_size, modulename, state->config.verbose);
+	uade_filemagic(buf, bytesread, ext, filesize, modulename, state->config.verbose);
 
 	if (strcmp(ext, "reject") == 0)
 		return NULL;
@@ -18,6 +18,8 @@
 // #include <strlrep.h>
 #include <android/log.h>
 
+#include "memfile.h"
+
 static int uade_amiga_scandir(char *real, char *dirname, char *fake, int ml)
 {
   DIR *dir;
@@ -81,6 +83,52 @@ char *uade_dirname(char *dst, char *src, size_t maxlen)
 }
 
 
+/* Players ask for some companion files by names that differ from the ones
+   they are stored under (smpl.song.mdat is song.smpl). The name is rewritten
+   in place, the result is the start of the name to look for. */
+static char *uade_companion_name(char *ptr)
+{
+    // TFMX HACK
+    if(strncasecmp(ptr, "smpl.", 5) == 0)
+    {
+        char *ext = strcasestr(ptr, ".mdat");
+        if(ext) {
+            strcpy(ext, ".smpl");
+            ptr += 5;
+        } else {
+            ext = strcasestr(ptr, ".tfx");
+            if(ext) {
+                strcpy(ext, ".sam");
+                ptr += 5;
+            }
+        }
+    }
+    else if(strncasecmp(ptr, "ins.", 4) == 0)
+    {
+        char *ext = strcasestr(ptr, ".sng");
+
+        if(!ext)
+            ext = strcasestr(ptr, ".dum");
+
+        if(ext) {
+            strcpy(ext, ".ins");
+            ptr += 4;
+        }
+    }
+    else if(strncasecmp(ptr, "smp.", 4) == 0)
+        {
+            char *ext = strcasestr(ptr, ".rjp");
+            if(!ext)
+                ext = strcasestr(ptr, ".jpn");
+
+            if(ext) {
+                strcpy(ext, ".smp");
+                ptr += 4;
+            }
+        }
+    return ptr;
+}
+
 /* opens file in amiga namespace */
 FILE *uade_open_amiga_file(char *aname, const char *playerdir)
 {
@@ -105,6 +153,18 @@ FILE *uade_open_amiga_file(char *aname, const char *playerdir)
 
     ptr = copy;
      __android_log_print(ANDROID_LOG_VERBOSE, "UADE", "UADE: Opening %s\n", ptr);
+
+    /* The module and its companions are in memory, where the lookup already
+       ignores case, so there is no directory to scan. */
+    if (memfile_is_memfile(ptr)) {
+        char *name = uade_companion_name(strrchr(ptr, '/') + 1);
+        snprintf(real, sizeof(real), "%s/%s", MEMFILE_DIR, name);
+        if (!(file = memfile_fopen(real, "rb"))) {
+            __android_log_print(ANDROID_LOG_VERBOSE, "UADE", "UADE: %s not found in memory\n", real);
+        }
+        return file;
+    }
+
     if ((separator = strchr(ptr, (int) ':')))
     {
         len = (int) (separator - ptr);
@@ -173,44 +233,7 @@ FILE *uade_open_amiga_file(char *aname, const char *playerdir)
     }
     closedir(dir);
 
-    // TFMX HACK
-    if(strncasecmp(ptr, "smpl.", 5) == 0)
-    {
-        char *ext = strcasestr(ptr, ".mdat");
-        if(ext) {
-            strcpy(ext, ".smpl");
-            ptr += 5;
-        } else {
-            ext = strcasestr(ptr, ".tfx");
-            if(ext) {
-                strcpy(ext, ".sam");
-                ptr += 5;
-            }
-        }
-    }
-    else if(strncasecmp(ptr, "ins.", 4) == 0)
-    {
-        char *ext = strcasestr(ptr, ".sng");
-
-        if(!ext)
-            ext = strcasestr(ptr, ".dum");
-
-        if(ext) {
-            strcpy(ext, ".ins");
-            ptr += 4;
-        }
-    }
-    else if(strncasecmp(ptr, "smp.", 4) == 0)
-        {
-            char *ext = strcasestr(ptr, ".rjp");
-            if(!ext)
-                ext = strcasestr(ptr, ".jpn");
-
-            if(ext) {
-                strcpy(ext, ".smp");
-                ptr += 4;
-            }
-        }
+    ptr = uade_companion_name(ptr);
     __android_log_print(ANDROID_LOG_VERBOSE, "UADE", "Final name '%s'", ptr);
 
     if (uade_amiga_scandir(real, dirname, ptr, sizeof(real))) {
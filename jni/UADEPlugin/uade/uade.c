@@ -36,6 +36,7 @@
 
 #include "uadectl.h"
 #include "amigamsg.h"
+#include "memfile.h"
 
 enum print_help {
   OPTION_HELP = 1,
@@ -752,7 +753,7 @@ static int uade_safe_load_name(int vaddr, char *name, const char *expl,
   __android_log_print(ANDROID_LOG_VERBOSE, "UADE", "uadecore: safe_load %s to %08x", name, vaddr);
 
 
-  file = fopen(name, "rb");
+  file = memfile_fopen(name, "rb");
   if (!file) {
     __android_log_print(ANDROID_LOG_VERBOSE, "UADE", "uadecore: Could not load %s %s.\n", expl, name);
     return 0;
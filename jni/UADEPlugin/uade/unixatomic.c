@@ -5,6 +5,8 @@
 #include <uade/unixatomic.h>
 #include <uade/sysincludes.h>
 
+#include "memfile.h"
+
 int atomic_close(int fd)
 {
   while (1) {
@@ -88,7 +90,7 @@ void *atomic_read_file(size_t *fs, const char *filename)
   size_t msize;
   long pos;
 
-  if ((f = fopen(filename, "rb")) == NULL)
+  if ((f = memfile_fopen(filename, "rb")) == NULL)
     goto error;
 
   if (fseek(f, 0, SEEK_END))
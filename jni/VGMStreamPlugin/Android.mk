@@ -6,6 +6,7 @@ LOCAL_LDLIBS := -llog
 
 LOCAL_SRC_FILES := \
     VGMStreamPlugin.cpp \
+    ../common/memfile.c \
     vgmstream/vgmstream.c \
     vgmstream/streamfile.c \
     vgmstream/util.c \
@@ -300,6 +301,7 @@ LOCAL_C_INCLUDES := \
     $(LOCAL_PATH) \
     $(LOCAL_PATH)/coding \
     $(LOCAL_PATH)/layout \
-    $(LOCAL_PATH)/meta
+    $(LOCAL_PATH)/meta \
+    $(LOCAL_PATH)/../common
 
 include $(BUILD_SHARED_LIBRARY)
@@ -4,6 +4,7 @@
 
 #include <android/log.h>
 #include "com_ssb_droidsound_plugins_VGMStreamPlugin.h"
+#include "memfile.h"
 
 extern "C"
 {
@@ -45,6 +46,23 @@ static jstring NewString(JNIEnv *env, const char *str)
 }
 
 
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1addFile(JNIEnv *env, jclass cl, jstring name, jbyteArray data)
+{
+    const char *cname = env->GetStringUTFChars(name, NULL);
+    jsize size = env->GetArrayLength(data);
+    void *ptr = env->GetPrimitiveArrayCritical(data, NULL);
+    int rc = memfile_add(cname, ptr, size);
+    env->ReleasePrimitiveArrayCritical(data, ptr, JNI_ABORT);
+    env->ReleaseStringUTFChars(name, cname);
+
+    return rc == 0;
+}
+
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1clearFiles(JNIEnv *env, jclass cl)
+{
+    memfile_clear();
+}
+
 JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1loadFile(JNIEnv *env, jobject obj, jstring fname)
 {
     __android_log_print(ANDROID_LOG_VERBOSE, "VGMStreamPlugin", "in loadFile()");
@@ -122,11 +140,8 @@ JNIEXPORT void Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1unload(JNIEnv
 }
 
 
-JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, jint size)
+static jint render(VGMSTREAM* vgm, jshort *ptr, jint size)
 {
-    VGMSTREAM* vgm = (VGMSTREAM*)song;
-    jshort *ptr = env->GetShortArrayElements(sArray, NULL);
-
     if (total_samples - (size / vgm->channels) < 0)
     {
         size = total_samples * vgm->channels;
@@ -139,10 +154,27 @@ JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1getSou
     // than what is available.
     total_samples -= (size / vgm->channels);
 
-    env->ReleaseShortArrayElements(sArray, ptr, 0);
     return size;
 }
 
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1getSoundData(JNIEnv *env, jobject obj, jlong song, jshortArray sArray, jint size)
+{
+    jshort *ptr = env->GetShortArrayElements(sArray, NULL);
+    jint rc = render((VGMSTREAM*)song, ptr, size);
+    env->ReleaseShortArrayElements(sArray, ptr, 0);
+    return rc;
+}
+
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1getSoundDataDirect(JNIEnv *env, jobject obj, jlong song, jobject buffer, jint offset, jint size)
+{
+    jbyte *base = (jbyte*) env->GetDirectBufferAddress(buffer);
+    if (base == NULL) {
+        return -1;
+    }
+
+    return render((VGMSTREAM*)song, (jshort*) (base + offset), size);
+}
+
 
 JNIEXPORT jint Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1getFrameRate(JNIEnv *env, jobject obj, jlong song)
 {
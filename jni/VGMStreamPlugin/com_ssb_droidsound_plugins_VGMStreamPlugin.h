@@ -24,6 +24,22 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1setOpt
 JNIEXPORT jlong JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1load
   (JNIEnv *, jobject, jbyteArray, jint);
 
+/*
+ * Class:     com_ssb_droidsound_plugins_VGMStreamPlugin
+ * Method:    N_addFile
+ * Signature: (Ljava/lang/String;[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1addFile
+  (JNIEnv *, jclass, jstring, jbyteArray);
+
+/*
+ * Class:     com_ssb_droidsound_plugins_VGMStreamPlugin
+ * Method:    N_clearFiles
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1clearFiles
+  (JNIEnv *, jclass);
+
 /*
  * Class:     com_ssb_droidsound_plugins_VGMStreamPlugin
  * Method:    N_loadFile
@@ -47,6 +63,14 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1unload
  */
 JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1getSoundData
   (JNIEnv *, jobject, jlong, jshortArray, jint);
+
+/*
+ * Class:     com_ssb_droidsound_plugins_VGMStreamPlugin
+ * Method:    N_getSoundDataDirect
+ * Signature: (JLjava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VGMStreamPlugin_N_1getSoundDataDirect
+  (JNIEnv *, jobject, jlong, jobject, jint, jint);
   
 /*
  * Class:     com_ssb_droidsound_plugins_VGMStreamPlugin
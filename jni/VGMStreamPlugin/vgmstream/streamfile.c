@@ -3,6 +3,7 @@
 #endif
 #include "streamfile.h"
 #include "util.h"
+#include "memfile.h"
 
 typedef struct {
     STREAMFILE sf;
@@ -240,7 +241,7 @@ STREAMFILE * open_stdio_streamfile_buffer(const char * const filename, size_t bu
     FILE * infile;
     STREAMFILE *streamFile;
 
-    infile = fopen(filename, "rb");
+    infile = memfile_fopen(filename, "rb");
     if (!infile)
     {
         return NULL;
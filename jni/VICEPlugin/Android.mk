@@ -15,6 +15,7 @@ LOCAL_ARM_MODE := arm
 LOCAL_LDLIBS := -llog -lz
 LOCAL_SRC_FILES := \
     VICEPlugin.cpp \
+    ../common/memfile.c \
     android/archdep.c \
     android/console.c \
     android/joy.c \
@@ -164,6 +165,7 @@ LOCAL_C_INCLUDES := $(LOCAL_PATH) \
     $(LOCAL_PATH)/vice/userport \
     $(LOCAL_PATH)/vice/vdrive \
     $(LOCAL_PATH)/vice/vicii \
+    $(LOCAL_PATH)/../common \
 #terminator for last backslash
 
 LOCAL_STATIC_LIBRARIES := resid
@@ -3,6 +3,7 @@
 
 #include <android/log.h>
 #include "com_ssb_droidsound_plugins_VICEPlugin.h"
+#include "memfile.h"
 
 extern "C" {
 
@@ -107,6 +108,23 @@ int vsid_mode = 1;
 int video_disabled_mode = 1;
 
 
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1addFile(JNIEnv *env, jclass cl, jstring name, jbyteArray data)
+{
+    const char *cname = env->GetStringUTFChars(name, NULL);
+    jsize size = env->GetArrayLength(data);
+    void *ptr = env->GetPrimitiveArrayCritical(data, NULL);
+    int rc = memfile_add(cname, ptr, size);
+    env->ReleasePrimitiveArrayCritical(data, ptr, JNI_ABORT);
+    env->ReleaseStringUTFChars(name, cname);
+
+    return rc == 0;
+}
+
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1clearFiles(JNIEnv *env, jclass cl)
+{
+    memfile_clear();
+}
+
 JNIEXPORT jstring JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1loadFile(JNIEnv *env, jclass cl, jstring name)
 {
     __android_log_print(ANDROID_LOG_VERBOSE, "VICEPlugin", "in load()");
@@ -146,6 +164,18 @@ JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1getSoundDat
     return size;
 }
 
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1getSoundDataDirect(JNIEnv *env, jclass cl, jobject buffer, jint offset, jint size)
+{
+    jbyte *base = (jbyte*) env->GetDirectBufferAddress(buffer);
+    if (base == NULL) {
+        return -1;
+    }
+
+    psid_play((jshort*) (base + offset), size);
+
+    return size;
+}
+
 
 JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1setTune(JNIEnv *env, jclass cl, jint tune)
 {
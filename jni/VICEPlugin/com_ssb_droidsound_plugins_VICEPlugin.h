@@ -45,6 +45,22 @@ extern "C" {
 #define com_ssb_droidsound_plugins_VICEPlugin_OPT_FILTER_BIAS 6L
 #undef com_ssb_droidsound_plugins_VICEPlugin_OPT_SID_MODEL
 #define com_ssb_droidsound_plugins_VICEPlugin_OPT_SID_MODEL 7L
+/*
+ * Class:     com_ssb_droidsound_plugins_VICEPlugin
+ * Method:    N_addFile
+ * Signature: (Ljava/lang/String;[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1addFile
+  (JNIEnv *, jclass, jstring, jbyteArray);
+
+/*
+ * Class:     com_ssb_droidsound_plugins_VICEPlugin
+ * Method:    N_clearFiles
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1clearFiles
+  (JNIEnv *, jclass);
+
 /*
  * Class:     com_ssb_droidsound_plugins_VICEPlugin
  * Method:    N_loadFile
@@ -69,6 +85,14 @@ JNIEXPORT void JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1unload
 JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1getSoundData
   (JNIEnv *, jclass, jshortArray, jint);
 
+/*
+ * Class:     com_ssb_droidsound_plugins_VICEPlugin
+ * Method:    N_getSoundDataDirect
+ * Signature: (Ljava/nio/ByteBuffer;II)I
+ */
+JNIEXPORT jint JNICALL Java_com_ssb_droidsound_plugins_VICEPlugin_N_1getSoundDataDirect
+  (JNIEnv *, jclass, jobject, jint, jint);
+
 /*
  * Class:     com_ssb_droidsound_plugins_VICEPlugin
  * Method:    N_setTune
@@ -36,6 +36,7 @@
 #include "lib.h"
 #include "log.h"
 #include "machine.h"
+#include "memfile.h"
 #include "psid.h"
 #include "resources.h"
 #include "translate.h"
@@ -173,7 +174,13 @@ int psid_load_file(const char* filename)
         vlog = log_open("Vsid");
     }
 
-    if (!(f = zfile_fopen(filename, MODE_READ))) {
+    /* zfile_fclose() closes other streams too. */
+    if (memfile_is_memfile(filename)) {
+        f = memfile_fopen(filename, MODE_READ);
+    } else {
+        f = zfile_fopen(filename, MODE_READ);
+    }
+    if (!f) {
         return -1;
     }
 
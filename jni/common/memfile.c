@@ -0,0 +1,217 @@
+/*
+ * In-memory files, see memfile.h.
+ *
+ * The streams are made with funopen() from bionic and the BSDs, or
+ * fopencookie() from glibc. Android has fmemopen() only from API 23.
+ */
+
+#ifndef _GNU_SOURCE
+#define _GNU_SOURCE
+#endif
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <strings.h>
+#include <pthread.h>
+#include <sys/types.h>
+
+#include "memfile.h"
+
+typedef struct memfile_entry {
+    struct memfile_entry *next;
+    char *name;
+    unsigned char *data;
+    size_t size;
+} memfile_entry;
+
+typedef struct {
+    const unsigned char *data;
+    size_t size;
+    size_t pos;
+} memfile_stream;
+
+static memfile_entry *entries;
+static pthread_mutex_t entries_lock = PTHREAD_MUTEX_INITIALIZER;
+
+int memfile_add(const char *name, const void *data, size_t size)
+{
+    memfile_entry *e = (memfile_entry *) calloc(1, sizeof(memfile_entry));
+    if (e == NULL)
+        return -1;
+
+    e->name = strdup(name);
+    /* malloc(0) may return NULL */
+    e->data = (unsigned char *) malloc(size > 0 ? size : 1);
+    if (e->name == NULL || e->data == NULL) {
+        free(e->name);
+        free(e->data);
+        free(e);
+        return -1;
+    }
+    memcpy(e->data, data, size);
+    e->size = size;
+
+    pthread_mutex_lock(&entries_lock);
+    e->next = entries;
+    entries = e;
+    pthread_mutex_unlock(&entries_lock);
+    return 0;
+}
+
+void memfile_clear(void)
+{
+    memfile_entry *e;
+
+    pthread_mutex_lock(&entries_lock);
+    e = entries;
+    entries = NULL;
+    pthread_mutex_unlock(&entries_lock);
+
+    while (e != NULL) {
+        memfile_entry *next = e->next;
+        free(e->name);
+        free(e->data);
+        free(e);
+        e = next;
+    }
+}
+
+int memfile_is_memfile(const char *path)
+{
+    size_t len = strlen(MEMFILE_DIR);
+    return strncmp(path, MEMFILE_DIR, len) == 0 && path[len] == '/';
+}
+
+static memfile_entry *find(const char *name)
+{
+    memfile_entry *e;
+
+    for (e = entries; e != NULL; e = e->next) {
+        if (strcmp(e->name, name) == 0)
+            return e;
+    }
+    for (e = entries; e != NULL; e = e->next) {
+        if (strcasecmp(e->name, name) == 0)
+            return e;
+    }
+    return NULL;
+}
+
+static int stream_read(void *cookie, char *buf, size_t size)
+{
+    memfile_stream *s = (memfile_stream *) cookie;
+    size_t n = s->pos < s->size ? s->size - s->pos : 0;
+
+    if (n > size)
+        n = size;
+    memcpy(buf, s->data + s->pos, n);
+    s->pos += n;
+    return (int) n;
+}
+
+static int stream_seek(void *cookie, off_t *offset, int whence)
+{
+    memfile_stream *s = (memfile_stream *) cookie;
+    off_t pos;
+
+    switch (whence) {
+    case SEEK_SET:
+        pos = *offset;
+        break;
+    case SEEK_CUR:
+        pos = (off_t) s->pos + *offset;
+        break;
+    case SEEK_END:
+        pos = (off_t) s->size + *offset;
+        break;
+    default:
+        return -1;
+    }
+    /* Seeking past the end is allowed, reads there just return nothing. */
+    if (pos < 0)
+        return -1;
+    s->pos = (size_t) pos;
+    *offset = pos;
+    return 0;
+}
+
+static int stream_close(void *cookie)
+{
+    free(cookie);
+    return 0;
+}
+
+#ifdef __GLIBC__
+
+static ssize_t cookie_read(void *cookie, char *buf, size_t size)
+{
+    return stream_read(cookie, buf, size);
+}
+
+static int cookie_seek(void *cookie, off64_t *offset, int whence)
+{
+    off_t pos = (off_t) *offset;
+    int rc = stream_seek(cookie, &pos, whence);
+    *offset = pos;
+    return rc;
+}
+
+static FILE *open_stream(memfile_stream *s)
+{
+    cookie_io_functions_t functions = { cookie_read, NULL, cookie_seek, stream_close };
+    return fopencookie(s, "rb", functions);
+}
+
+#else
+
+static int funopen_read(void *cookie, char *buf, int size)
+{
+    return size < 0 ? -1 : stream_read(cookie, buf, (size_t) size);
+}
+
+static fpos_t funopen_seek(void *cookie, fpos_t offset, int whence)
+{
+    off_t pos = (off_t) offset;
+    return stream_seek(cookie, &pos, whence) == 0 ? (fpos_t) pos : (fpos_t) -1;
+}
+
+static FILE *open_stream(memfile_stream *s)
+{
+    return funopen(s, funopen_read, NULL, funopen_seek, stream_close);
+}
+
+#endif
+
+FILE *memfile_open(const void *data, size_t size)
+{
+    FILE *f;
+    memfile_stream *s = (memfile_stream *) calloc(1, sizeof(memfile_stream));
+
+    if (s == NULL)
+        return NULL;
+    s->data = (const unsigned char *) data;
+    s->size = size;
+
+    if ((f = open_stream(s)) == NULL)
+        free(s);
+    return f;
+}
+
+FILE *memfile_fopen(const char *path, const char *mode)
+{
+    memfile_entry *e;
+
+    if (!memfile_is_memfile(path))
+        return fopen(path, mode);
+
+    /* Read only; the entries are shared by every stream opened on them. */
+    if (strpbrk(mode, "wa+") != NULL)
+        return NULL;
+
+    pthread_mutex_lock(&entries_lock);
+    e = find(path + strlen(MEMFILE_DIR) + 1);
+    pthread_mutex_unlock(&entries_lock);
+
+    return e != NULL ? memfile_open(e->data, e->size) : NULL;
+}
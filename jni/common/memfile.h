@@ -0,0 +1,44 @@
+/*
+ * In-memory files for the plugins that read their modules with stdio.
+ *
+ * The module and its companion files (PSF libraries, TFMX samples...) are
+ * registered under MEMFILE_DIR, and memfile_fopen() opens them from memory
+ * as ordinary FILE streams, so the players can keep reading, seeking and
+ * looking up files by name without the data ever going through the file system.
+ */
+
+#ifndef MEMFILE_H
+#define MEMFILE_H
+
+#include <stdio.h>
+#include <stddef.h>
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/* Directory of the registered files. It does not exist on disk. */
+#define MEMFILE_DIR "/memfile"
+
+/* Register a file as MEMFILE_DIR/name. The data is copied.
+ * Returns 0 on success, -1 if out of memory. */
+int memfile_add(const char *name, const void *data, size_t size);
+
+/* Forget all registered files. No stream may be open on them. */
+void memfile_clear(void);
+
+/* Nonzero if the path is inside MEMFILE_DIR. */
+int memfile_is_memfile(const char *path);
+
+/* Open a registered file for reading, by exact name or else ignoring case
+ * as Amiga and Windows names do. Paths outside MEMFILE_DIR go to fopen(). */
+FILE *memfile_fopen(const char *path, const char *mode);
+
+/* Open a read-only stream over a buffer, which must outlive the stream. */
+FILE *memfile_open(const void *data, size_t size);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -11,7 +11,6 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.database.Cursor;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -27,9 +26,9 @@ import android.widget.TextView;
 
 import com.ssb.droidsound.R;
 import com.ssb.droidsound.app.Application;
-import com.ssb.droidsound.async.AsyncQueryResult;
 import com.ssb.droidsound.async.Player;
 import com.ssb.droidsound.async.Scanner;
+import com.ssb.droidsound.async.SuggestionSearch;
 import com.ssb.droidsound.bo.FilesEntry;
 import com.ssb.droidsound.bo.Playlist;
 import com.ssb.droidsound.database.SongDatabase;
@@ -48,6 +47,8 @@ public class CollectionFragment extends Fragment {
 
 	protected FrameLayout progressContainerView;
 
+	protected SuggestionSearch suggestionSearch;
+
 	protected void navigateWithBackStack(String query) {
 		Fragment f = new FastListFragment();
 		Bundle b = new Bundle();
@@ -175,8 +176,12 @@ public class CollectionFragment extends Fragment {
 		@Override
 		public void onReceive(Context context, Intent intent) {
 			int progress = intent.getIntExtra("progress", 0);
-			progressPercentageView.setText(String.format("%d%%", progress));
+			int filesPerSecond = intent.getIntExtra("filesPerSecond", 0);
+			progressPercentageView.setText(String.format("%d%% (%d files/s)", progress, filesPerSecond));
 			progressContainerView.setVisibility(intent.getBooleanExtra("scanning", false) ? View.VISIBLE : View.GONE);
+			if (progress == 100) {
+				suggestionSearch.clearCache();
+			}
 		}
 	};
 
@@ -232,33 +237,37 @@ public class CollectionFragment extends Fragment {
 
 			@Override
 			public boolean onQueryTextChange(final String newText) {
-				/* Remove adapter to hide obsolete result sets.
-				 * Would be lovely to be able to interrupt any previous
-				 * query, but that does not strike as possible to me. */
-				searchView.setSuggestionsAdapter(null);
-
 				if (newText.length() < 3) {
+					/* Remove adapter to hide obsolete result sets. */
+					suggestionSearch.cancel();
+					searchView.setSuggestionsAdapter(null);
 					return false;
 				}
 
-				/* We should probably ratelimit the asynctask spam we can cause.
-				 * Ideally we'd maintain an internal queue here. I'll just spam them for now. */
-				Log.i(TAG, "Firing a new suggestions scan for: '%s'", newText);
-				Cursor c = Application.getSongDatabase().search(newText, SongDatabase.Sort.TITLE);
-				CursorAdapter ca = new SimpleCursorAdapter(
-						getActivity(),
-						android.R.layout.simple_list_item_2,
-						null,
-						new String[] { "title", "composer" },
-						new int[] { android.R.id.text1, android.R.id.text2 },
-						0
-				);
-				searchView.setSuggestionsAdapter(ca);
-				new AsyncQueryResult(c, ca).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+				suggestionSearch.setQuery(newText);
 				return true;
 			}
 		});
 
+		suggestionSearch = new SuggestionSearch(Application.getSongDatabase(), new SuggestionSearch.Listener() {
+			@Override
+			public void onResults(String query, Cursor results) {
+				CursorAdapter ca = searchView.getSuggestionsAdapter();
+				if (ca == null) {
+					ca = new SimpleCursorAdapter(
+							getActivity(),
+							android.R.layout.simple_list_item_2,
+							null,
+							new String[] { "title", "composer" },
+							new int[] { android.R.id.text1, android.R.id.text2 },
+							0
+					);
+					searchView.setSuggestionsAdapter(ca);
+				}
+				ca.changeCursor(results);
+			}
+		});
+
 		/* Restore list fragment */
 		Fragment topFragment = getFragmentManager().findFragmentById(R.id.collection_view);
 		if (topFragment == null) {
@@ -281,5 +290,6 @@ public class CollectionFragment extends Fragment {
 	public void onDestroyView() {
 		super.onDestroyView();
 		getActivity().unregisterReceiver(searchReceiver);
+		suggestionSearch.close();
 	}
 }
\ No newline at end of file
@@ -89,6 +89,14 @@ public class SettingsActivity extends PreferenceActivity {
 					return true;
 				}
 			});
+
+			findPreference("watch_collection").setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+				@Override
+				public boolean onPreferenceChange(Preference preference, Object newValue) {
+					Application.setCollectionWatching((Boolean) newValue);
+					return true;
+				}
+			});
 		}
 	}
 
@@ -24,6 +24,8 @@ import android.preference.PreferenceManager;
 import android.widget.Toast;
 
 import com.ssb.droidsound.R;
+import com.ssb.droidsound.async.AudioOutput;
+import com.ssb.droidsound.async.CollectionWatcher;
 import com.ssb.droidsound.async.Player;
 import com.ssb.droidsound.async.Player.State;
 import com.ssb.droidsound.bo.FilesEntry;
@@ -34,6 +36,7 @@ import com.ssb.droidsound.plugins.DroidSoundPlugin;
 import com.ssb.droidsound.service.ProtectionMoneyService;
 import com.ssb.droidsound.utils.FrequencyAnalysis;
 import com.ssb.droidsound.utils.Log;
+import com.ssb.droidsound.utils.RenderCache;
 import com.ssb.droidsound.utils.StreamUtil;
 
 /**
@@ -49,7 +52,11 @@ public class Application extends android.app.Application {
 	private static int protectionMoneyPaid;
 
 	private static SongDatabase songDatabase;
+	private static RenderCache renderCache;
+	private static CollectionWatcher collectionWatcher;
 	private static Player player;
+	/** Audio output kept across songs, released when playback is stopped. */
+	private static final AudioOutput audioOutput = new AudioOutput();
 
 	public static File getPluginDataDirectory(Class<? extends DroidSoundPlugin> pluginClass) {
 		return app.getDir(pluginClass.getSimpleName(), Context.MODE_PRIVATE);
@@ -63,13 +70,6 @@ public class Application extends android.app.Application {
 		return new File(Environment.getExternalStorageDirectory(), "MODS");
 	}
 
-	public static File getTmpDirectory() {
-		/* UADE can't cope with internal /data/data placed cache directory.
-		 * This is because it insists on scanning the files.
-		 */
-		return app.getExternalCacheDir();
-	}
-
 	public static SharedPreferences getAppPreferences() {
 		return PreferenceManager.getDefaultSharedPreferences(app);
 	}
@@ -82,6 +82,27 @@ public class Application extends android.app.Application {
 		return songDatabase;
 	}
 
+	public static RenderCache getRenderCache() {
+		return renderCache;
+	}
+
+	public static AudioOutput getAudioOutput() {
+		return audioOutput;
+	}
+
+	/**
+	 * Follow the "watch_collection" preference.
+	 *
+	 * @param watch true to index changes to the collection as they happen
+	 */
+	public static void setCollectionWatching(boolean watch) {
+		if (watch) {
+			collectionWatcher.start();
+		} else {
+			collectionWatcher.stop();
+		}
+	}
+
 	public static Uri getCurrentlyPlayingSongUri() {
 		if (player == null) {
 			return null;
@@ -95,8 +116,13 @@ public class Application extends android.app.Application {
 		super.onCreate();
 		app = this;
 		songDatabase = new SongDatabase(this);
+		renderCache = new RenderCache(new File(getCacheDir(), "render"));
 
 		setupModsDir();
+		collectionWatcher = new CollectionWatcher(getModsDirectory(), songDatabase);
+		if (getAppPreferences().getBoolean("watch_collection", true)) {
+			collectionWatcher.start();
+		}
 
 		/* Thanks to awesome android design, we can only set one screen before
 		 * _has_set_default_values.xml springs into existence. Fuck this android crap. */
@@ -169,23 +195,30 @@ public class Application extends android.app.Application {
 
 	/**
 	 * This method starts a new playback thread capable of handling one file.
-	 * The default audio state is "PAUSE", so no playback happens until you
-	 * tell it to start playing.
+	 * The plugin must already have the song loaded; the thread takes it over
+	 * and unloads it when playback ends.
 	 *
 	 * @param p1
 	 * @param song
-	 * @param n1
 	 * @param d1
-	 * @param n2
-	 * @param d2
+	 * @param requestNanos
 	 */
-	private static void startPlayerThread(DroidSoundPlugin p1, final FilesEntry song, String n1, byte[] d1, String n2, byte[] d2) {
+	private static void startPlayerThread(DroidSoundPlugin p1, FilesEntry song, byte[] d1, long requestNanos) {
 		Log.i(TAG, "Requesting player thread to start");
 		if (player != null) {
 			throw new RuntimeException("Playerthread was still running. Someone must call stopPlayerThread() first.");
 		}
 		payProtectionMoney(1);
+		showOngoingNotification(song);
 
+		player = new Player(songDatabase, p1, song, d1, requestNanos);
+		if (playQueue != null && song.equals(playQueue.getCurrent())) {
+			player.setNextSong(playQueue.peekNext());
+		}
+		player.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+	private static void showOngoingNotification(final FilesEntry song) {
 		ServiceConnection sc = new ServiceConnection() {
 			@Override
 			public void onServiceConnected(ComponentName arg0, IBinder b) {
@@ -197,9 +230,24 @@ public class Application extends android.app.Application {
 			}
 		};
 		app.bindService(new Intent(app, ProtectionMoneyService.class), sc, Context.BIND_AUTO_CREATE);
+	}
 
-		player = new Player(songDatabase, p1, song, n1, d1, n2, d2);
-		player.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	/**
+	 * Called by the player thread when it has continued into the next song of the
+	 * play queue without stopping, so that the queue position follows it.
+	 *
+	 * @param p the player which advanced
+	 */
+	public static void onPlayerAdvanced(Player p) {
+		if (p != player) {
+			return;
+		}
+
+		FilesEntry song = p.getPlayingSong();
+		showOngoingNotification(song);
+		if (playQueue != null && playQueue.setCurrent(song) != -1) {
+			p.setNextSong(playQueue.peekNext());
+		}
 	}
 
 	/**
@@ -236,6 +284,7 @@ public class Application extends android.app.Application {
 	 * @throws InterruptedException
 	 */
 	public static boolean playMod(FilesEntry song) throws IOException, InterruptedException {
+		long requestNanos = System.nanoTime();
 		payProtectionMoney(1);
 
 		/* Plugins will be used to try load the file now, so stop player thread if it is running. */
@@ -249,21 +298,14 @@ public class Application extends android.app.Application {
 		String basename2 = files.size() == 2 ? files.get(1).getFile().getName() : null;
 		byte[] data2 = files.size() == 2 ? files.get(1).getData() : null;
 
-		/* Scan plugin list looking for the one that can handle the file and agrees to load it. */
-		DroidSoundPlugin currentPlugin = null;
-		for (DroidSoundPlugin plugin : DroidSoundPlugin.getPluginList()) {
-			if (plugin.canHandle(basename1) && plugin.load(basename1, data1, basename2, data2)) {
-				currentPlugin = plugin;
-				break;
-			}
-		}
+		/* The plugin that agrees to load the file stays loaded and is handed to the player thread. */
+		DroidSoundPlugin currentPlugin = DroidSoundPlugin.loadWithFirstAccepting(basename1, data1, basename2, data2);
 		if (currentPlugin == null) {
+			payProtectionMoney(-1);
 			return false;
 		}
 
-		/* Loaded. It will be loaded once more by startPlayerThread, so we unload now... */
-		currentPlugin.unload();
-		startPlayerThread(currentPlugin, song, basename1, data1, basename2, data2);
+		startPlayerThread(currentPlugin, song, data1, requestNanos);
 
 		payProtectionMoney(-1);
 		return true;
@@ -283,6 +325,7 @@ public class Application extends android.app.Application {
 		if (player != null) {
 			try {
 				stopPlayerThread();
+				audioOutput.release();
 				return true;
 			}
 			catch (InterruptedException e) {
@@ -0,0 +1,145 @@
+package com.ssb.droidsound.async;
+
+import android.content.Intent;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.audiofx.AudioEffect;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.ssb.droidsound.app.Application;
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * The audio output shared by the players, one after another. The AudioTrack
+ * outlives each player, so that moving to another song only flushes it instead
+ * of tearing it down and setting up a new one, and audio effects attached to its
+ * session stay in place.
+ * <p>
+ * A new track is only made when the rate or the sample format changes, and it
+ * keeps the same audio session. The session is announced to effect control
+ * panels once, and closed when playback is stopped for good with {@link #release()},
+ * or when no player has taken the track for {@link #IDLE_RELEASE_MS}.
+ */
+public class AudioOutput {
+	private static final String TAG = AudioOutput.class.getSimpleName();
+	/** How long a track handed back with {@link #idle()} is kept for the next song. */
+	private static final long IDLE_RELEASE_MS = 10000;
+
+	private final Handler handler = new Handler(Looper.getMainLooper());
+	private final Runnable releaseIdle = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (AudioOutput.this) {
+				if (! inUse) {
+					Log.i(TAG, "Releasing audio track idle for %d ms.", IDLE_RELEASE_MS);
+					release();
+				}
+			}
+		}
+	};
+
+	private AudioTrack audioTrack;
+	private int frameRate;
+	private boolean floatOutput;
+	/** Audio session of the track, 0 while there is no open session. */
+	private int sessionId;
+	private boolean reused;
+	/** Between {@link #acquire(int, boolean)} and {@link #idle()}. */
+	private boolean inUse;
+
+	/**
+	 * Get the track for the given format, reusing the current one if it matches.
+	 * The track is owned by the caller until it hands it back with
+	 * {@link AudioTrack#pause()} and {@link AudioTrack#flush()}, or {@link AudioTrack#stop()},
+	 * followed by {@link #idle()}.
+	 *
+	 * @param frameRate rate of the audio
+	 * @param floatOutput true for float samples, false for 16 bits
+	 * @return the track, or null if the device does not support the format
+	 */
+	public synchronized AudioTrack acquire(int frameRate, boolean floatOutput) {
+		handler.removeCallbacks(releaseIdle);
+		inUse = true;
+		reused = audioTrack != null && this.frameRate == frameRate && this.floatOutput == floatOutput;
+		if (reused) {
+			return audioTrack;
+		}
+
+		AudioTrack newTrack = createAudioTrack(frameRate, floatOutput, sessionId);
+		if (newTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+			newTrack.release();
+			return null;
+		}
+		Log.i(TAG, "Created audio track at %d Hz with %s samples.", frameRate, floatOutput ? "float" : "16-bit");
+
+		if (audioTrack != null) {
+			audioTrack.release();
+		}
+		audioTrack = newTrack;
+		this.frameRate = frameRate;
+		this.floatOutput = floatOutput;
+
+		if (sessionId == 0) {
+			sessionId = audioTrack.getAudioSessionId();
+			Intent sessionOpen = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
+			sessionOpen.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, sessionId);
+			sessionOpen.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, Application.packageName());
+			Application.broadcast(sessionOpen);
+		}
+		return audioTrack;
+	}
+
+	/** @return true if the last {@link #acquire(int, boolean)} returned the track that was already there */
+	public synchronized boolean isReused() {
+		return reused;
+	}
+
+	/**
+	 * Hand the track back. It is kept for the next song, but released if none
+	 * comes within {@link #IDLE_RELEASE_MS}, so that playback that has come to
+	 * an end does not hold on to an AudioTrack and its effect session.
+	 */
+	public synchronized void idle() {
+		inUse = false;
+		handler.removeCallbacks(releaseIdle);
+		handler.postDelayed(releaseIdle, IDLE_RELEASE_MS);
+	}
+
+	/** Release the track and close its audio session. The next song sets up a new one. */
+	public synchronized void release() {
+		handler.removeCallbacks(releaseIdle);
+		if (audioTrack == null) {
+			return;
+		}
+
+		Intent sessionClose = new Intent(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION);
+		sessionClose.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, sessionId);
+		sessionClose.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, Application.packageName());
+		Application.broadcast(sessionClose);
+
+		audioTrack.release();
+		audioTrack = null;
+		sessionId = 0;
+	}
+
+	/**
+	 * @param frameRate rate of the audio
+	 * @param floatOutput true for float samples, false for 16 bits
+	 * @param sessionId audio session to join, 0 for a new one
+	 * @return a stereo streaming track, which may fail to initialize on devices that lack the format
+	 */
+	private static AudioTrack createAudioTrack(int frameRate, boolean floatOutput, int sessionId) {
+		int encoding = floatOutput ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+		/* A buffer of one second, see Player.bufferFrames(). */
+		return new AudioTrack(
+				AudioManager.STREAM_MUSIC,
+				frameRate,
+				AudioFormat.CHANNEL_OUT_STEREO,
+				encoding,
+				frameRate * 2 * (floatOutput ? 4 : 2),
+				AudioTrack.MODE_STREAM,
+				sessionId);
+	}
+}
@@ -0,0 +1,269 @@
+package com.ssb.droidsound.async;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.ssb.droidsound.database.SongDatabase;
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * Keeps the collection up to date as files are added, removed and changed under
+ * the collection root, so that it does not take a manual rescan.
+ * <p>
+ * FileObserver only watches a single directory, so there is one per directory of
+ * the tree. Events are collected per directory, and once the tree has been quiet
+ * for a moment, the changed directories are handed to the {@link Scanner}, which
+ * rescans just those.
+ * <p>
+ * Each observer takes an inotify watch, and the kernel allows a user only so many,
+ * after which watching fails without telling. The tree is therefore watched breadth
+ * first up to half of that limit. If there is more to it, the subtrees left
+ * unwatched are kept up to date by an incremental rescan of just those every
+ * {@link #RESCAN_MS}, which skips the directories that have not changed.
+ */
+public class CollectionWatcher {
+	private static final String TAG = CollectionWatcher.class.getSimpleName();
+
+	/** Events that change the entries of a directory or the contents of a file. */
+	private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM
+			| FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+	/** Time without events before the changes are indexed. */
+	private static final long DEBOUNCE_MS = 2000;
+	/** Interval of rescans of the subtrees not watched. */
+	private static final long RESCAN_MS = 15 * 60 * 1000;
+	/** Limit of inotify watches assumed if the kernel doesn't tell. */
+	private static final int DEFAULT_MAX_USER_WATCHES = 8192;
+
+	private final File root;
+	private final SongDatabase db;
+	private final Handler handler = new Handler(Looper.getMainLooper());
+
+	/** Observers by directory path. They stop watching when garbage collected, so keep them here. */
+	private final Map<String, Observer> observers = new HashMap<String, Observer>();
+	/** Most observers to have at once. */
+	private final int maxWatches = readMaxUserWatches() / 2;
+	private volatile boolean running;
+	/** Tops of the subtrees left unwatched for lack of watches. */
+	private final Set<File> unwatched = new HashSet<File>();
+
+	/** Directories with changes not yet indexed. */
+	private final Set<File> changed = new HashSet<File>();
+	/** Time of the first of those changes. */
+	private long firstChangeTime;
+
+	private final Runnable index = new Runnable() {
+		@Override
+		public void run() {
+			/* Only one scan runs at a time; try again when the current one is done. */
+			if (Scanner.isScanning()) {
+				handler.postDelayed(this, DEBOUNCE_MS);
+				return;
+			}
+
+			Set<File> directories;
+			long since;
+			synchronized (changed) {
+				directories = new HashSet<File>(changed);
+				since = firstChangeTime;
+				changed.clear();
+			}
+			if (! directories.isEmpty()) {
+				Log.i(TAG, "Indexing %d changed directories", directories.size());
+				db.scan(directories, since);
+			}
+		}
+	};
+
+	private final Runnable rescan = new Runnable() {
+		@Override
+		public void run() {
+			Set<File> directories;
+			synchronized (observers) {
+				if (unwatched.isEmpty()) {
+					return;
+				}
+				directories = new HashSet<File>(unwatched);
+			}
+			if (! Scanner.isScanning()) {
+				Log.i(TAG, "Rescanning %d subtrees not watched", directories.size());
+				db.scanSubtrees(directories);
+			}
+			handler.postDelayed(this, RESCAN_MS);
+		}
+	};
+
+	private class Observer extends FileObserver {
+		private final File dir;
+
+		protected Observer(File dir) {
+			super(dir.getPath(), EVENTS);
+			this.dir = dir;
+		}
+
+		@Override
+		public void onEvent(int event, String path) {
+			if (! running) {
+				return;
+			}
+			event &= FileObserver.ALL_EVENTS;
+			if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+				/* The parent sees this too, as a deletion of one of its entries. */
+				unwatch(dir);
+				return;
+			}
+			if (path == null || path.startsWith(".")) {
+				return;
+			}
+
+			if ((event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0) {
+				File f = new File(dir, path);
+				if (f.isDirectory()) {
+					watch(f);
+				}
+			}
+			changed(dir);
+		}
+	}
+
+	public CollectionWatcher(File root, SongDatabase db) {
+		this.root = root;
+		this.db = db;
+	}
+
+	/** Start watching the whole tree. The observers are set up on a background thread. */
+	public void start() {
+		running = true;
+		new Thread(TAG) {
+			@Override
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				watch(root);
+				Log.i(TAG, "Watching %d directories, set up in %d ms", observers.size(), System.currentTimeMillis() - startTime);
+			}
+		}.start();
+	}
+
+	/** Stop watching, dropping changes not yet indexed. */
+	public void stop() {
+		running = false;
+		handler.removeCallbacks(index);
+		synchronized (observers) {
+			for (Observer o : observers.values()) {
+				o.stopWatching();
+			}
+			observers.clear();
+			unwatched.clear();
+			handler.removeCallbacks(rescan);
+		}
+		synchronized (changed) {
+			changed.clear();
+		}
+	}
+
+	/** Watch a directory and everything below it, as far as the watches go. */
+	private void watch(File top) {
+		Deque<File> queue = new ArrayDeque<File>();
+		queue.add(top);
+		while (! queue.isEmpty() && running) {
+			File dir = queue.remove();
+			synchronized (observers) {
+				Observer old = observers.remove(dir.getPath());
+				if (old != null) {
+					old.stopWatching();
+				}
+				if (observers.size() >= maxWatches) {
+					/* Breadth first, what is left are whole subtrees. */
+					if (unwatched.isEmpty()) {
+						Log.w(TAG, "Out of watches at %s, rescanning the rest every %d minutes instead", dir.getPath(), RESCAN_MS / 60000);
+						handler.removeCallbacks(rescan);
+						handler.postDelayed(rescan, RESCAN_MS);
+					}
+					unwatched.add(dir);
+					unwatched.addAll(queue);
+					return;
+				}
+				Observer o = new Observer(dir);
+				observers.put(dir.getPath(), o);
+				o.startWatching();
+			}
+
+			File[] list = dir.listFiles();
+			if (list == null) {
+				continue;
+			}
+			for (File f : list) {
+				if (f.isDirectory() && ! f.getName().startsWith(".")) {
+					queue.add(f);
+				}
+			}
+		}
+	}
+
+	/** Stop watching a directory that is gone, and everything that was below it. */
+	private void unwatch(File dir) {
+		String prefix = dir.getPath() + "/";
+		synchronized (observers) {
+			Iterator<Map.Entry<String, Observer>> i = observers.entrySet().iterator();
+			while (i.hasNext()) {
+				Map.Entry<String, Observer> e = i.next();
+				if (e.getKey().equals(dir.getPath()) || e.getKey().startsWith(prefix)) {
+					e.getValue().stopWatching();
+					i.remove();
+				}
+			}
+			Iterator<File> u = unwatched.iterator();
+			while (u.hasNext()) {
+				String path = u.next().getPath();
+				if (path.equals(dir.getPath()) || path.startsWith(prefix)) {
+					u.remove();
+				}
+			}
+		}
+	}
+
+	/** @return the number of inotify watches the kernel allows a user */
+	private static int readMaxUserWatches() {
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader("/proc/sys/fs/inotify/max_user_watches"));
+			try {
+				String line = reader.readLine();
+				if (line != null) {
+					return Integer.parseInt(line.trim());
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException ioe) {
+		}
+		catch (NumberFormatException nfe) {
+		}
+		return DEFAULT_MAX_USER_WATCHES;
+	}
+
+	private void changed(File dir) {
+		synchronized (changed) {
+			if (changed.isEmpty()) {
+				firstChangeTime = System.currentTimeMillis();
+			}
+			changed.add(dir);
+		}
+		handler.removeCallbacks(index);
+		handler.postDelayed(index, DEBOUNCE_MS);
+	}
+}
@@ -1,16 +1,24 @@
 package com.ssb.droidsound.async;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
-import android.media.audiofx.AudioEffect;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 
 import com.ssb.droidsound.app.Application;
 import com.ssb.droidsound.bo.FilesEntry;
@@ -18,6 +26,10 @@ import com.ssb.droidsound.database.SongDatabase;
 import com.ssb.droidsound.plugins.DroidSoundPlugin;
 import com.ssb.droidsound.utils.FrequencyAnalysis;
 import com.ssb.droidsound.utils.Log;
+import com.ssb.droidsound.utils.RenderCache;
+import com.ssb.droidsound.utils.Resampler;
+import com.ssb.droidsound.utils.SampleConverter;
+import com.ssb.droidsound.utils.SampleRingBuffer;
 
 public class Player extends AsyncTask<Void, Intent, Void> {
 	/**
@@ -34,15 +46,24 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 	public static final String ACTION_ADVANCING = "com.ssb.droidsound.ADVANCING";
 	public static final String ACTION_UNLOADING_SONG = "com.ssb.droidsound.UNLOADING_SONG";
 
+	/** Internal: player thread moved on to the next queued song by itself. Not broadcast. */
+	private static final String ACTION_QUEUE_ADVANCED = "com.ssb.droidsound.QUEUE_ADVANCED";
+
 	private static final String TAG = Player.class.getSimpleName();
 
+	/** How long before the end of a song the next song is prepared. */
+	private static final int PRELOAD_SECONDS = 10;
+
+	/** Samples rendered at a time. I've selected a size which is convenient for FFT. */
+	private static final int BUFFER_SAMPLES = 4096 * 2;
+
 	private final SongDatabase db; /* FIXME: Get rid of this! */
-	private final DroidSoundPlugin plugin;
-	private final FilesEntry song;
-	private final String f1;
-	private final byte[] data1;
-	private final String f2;
-	private final byte[] data2;
+	private volatile DroidSoundPlugin plugin;
+	private volatile FilesEntry song;
+	private byte[] data1;
+	/** Plugin-generated md5 of data1, computed when first needed; it is the same for all subsongs. */
+	private byte[] md5;
+	private boolean md5Computed;
 	private final AtomicReference<FrequencyAnalysis> fft = new AtomicReference<FrequencyAnalysis>();
 
 	private final AtomicInteger subsongLengthMs = new AtomicInteger();
@@ -52,29 +73,72 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 	private final AtomicInteger seekRequest = new AtomicInteger(-1);
 	private final AtomicInteger subsongRequest = new AtomicInteger(-1);
 	private final AtomicInteger currentSubsong = new AtomicInteger();
+	private final AtomicReference<FilesEntry> nextSong = new AtomicReference<FilesEntry>();
+
+	/** Next song being prepared in background, owned by the player thread. */
+	private FutureTask<PreloadedSong> preload;
+	/** Song just handed over to, whose first buffer is still to be played. */
+	private PreloadedSong handedOver;
+	/** System.nanoTime() when the song was requested, 0 once its first sample was written. */
+	private long requestNanos;
+	/** True if the AudioTrack of the previous song was reused, for the time to first sample. */
+	private boolean trackReused;
+
+	/** Cached rendering of the current subsong being played back, if any. */
+	private RenderCache.Reader cacheReader;
+	/** Rendering of the current subsong being recorded into cache, if any. */
+	private RenderCache.Recorder cacheRecorder;
 
 	/**
-	 * Construct a player that tries to load the file called f1 with content data1,
-	 * and also offers optional f2 and content data2 if the native code needs it.
-	 * <p>
-	 * Generalization to more than 2 files has not been done because no known
-	 * formats need such a capability, but if it ever happens, Map<String, byte[]> is probably good idea.
+	 * Buffer the plugins render into, owned by the player thread. It is direct, so
+	 * native code writes into it without pinning or copying a Java array.
+	 */
+	private final ByteBuffer pcm = ByteBuffer.allocateDirect(BUFFER_SAMPLES * 2).order(ByteOrder.nativeOrder());
+	/** View of the same memory as shorts, for the stages after the plugin. */
+	private final ShortBuffer pcmShorts = pcm.asShortBuffer();
+	/**
+	 * With float output or resampling, the audio is rendered or converted into this
+	 * instead, and everything after the render cache works on floats. Null otherwise.
+	 */
+	private float[] floats;
+	private FloatBuffer floatsView;
+	private boolean floatOutput;
+
+	/**
+	 * Rate of the AudioTrack, the device's own rate. Songs at other rates go
+	 * through the resampler, so the platform never has to resample.
+	 */
+	private int outputRate;
+	/** Rate of the song being rendered. */
+	private int frameRate;
+	/** Converts from frameRate to outputRate, null if they are the same. */
+	private Resampler resampler;
+	private Resampler.Quality resamplerQuality;
+	private float[] resampled;
+	private FloatBuffer resampledView;
+	/** Output converted back to 16 bits, when floats are only used for resampling. */
+	private ShortBuffer outputShorts;
+
+	/** Decoded audio waiting to be written into the AudioTrack. */
+	private volatile SampleRingBuffer ring;
+	private final AtomicInteger underruns = new AtomicInteger();
+
+	/**
+	 * Construct a player that takes over a plugin which has already loaded the song.
+	 * The player thread plays it and unloads the plugin when done.
 	 *
-	 * @param plugin plugin to play file with
+	 * @param db
+	 * @param plugin loaded plugin to play file with
 	 * @param song
-	 * @param name1 name of file 1
-	 * @param data1 data of file 1
-	 * @param name2 name of file 2
-	 * @param data2 data of file 2
+	 * @param data1 data of the main file, used for songlength lookups
+	 * @param requestNanos System.nanoTime() when playback of the song was requested
 	 */
-	public Player(SongDatabase db, DroidSoundPlugin plugin, FilesEntry song, String name1, byte[] data1, String name2, byte[] data2) {
+	public Player(SongDatabase db, DroidSoundPlugin plugin, FilesEntry song, byte[] data1, long requestNanos) {
 		this.db = db;
 		this.plugin = plugin;
 		this.song = song;
-		this.f1 = name1;
 		this.data1 = data1;
-		this.f2 = name2;
-		this.data2 = data2;
+		this.requestNanos = requestNanos;
 	}
 
 	/**
@@ -90,12 +154,40 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 			if (fr == 0) {
 				fr = 44100;
 			}
-			offt.calculateTiming(fr, fr);
+			offt.calculateTiming(fr, bufferFrames(fr));
 			fft.set(offt);
 		}
 		return fft.get();
 	}
 
+	/**
+	 * Return the latency between decoding and hearing a frame: the decoder ring
+	 * plus the AudioTrack's own buffer of one second.
+	 */
+	private int bufferFrames(int frameRate) {
+		SampleRingBuffer r = ring;
+		return frameRate + (r != null ? (int) ((long) r.capacity() / 2 * frameRate / outputRate) : 0);
+	}
+
+	/**
+	 * Return how full the buffer between decoder and audio output is.
+	 *
+	 * @return fill level in percent
+	 */
+	public int getBufferFill() {
+		SampleRingBuffer r = ring;
+		return r != null ? r.size() * 100 / r.capacity() : 0;
+	}
+
+	/**
+	 * Return how many times the audio output ran out of decoded data.
+	 *
+	 * @return underrun count since the player started
+	 */
+	public int getUnderruns() {
+		return underruns.get();
+	}
+
 	/** Remove FFT queue. */
 	public void disableFftQueue() {
 		fft.set(null);
@@ -146,6 +238,20 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 		return song.getUrl();
 	}
 
+	public FilesEntry getPlayingSong() {
+		return song;
+	}
+
+	/**
+	 * Tell the player which song follows the current one. When the current song
+	 * ends, the player continues into that song without stopping the audio output.
+	 *
+	 * @param next the next song, or null to stop at the end of the current song
+	 */
+	public void setNextSong(FilesEntry next) {
+		nextSong.set(next);
+	}
+
 	/**
 	 * Tell native code to switch to a different subsong. The
 	 * subsong range is player and tune specific, but the value
@@ -160,6 +266,8 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 	private void sendAdvancing(int time) {
 		Intent intent = new Intent(ACTION_ADVANCING);
 		intent.putExtra("time", time);
+		intent.putExtra("buffer.fill", getBufferFill());
+		intent.putExtra("buffer.underruns", underruns.get());
 		publishProgress(intent);
 	}
 
@@ -169,9 +277,189 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 		Application.broadcast(unloading);
 	}
 
+	/**
+	 * Play the subsong from the render cache if possible, otherwise record it there.
+	 *
+	 * @param md5 plugin-generated md5 of the song
+	 * @param subsong subsong about to start
+	 * @param lengthMs length the subsong will be played for
+	 */
+	private void startRenderCache(byte[] md5, int subsong, int lengthMs) {
+		finishRenderCache(false);
+
+		SharedPreferences prefs = Application.getAppPreferences();
+		if (! prefs.getBoolean("render_cache", false)) {
+			return;
+		}
+		String key = RenderCache.key(plugin, prefs, md5, subsong, lengthMs);
+		if (key == null) {
+			return;
+		}
+
+		RenderCache cache = Application.getRenderCache();
+		cacheReader = cache.open(key, plugin.getFrameRate());
+		if (cacheReader == null) {
+			long sizeLimit = Long.valueOf(prefs.getString("render_cache_size", "256")) << 20;
+			cacheRecorder = cache.record(key, plugin.getFrameRate(), sizeLimit);
+		}
+		Log.i(TAG, "Render cache %s for %s, hit rate %d %%, %d kB saved",
+				cacheReader != null ? "hit" : "miss", key, cache.getHitRate(), cache.getBytesSaved() >> 10);
+	}
+
+	/**
+	 * Stop using the render cache for the current subsong.
+	 *
+	 * @param complete true if the whole subsong was rendered and the recording may be kept
+	 */
+	private void finishRenderCache(boolean complete) {
+		cacheReader = null;
+		if (cacheRecorder != null) {
+			if (complete) {
+				cacheRecorder.commit();
+			} else {
+				cacheRecorder.abort();
+			}
+			cacheRecorder = null;
+		}
+	}
+
+	/**
+	 * Produce the next buffer of audio, from cache, from the head rendered
+	 * during preload, or from the plugin.
+	 *
+	 * @return number of samples produced into {@link #pcm}, not positive at end of song
+	 */
+	private int render() {
+		pcmShorts.clear();
+		if (cacheReader != null) {
+			handedOver = null;
+			return toFloats(cacheReader.read(pcmShorts));
+		}
+
+		int lengthInSamples = 0;
+		if (handedOver != null) {
+			lengthInSamples = toFloats(handedOver.takeHead(pcmShorts));
+			handedOver = null;
+		}
+		boolean renderedFloats = false;
+		if (lengthInSamples == 0) {
+			if (floats != null) {
+				lengthInSamples = plugin.getSoundData(floats);
+				renderedFloats = true;
+			} else {
+				pcm.clear();
+				lengthInSamples = plugin.getSoundData(pcm);
+			}
+		}
+
+		if (cacheRecorder != null && lengthInSamples > 0) {
+			/* The cache is 16-bit, as is what the emulators make. */
+			if (renderedFloats) {
+				pcmShorts.clear();
+				SampleConverter.toShort(floats, lengthInSamples, pcmShorts);
+			}
+			if (! cacheRecorder.write(rendered(lengthInSamples))) {
+				finishRenderCache(false);
+			}
+		}
+		return lengthInSamples;
+	}
+
+	/**
+	 * With float output, convert samples that came in {@link #pcm} to {@link #floats}.
+	 *
+	 * @param lengthInSamples number of samples in pcm
+	 * @return lengthInSamples
+	 */
+	private int toFloats(int lengthInSamples) {
+		if (floats != null && lengthInSamples > 0) {
+			SampleConverter.toFloat(rendered(lengthInSamples), floats);
+		}
+		return lengthInSamples;
+	}
+
+	/**
+	 * @param lengthInSamples number of samples returned by {@link #render()}
+	 * @return the rendered samples, from position to limit
+	 */
+	private ShortBuffer rendered(int lengthInSamples) {
+		pcmShorts.clear();
+		pcmShorts.limit(lengthInSamples);
+		return pcmShorts;
+	}
+
+	/**
+	 * Resample the rendered audio if needed, and convert it to the output format.
+	 *
+	 * @param lengthInSamples number of samples returned by {@link #render()}
+	 * @return the samples to play, from position to limit
+	 */
+	private Buffer output(int lengthInSamples) {
+		if (floats == null) {
+			return rendered(lengthInSamples);
+		}
+
+		FloatBuffer out = floatsView;
+		int length = lengthInSamples;
+		if (resampler != null) {
+			out = resampledView;
+			length = resampler.process(floats, lengthInSamples, resampled);
+		}
+		if (floatOutput) {
+			out.clear();
+			out.limit(length);
+			return out;
+		}
+
+		outputShorts.clear();
+		SampleConverter.toShort(out.array(), length, outputShorts);
+		outputShorts.flip();
+		return outputShorts;
+	}
+
+	/**
+	 * Set up the stages between the plugin and the ring for a song.
+	 *
+	 * @param rate frame rate of the song
+	 */
+	private void configureOutput(int rate) {
+		frameRate = rate;
+		if (rate == outputRate) {
+			resampler = null;
+		} else if (resampler == null || resampler.getInRate() != rate) {
+			resampler = new Resampler(rate, outputRate, resamplerQuality, BUFFER_SAMPLES);
+			resampled = new float[resampler.maxOutput(BUFFER_SAMPLES)];
+			resampledView = FloatBuffer.wrap(resampled);
+			Log.i(TAG, "Resampling from %d Hz to %d Hz, %s quality.", rate, outputRate, resamplerQuality);
+		}
+
+		if (floats == null && (floatOutput || resampler != null)) {
+			floats = new float[BUFFER_SAMPLES];
+			floatsView = FloatBuffer.wrap(floats);
+		}
+		if (! floatOutput && floats != null) {
+			int size = resampler != null ? resampled.length : BUFFER_SAMPLES;
+			if (outputShorts == null || outputShorts.capacity() < size) {
+				outputShorts = ShortBuffer.allocate(size);
+			}
+		}
+	}
+
+	/** Drop everything buffered after the plugin, for seeking or subsong changes. */
+	private void flushOutput(AudioWriter writer) throws InterruptedException {
+		writer.flush();
+		if (resampler != null) {
+			resampler.reset();
+		}
+	}
+
 	private void sendLoadingWithSubsong(int newSubsong) {
 		currentSubsong.set(newSubsong);
-		subsongLengthMs.set(db.getSongLength(plugin.md5(data1), newSubsong + 1));
+		if (! md5Computed) {
+			md5 = plugin.md5(data1);
+			md5Computed = true;
+		}
+		subsongLengthMs.set(db.getSongLength(md5, newSubsong + 1));
 		if (subsongLengthMs.get() <= 0) {
 			subsongLengthMs.set(plugin.getIntInfo(DroidSoundPlugin.INFO_LENGTH));
 		}
@@ -179,6 +467,7 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 			SharedPreferences prefs = Application.getAppPreferences();
 			subsongLengthMs.set(Integer.valueOf(prefs.getString("default_length", "0")) * 1000);
 		}
+		startRenderCache(md5, newSubsong, subsongLengthMs.get());
 
 		Intent intent = new Intent(ACTION_LOADING_SONG);
 		intent.putExtra("plugin.name", plugin.getVersion());
@@ -204,75 +493,239 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 	@Override
 	protected void onProgressUpdate(Intent... values) {
 		for (Intent i : values) {
+			if (ACTION_QUEUE_ADVANCED.equals(i.getAction())) {
+				Application.onPlayerAdvanced(this);
+				continue;
+			}
 			Application.broadcast(i);
 		}
 	}
 
 	@Override
 	protected Void doInBackground(Void... ignored) {
-		/* Note, this should not fail because it has already been executed once. */
-		if (! plugin.load(f1, data1, f2, data2)) {
-			Log.w(TAG, "Plugin could not load song.");
+		SharedPreferences prefs = Application.getAppPreferences();
+		floatOutput = prefs.getBoolean("float_output", false) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+		resamplerQuality = Resampler.Quality.valueOf(prefs.getString("resampler_quality", "MEDIUM"));
+
+		outputRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+		if (outputRate <= 0) {
+			outputRate = plugin.getFrameRate();
+		}
+		AudioOutput output = Application.getAudioOutput();
+		AudioTrack audioTrack = output.acquire(outputRate, floatOutput);
+		if (audioTrack == null && floatOutput) {
+			Log.i(TAG, "Float output not supported at %d Hz, using 16 bits.", outputRate);
+			floatOutput = false;
+			audioTrack = output.acquire(outputRate, false);
+		}
+		if (audioTrack == null) {
+			Log.w(TAG, "Unable to open audio output at %d Hz.", outputRate);
+			output.idle();
+			plugin.unload();
+			sendUnloading();
 			return null;
 		}
+		trackReused = output.isReused();
+		configureOutput(plugin.getFrameRate());
 
-		/* In theory we could ask plugin about desired frequency and other information. */
-		AudioTrack audioTrack = new AudioTrack(
-				AudioManager.STREAM_MUSIC,
-				plugin.getFrameRate(),
-				AudioFormat.CHANNEL_OUT_STEREO,
-				AudioFormat.ENCODING_PCM_16BIT,
-				plugin.getFrameRate() * 4,
-				AudioTrack.MODE_STREAM);
-
-		// Let plugin set the playback rate if the plugin overrides getFrameRate().
-		// If not overridden, the playback rate will default to 44100Hz
-		audioTrack.setPlaybackRate(plugin.getFrameRate());
-
-        Intent sessionOpen = new Intent(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION);
-        sessionOpen.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, audioTrack.getAudioSessionId());
-        sessionOpen.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, Application.packageName());
-        publishProgress(sessionOpen);
+		int bufferMs = Integer.valueOf(prefs.getString("buffer_length", "250"));
+		int prefillPct = Integer.valueOf(prefs.getString("buffer_prefill", "50"));
+		ring = new SampleRingBuffer(Math.max(BUFFER_SAMPLES, (int) ((long) outputRate * 2 * bufferMs / 1000)), floatOutput);
+		AudioWriter writer = new AudioWriter(audioTrack, Math.min(100, prefillPct) * ring.capacity() / 100);
 
 		FrequencyAnalysis offt = fft.get();
 		if (offt != null) {
-			offt.calculateTiming(plugin.getFrameRate(), plugin.getFrameRate());
+			offt.calculateTiming(plugin.getFrameRate(), bufferFrames(plugin.getFrameRate()));
 		}
 
-		Log.i(TAG, "Entering audio playback loop.");
+		Log.i(TAG, "Entering audio playback loop with %d ms buffer.", ring.capacity() * 1000 / 2 / outputRate);
+		writer.start();
 		try {
 			subsongs.set(plugin.getIntInfo(DroidSoundPlugin.INFO_SUBTUNE_COUNT));
 			defaultSubsong.set(plugin.getIntInfo(DroidSoundPlugin.INFO_STARTTUNE));
 			sendLoadingWithSubsong(defaultSubsong.get());
-			doInBackgroundPlayloop(audioTrack);
+			doInBackgroundPlayloop(writer);
+			/* Let the buffered tail of the song play before announcing the end. */
+			writer.finish();
+			writer.join();
 			sendUnloading();
 		}
 		catch (Exception e) {
 			Log.w(TAG, "Exiting playloop via exception", e);
+			writer.finish();
+		}
+		try {
+			writer.join();
+		}
+		catch (InterruptedException ie) {
+			Log.w(TAG, "Interrupted while waiting for audio writer");
+		}
+		finishRenderCache(false);
+		discardPreload();
+		if (plugin != null) {
+			plugin.unload();
 		}
-		plugin.unload();
 		Log.i(TAG, "Exiting audio playback loop.");
 
-		Intent sessionClose = new Intent(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION);
-		sessionClose.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, audioTrack.getAudioSessionId());
-		sessionClose.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, Application.packageName());
-		publishProgress(sessionClose);
-		audioTrack.release();
-
+		if (writer.isFailed()) {
+			/* The track is dead, the next song makes a new one. */
+			output.release();
+		} else {
+			/* The track is kept for the next song; let what is still buffered in it play out. */
+			audioTrack.stop();
+			output.idle();
+		}
 		return null;
 	}
 
-	private void doInBackgroundPlayloop(AudioTrack audioTrack) throws InterruptedException {
-		/* I've selected a size which is convenient for FFT. */
-		short[] samples = new short[4096 * 2];
+	/**
+	 * Start reading the next song in background, unless that is already going on.
+	 *
+	 * @param bufferSize size of the audio buffer the next song should prerender
+	 */
+	private void startPreload(final int bufferSize) {
+		final FilesEntry next = nextSong.get();
+		if (preload != null || next == null) {
+			return;
+		}
+
+		preload = new FutureTask<PreloadedSong>(new Callable<PreloadedSong>() {
+			@Override
+			public PreloadedSong call() {
+				return PreloadedSong.prepare(db, next, bufferSize);
+			}
+		});
+		AsyncTask.THREAD_POOL_EXECUTOR.execute(preload);
+	}
+
+	private PreloadedSong takePreload() throws InterruptedException {
+		if (preload == null) {
+			return null;
+		}
+
+		PreloadedSong next = null;
+		try {
+			next = preload.get();
+		}
+		catch (ExecutionException ee) {
+			Log.w(TAG, "Preloading next song failed", ee);
+		}
+		preload = null;
+		return next;
+	}
+
+	private void discardPreload() {
+		try {
+			PreloadedSong next = takePreload();
+			if (next != null) {
+				next.discard();
+			}
+		}
+		catch (InterruptedException ie) {
+			Log.w(TAG, "Interrupted while discarding next song");
+		}
+	}
+
+	/**
+	 * Called when the current subsong has played to its end. Continue with the
+	 * next subsong, or with the next song through the existing AudioTrack,
+	 * resampling it if its rate is different.
+	 *
+	 * @param bufferSize size of the audio buffer, in samples
+	 * @param complete true if the subsong reached its length or its end, false if the plugin failed
+	 * @return true if playback continues, false if this player should finish
+	 * @throws InterruptedException
+	 */
+	private boolean continuePlayback(int bufferSize, boolean complete) throws InterruptedException {
+		long startNanos = System.nanoTime();
+		finishRenderCache(complete);
+		int nextSubsong = currentSubsong.get() + 1;
+		if (nextSubsong >= subsongs.get()) {
+			nextSubsong = 0;
+		}
+		if (nextSubsong != defaultSubsong.get() && plugin.setTune(nextSubsong)) {
+			sendLoadingWithSubsong(nextSubsong);
+			return true;
+		}
+
+		startPreload(bufferSize);
+		PreloadedSong next = takePreload();
+		if (next == null) {
+			return false;
+		}
+		if (! next.getSong().equals(nextSong.get())) {
+			Log.i(TAG, "Next song changed while it was being prepared.");
+			next.discard();
+			return false;
+		}
+
+		if (! next.isLoaded()) {
+			plugin.unload();
+			plugin = null;
+		}
+		DroidSoundPlugin nextPlugin = next.load();
+		if (nextPlugin == null) {
+			return false;
+		}
+
+		if (plugin != null) {
+			plugin.unload();
+		}
+		plugin = nextPlugin;
+		if (plugin.getFrameRate() != frameRate) {
+			configureOutput(plugin.getFrameRate());
+			FrequencyAnalysis offt = fft.get();
+			if (offt != null) {
+				offt.calculateTiming(frameRate, bufferFrames(frameRate));
+			}
+		}
+		song = next.getSong();
+		data1 = next.getData1();
+		md5Computed = false;
+		nextSong.set(null);
+		handedOver = next;
+		publishProgress(new Intent(ACTION_QUEUE_ADVANCED));
+
+		subsongs.set(plugin.getIntInfo(DroidSoundPlugin.INFO_SUBTUNE_COUNT));
+		defaultSubsong.set(plugin.getIntInfo(DroidSoundPlugin.INFO_STARTTUNE));
+		sendLoadingWithSubsong(defaultSubsong.get());
+		Log.i(TAG, "Continuing into next song with %s after %d ms.", plugin.getVersion(), (System.nanoTime() - startNanos) / 1000000);
+		return true;
+	}
+
+	/**
+	 * Put decoded data into the ring, waiting for the writer to make room.
+	 *
+	 * @return false if playback was stopped while waiting
+	 */
+	private boolean queue(Buffer samples) throws InterruptedException {
+		while (true) {
+			if (samples instanceof FloatBuffer) {
+				ring.write((FloatBuffer) samples);
+			} else {
+				ring.write((ShortBuffer) samples);
+			}
+			if (! samples.hasRemaining()) {
+				return true;
+			}
+			if (stateRequest.get() == State.STOP) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+	}
 
+	private void doInBackgroundPlayloop(AudioWriter writer) throws InterruptedException {
 		int playbackFrame = 0;
+		int shownSec = 0;
 		PLAYLOOP: while (true) {
 			switch (stateRequest.get()) {
 			case PLAY: {
 				final int loopSubsongRequest = subsongRequest.getAndSet(-1);
 				if (loopSubsongRequest != -1) {
+					finishRenderCache(false);
 					if (plugin.setTune(loopSubsongRequest)) {
+						flushOutput(writer);
 						playbackFrame = 0;
 						sendLoadingWithSubsong(loopSubsongRequest);
 					}
@@ -280,56 +733,231 @@ public class Player extends AsyncTask<Void, Intent, Void> {
 
 				final int loopSeekRequest = seekRequest.getAndSet(-1);
 				if (loopSeekRequest != -1) {
-					if (plugin.canSeek()) {
+					if (cacheReader != null) {
+						cacheReader.seekTo(loopSeekRequest);
+						flushOutput(writer);
+						float pos = loopSeekRequest / 1000f * frameRate;
+						playbackFrame = (int) pos;
+					} else if (plugin.canSeek()) {
+						/* A recording with a jump in it is of no use. */
+						finishRenderCache(false);
 						plugin.seekTo(loopSeekRequest);
-						float pos = loopSeekRequest / 1000f * audioTrack.getPlaybackRate();
+						flushOutput(writer);
+						float pos = loopSeekRequest / 1000f * frameRate;
 						playbackFrame = (int) pos;
 					}
 				}
 
-				int lengthInSamples = plugin.getSoundData(samples);
-				/* If the length is not positive, it implies errors or song end. We terminate. */
+				int lengthInSamples = render();
+				/* 0 is the end of the song, a negative length an error that cuts it short. */
 				if (lengthInSamples <= 0) {
-					break PLAYLOOP;
+					if (! continuePlayback(BUFFER_SAMPLES, lengthInSamples == 0)) {
+						break PLAYLOOP;
+					}
+					playbackFrame = 0;
+					break;
 				}
 
-				if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
-					audioTrack.play();
+				if (! queue(output(lengthInSamples))) {
+					break PLAYLOOP;
 				}
 
-				audioTrack.write(samples, 0, lengthInSamples);
-
 				/* Update our FFT */
 				FrequencyAnalysis _fft = fft.get();
 				if (_fft != null) {
-					_fft.feed(samples, 0, lengthInSamples);
+					if (floats != null) {
+						_fft.feed(floats, 0, lengthInSamples);
+					} else {
+						_fft.feed(rendered(lengthInSamples));
+					}
 				}
 
-				int sec1 = playbackFrame / audioTrack.getPlaybackRate();
 				playbackFrame += lengthInSamples / 2;
-				int sec2 = playbackFrame / audioTrack.getPlaybackRate();
-				if (sec1 != sec2) {
-					sendAdvancing(sec2);
+				/* What is audible now is behind the decoder by the amount in the ring, which is at the output rate. */
+				int sec = (int) Math.max(0, playbackFrame - (long) ring.size() / 2 * frameRate / outputRate) / frameRate;
+				if (sec != shownSec) {
+					shownSec = sec;
+					sendAdvancing(sec);
 				}
 
-				/* Terminate playback when complete song played. */
-				if (sec2 > subsongLengthMs.get() / 1000) {
-					break PLAYLOOP;
+				/* Get the next song ready while this one is about to finish. */
+				int decodedSec = playbackFrame / frameRate;
+				if (decodedSec + PRELOAD_SECONDS > subsongLengthMs.get() / 1000) {
+					startPreload(BUFFER_SAMPLES);
+				}
+
+				/* Move on when complete song played. */
+				if (decodedSec > subsongLengthMs.get() / 1000) {
+					if (! continuePlayback(BUFFER_SAMPLES, true)) {
+						break PLAYLOOP;
+					}
+					playbackFrame = 0;
 				}
 
 				break;
 			}
 			case PAUSE:
-				if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PAUSED) {
-					audioTrack.pause();
-				}
-				Thread.sleep(500);
+				/* The writer pauses the AudioTrack, we just stop feeding it. */
+				Thread.sleep(100);
 				break;
 
 			case STOP:
-				audioTrack.stop();
 				break PLAYLOOP;
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Drains the ring into the AudioTrack on its own thread, so that a slow moment
+	 * in the emulator eats into the buffered audio instead of being heard as an underrun.
+	 */
+	private class AudioWriter extends Thread {
+		private static final int CHUNK_SAMPLES = 2048 * 2;
+
+		private final AudioTrack audioTrack;
+		/** Since Lollipop, the ring is written out straight from its direct storage. */
+		private final boolean direct = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+		private final short[] chunk = direct ? null : new short[CHUNK_SAMPLES];
+		private final int prefill;
+		private final AtomicBoolean flushRequest = new AtomicBoolean();
+		private volatile boolean decoderDone;
+		/** Set when the track refused data, after which it can't be used again. */
+		private volatile boolean failed;
+
+		protected AudioWriter(AudioTrack audioTrack, int prefill) {
+			super("AudioWriter");
+			this.audioTrack = audioTrack;
+			this.prefill = prefill;
+		}
+
+		/**
+		 * Drop everything buffered so far, for seeking or subsong changes.
+		 * Returns after the writer has done it, so that new data written after
+		 * this call will be played.
+		 */
+		protected void flush() throws InterruptedException {
+			flushRequest.set(true);
+			while (flushRequest.get() && isAlive()) {
+				Thread.sleep(1);
+			}
+		}
+
+		/** Decoder is done, play out whatever remains in the ring and exit. */
+		protected void finish() {
+			decoderDone = true;
+		}
+
+		/** @return true if playback was stopped because the track failed */
+		protected boolean isFailed() {
+			return failed;
+		}
+
+		@Override
+		public void run() {
+			boolean buffering = true;
+			/* Samples read from the ring into chunk but not yet taken by the track. */
+			int chunkPos = 0;
+			int chunkEnd = 0;
+			/* Bytes of the first sample in the ring that the track has already taken. */
+			int partialBytes = 0;
+			try {
+				while (true) {
+					Player.State state = stateRequest.get();
+					if (state == Player.State.STOP) {
+						/* Drop what is buffered, so the next song starts at once on this track. */
+						audioTrack.pause();
+						audioTrack.flush();
+						return;
+					}
+
+					if (flushRequest.get()) {
+						audioTrack.pause();
+						audioTrack.flush();
+						ring.clear();
+						chunkPos = chunkEnd = 0;
+						partialBytes = 0;
+						buffering = true;
+						flushRequest.set(false);
+						continue;
+					}
+
+					if (state == Player.State.PAUSE) {
+						if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PAUSED) {
+							audioTrack.pause();
+						}
+						Thread.sleep(50);
+						continue;
+					}
+
+					if (buffering) {
+						if (ring.size() < prefill && ! decoderDone) {
+							Thread.sleep(5);
+							continue;
+						}
+						buffering = false;
+					}
+
+					ByteBuffer data = null;
+					int length;
+					if (direct) {
+						data = ring.peek(CHUNK_SAMPLES);
+						length = data.remaining() / ring.bytesPerSample();
+						data.position(data.position() + partialBytes);
+					} else {
+						if (chunkPos == chunkEnd) {
+							chunkPos = 0;
+							chunkEnd = ring.read(chunk, 0, chunk.length);
+						}
+						length = chunkEnd - chunkPos;
+					}
+					if (length == 0) {
+						/* decoderDone is set after the last write, so the ring is complete now. */
+						if (decoderDone && ring.size() == 0) {
+							return;
+						}
+						if (! decoderDone) {
+							Log.w(TAG, "Audio buffer underrun");
+							underruns.incrementAndGet();
+							buffering = true;
+						}
+						continue;
+					}
+
+					if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+						audioTrack.play();
+					}
+					/* A write can take less than given, the rest is written on the next round.
+					 * That can end inside a sample, whose remaining bytes go first next time. */
+					int written;
+					if (direct) {
+						written = audioTrack.write(data, data.remaining(), AudioTrack.WRITE_BLOCKING);
+						if (written > 0) {
+							int consumed = partialBytes + written;
+							ring.skip(consumed / ring.bytesPerSample());
+							partialBytes = consumed % ring.bytesPerSample();
+						}
+					} else {
+						written = audioTrack.write(chunk, chunkPos, length);
+						if (written > 0) {
+							chunkPos += written;
+						}
+					}
+					if (written < 0) {
+						Log.w(TAG, "Audio track write failed with error %d, stopping playback.", written);
+						failed = true;
+						stateRequest.set(Player.State.STOP);
+						return;
+					}
+					if (requestNanos != 0) {
+						Log.i(TAG, "Time to first sample with %s on a %s audio track: %d ms",
+								plugin.getVersion(), trackReused ? "reused" : "new", (System.nanoTime() - requestNanos) / 1000000);
+						requestNanos = 0;
+					}
+				}
+			}
+			catch (InterruptedException ie) {
+				Log.w(TAG, "Audio writer interrupted");
+			}
+		}
+	}
+}
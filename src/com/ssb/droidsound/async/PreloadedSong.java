@@ -0,0 +1,149 @@
+package com.ssb.droidsound.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.List;
+
+import com.ssb.droidsound.bo.FilesEntry;
+import com.ssb.droidsound.bo.SongFileData;
+import com.ssb.droidsound.database.SongDatabase;
+import com.ssb.droidsound.plugins.DroidSoundPlugin;
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * The next song of the play queue, prepared while the current song still plays
+ * so that the player thread can continue into it without a gap.
+ * <p>
+ * Plugins that can load concurrently get a private instance which is loaded and
+ * already rendered the first buffer of audio. Other plugins share their native state
+ * with the song that is playing, so for them only the file data is read ahead and
+ * the actual load is deferred until the player thread hands over to this song.
+ */
+public class PreloadedSong {
+	private static final String TAG = PreloadedSong.class.getSimpleName();
+
+	private final FilesEntry song;
+	private final String name1;
+	private final byte[] data1;
+	private final String name2;
+	private final byte[] data2;
+
+	private DroidSoundPlugin plugin;
+	private ByteBuffer head;
+	private int headLength;
+
+	private PreloadedSong(FilesEntry song, String name1, byte[] data1, String name2, byte[] data2) {
+		this.song = song;
+		this.name1 = name1;
+		this.data1 = data1;
+		this.name2 = name2;
+		this.data2 = data2;
+	}
+
+	/**
+	 * Read the song and, if the plugin responsible for it permits, load it and render
+	 * the first buffer. This is meant to run in a background thread.
+	 *
+	 * @param db database to read the file data from
+	 * @param song the song to prepare
+	 * @param bufferSize size of the head buffer to render, in samples
+	 * @return prepared song, or null if it could not be read
+	 */
+	public static PreloadedSong prepare(SongDatabase db, FilesEntry song, int bufferSize) {
+		List<SongFileData> files;
+		try {
+			files = db.getSongFileData(song);
+		}
+		catch (IOException ioe) {
+			Log.w(TAG, "Unable to read next song", ioe);
+			return null;
+		}
+
+		PreloadedSong ps = new PreloadedSong(
+				song,
+				files.get(0).getFile().getName(),
+				files.get(0).getData(),
+				files.size() == 2 ? files.get(1).getFile().getName() : null,
+				files.size() == 2 ? files.get(1).getData() : null
+		);
+
+		/* Probe in the same order as a regular load would, but stop at the first plugin
+		 * that would have to disturb the song that is playing right now. */
+		for (DroidSoundPlugin p : DroidSoundPlugin.getPluginList()) {
+			if (! p.canHandle(ps.name1)) {
+				continue;
+			}
+			if (! p.canLoadConcurrently()) {
+				break;
+			}
+
+			DroidSoundPlugin instance = p.newInstance();
+			if (instance.load(ps.name1, ps.data1, ps.name2, ps.data2)) {
+				ps.plugin = instance;
+				ps.head = ByteBuffer.allocateDirect(bufferSize * 2).order(ByteOrder.nativeOrder());
+				ps.headLength = instance.getSoundData(ps.head);
+				break;
+			}
+		}
+
+		Log.i(TAG, "Prepared %s (%s)", ps.name1, ps.plugin != null ? "loaded" : "deferred");
+		return ps;
+	}
+
+	/**
+	 * Return a loaded plugin for this song. If the preload had to be deferred,
+	 * the load happens now, so the caller must have unloaded the previous song.
+	 *
+	 * @return loaded plugin, or null if no plugin accepts the song
+	 */
+	public DroidSoundPlugin load() {
+		if (plugin == null) {
+			plugin = DroidSoundPlugin.loadWithFirstAccepting(name1, data1, name2, data2);
+		}
+		return plugin;
+	}
+
+	/**
+	 * Copy the audio rendered ahead of time into the given buffer.
+	 * Each rendered buffer is handed out only once.
+	 *
+	 * @param dest destination buffer, filled from its position
+	 * @return number of samples copied, 0 if there are none
+	 */
+	public int takeHead(ShortBuffer dest) {
+		if (head == null) {
+			return 0;
+		}
+
+		int length = Math.max(0, Math.min(headLength, dest.remaining()));
+		ShortBuffer src = head.asShortBuffer();
+		src.limit(length);
+		dest.put(src);
+		head = null;
+		return length;
+	}
+
+	/** Release the native resources, if the song was loaded ahead of time and never played. */
+	public void discard() {
+		if (plugin != null && plugin.canLoadConcurrently()) {
+			plugin.unload();
+		}
+		plugin = null;
+		head = null;
+	}
+
+	/** @return true if the plugin for this song was loaded while another song was playing */
+	public boolean isLoaded() {
+		return plugin != null;
+	}
+
+	public FilesEntry getSong() {
+		return song;
+	}
+
+	public byte[] getData1() {
+		return data1;
+	}
+}
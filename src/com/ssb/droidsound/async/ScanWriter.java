@@ -0,0 +1,178 @@
+package com.ssb.droidsound.async;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * The only thread that writes to the database during a scan. SQLite allows
+ * a single writer anyway, so rather than having the scanning threads contend
+ * for the database lock, they hand their statements here, and this thread
+ * executes them in batches of one transaction each.
+ * <p>
+ * A transaction is committed when it holds a batch of tasks, or when it has
+ * been open for the batch time, whichever comes first. Otherwise it waits for
+ * more tasks, so a scan costs a few commits rather than one per directory.
+ * <p>
+ * Tasks run in the order they were submitted. A task runs, and its future
+ * completes, before its transaction is committed.
+ */
+class ScanWriter extends Thread {
+	private static final String TAG = ScanWriter.class.getSimpleName();
+
+	/** Number of tasks queued before submitters block. */
+	private static final int QUEUE_SIZE = 1000;
+
+	private final SQLiteDatabase db;
+	private final int batchSize;
+	private final long batchMs;
+	private final BlockingQueue<Task<?>> queue = new ArrayBlockingQueue<Task<?>>(QUEUE_SIZE);
+	private final Task<Void> end = new Task<Void>(new Callable<Void>() {
+		@Override
+		public Void call() {
+			return null;
+		}
+	});
+
+	private static class Task<T> extends FutureTask<T> {
+		protected Task(Callable<T> callable) {
+			super(callable);
+		}
+
+		@Override
+		protected void done() {
+			try {
+				get();
+			}
+			catch (InterruptedException ie) {
+			}
+			catch (ExecutionException ee) {
+				Log.w(TAG, "Database write failed", ee.getCause());
+			}
+		}
+	}
+
+	/**
+	 * @param db database to write
+	 * @param batchSize maximum number of tasks executed in a single transaction
+	 * @param batchMs maximum time a transaction is kept open, in milliseconds
+	 */
+	protected ScanWriter(SQLiteDatabase db, int batchSize, long batchMs) {
+		super(TAG);
+		this.db = db;
+		this.batchSize = batchSize;
+		this.batchMs = batchMs;
+	}
+
+	/**
+	 * Queue a database operation. Blocks while the writer is too far behind.
+	 *
+	 * @param callable the operation
+	 * @return future for the result of the operation
+	 */
+	public <T> Future<T> submit(Callable<T> callable) {
+		Task<T> task = new Task<T>(callable);
+		put(task);
+		return task;
+	}
+
+	/** Execute all queued operations and stop the thread. */
+	public void finish() {
+		put(end);
+		boolean interrupted = false;
+		while (isAlive()) {
+			try {
+				join();
+			}
+			catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void put(Task<?> task) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				queue.put(task);
+				break;
+			}
+			catch (InterruptedException ie) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		/* Deleting a directory must also remove everything that was scanned below it. */
+		db.execSQL("PRAGMA foreign_keys=ON");
+		long startTime = System.currentTimeMillis();
+		long commitTime = 0;
+		int commits = 0;
+		int tasks = 0;
+		try {
+			boolean finished = false;
+			while (! finished) {
+				Task<?> task = queue.take();
+				if (task == end) {
+					break;
+				}
+
+				long deadline = System.currentTimeMillis() + batchMs;
+				db.beginTransaction();
+				try {
+					int n = 0;
+					while (true) {
+						task.run();
+						if (++ n == batchSize) {
+							break;
+						}
+						long wait = deadline - System.currentTimeMillis();
+						if (wait <= 0) {
+							break;
+						}
+						task = queue.poll(wait, TimeUnit.MILLISECONDS);
+						if (task == null) {
+							break;
+						}
+						if (task == end) {
+							finished = true;
+							break;
+						}
+					}
+					tasks += n;
+					db.setTransactionSuccessful();
+				}
+				finally {
+					long commitStart = System.currentTimeMillis();
+					db.endTransaction();
+					commitTime += System.currentTimeMillis() - commitStart;
+					commits ++;
+				}
+			}
+		}
+		catch (InterruptedException ie) {
+			Log.w(TAG, "Interrupted, unwritten scan results are lost");
+		}
+		finally {
+			db.execSQL("PRAGMA foreign_keys=OFF");
+		}
+		Log.i(TAG, "Wrote %d tasks in %d transactions, %d of %d ms spent committing",
+				tasks, commits, commitTime, System.currentTimeMillis() - startTime);
+	}
+}
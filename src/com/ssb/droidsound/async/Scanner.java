@@ -1,26 +1,28 @@
 package com.ssb.droidsound.async;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.ZipException;
-import java.util.zip.ZipInputStream;
 
 import android.content.Intent;
 import android.database.Cursor;
@@ -35,8 +37,10 @@ import com.ssb.droidsound.bo.FilesEntry;
 import com.ssb.droidsound.bo.Playlist;
 import com.ssb.droidsound.database.SongDatabase;
 import com.ssb.droidsound.plugins.DroidSoundPlugin;
+import com.ssb.droidsound.utils.HashUtil;
 import com.ssb.droidsound.utils.Log;
 import com.ssb.droidsound.utils.StreamUtil;
+import com.ssb.droidsound.utils.ZipDirectory;
 
 /**
  * Perform a collection scan against a writable database instance.
@@ -44,6 +48,10 @@ import com.ssb.droidsound.utils.StreamUtil;
  * conception of Services is so useless (due to lack of synchronous
  * bindService) that I am no longer willing to accept the level of
  * bullshit it takes to use them.
+ * <p>
+ * The scan is a pipeline: this thread walks the directory tree, a pool of
+ * workers (one per core) reads and identifies the new files, and a single
+ * {@link ScanWriter} thread performs all database writes in batches.
  *
  * @author alankila
  */
@@ -52,10 +60,43 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 
 	private static AtomicBoolean scanning = new AtomicBoolean();
 	private static final String TAG = Scanner.class.getSimpleName();
-	private static final Charset ISO88591 = Charset.forName("ISO-8859-1");
+
+	/** Rows written per transaction by the scan writer. */
+	private static final int WRITE_BATCH_SIZE = 5000;
+	/** Longest time the scan writer keeps a transaction open. */
+	private static final long WRITE_BATCH_MS = 2000;
+	/** Number of identified songs remembered for recognizing copies. */
+	private static final int IDENTIFIED_CACHE_SIZE = 10000;
 
 	private final SQLiteDatabase db;
 	private final boolean full;
+	/** Directories to rescan on their own, or null to scan the whole collection. */
+	private final Collection<File> directories;
+	/** True if everything below the directories is rescanned too. */
+	private final boolean subtrees;
+	/** Time the directories were changed, to report how far indexing lags behind. */
+	private final long changeTime;
+	/** False while the songlength snapshot can't be affected by the scan. */
+	private volatile boolean songlengthsChanged;
+	/** False while no songs have been added, so there are no new copies to find. */
+	private volatile boolean songsAdded;
+
+	private final ScanWriter writer;
+	private ThreadPoolExecutor workers;
+	private final AtomicInteger filesIdentified = new AtomicInteger();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicInteger duplicatesIdentified = new AtomicInteger();
+
+	/** Recently identified content, by identify key and plugins tried. */
+	private final Map<String, Identified> identified = new LinkedHashMap<String, Identified>(IDENTIFIED_CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Identified> eldest) {
+			return size() > IDENTIFIED_CACHE_SIZE;
+		}
+	};
+	private long startTime;
 
 	private final SQLiteStatement filesStatement;
 	private final int FILES_PARENT_ID = 1;
@@ -67,6 +108,18 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 	private final int FILES_COMPOSER = 7;
 	private final int FILES_DATE = 8;
 	private final int FILES_FORMAT = 9;
+	private final int FILES_IDENTIFY_KEY = 10;
+	private final int FILES_CONTENT_HASH = 11;
+
+	private final SQLiteStatement zipentryStatement;
+	private final int ZIPENTRY_ZIP_ID = 1;
+	private final int ZIPENTRY_ZIP_PATH = 2;
+	private final int ZIPENTRY_ZIP_MODIFY_TIME = 3;
+	private final int ZIPENTRY_PATH = 4;
+	private final int ZIPENTRY_LOCAL_HEADER_OFFSET = 5;
+	private final int ZIPENTRY_COMPRESSED_SIZE = 6;
+	private final int ZIPENTRY_SIZE = 7;
+	private final int ZIPENTRY_METHOD = 8;
 
 	private final SQLiteStatement songlengthStatement;
 	private final int SONGLENGTH_FILE_ID = 1;
@@ -74,12 +127,57 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 	private final int SONGLENGTH_SUBSONG = 3;
 	private final int SONGLENGTH_TIME_MS = 4;
 
+	private final SQLiteStatement completeStatement;
+	private final int COMPLETE_MODIFY_TIME = 1;
+	private final int COMPLETE_CHILD_COUNT = 2;
+	private final int COMPLETE_ID = 3;
+
 	public Scanner(SQLiteDatabase db, boolean full) {
+		this(db, full, null, false, 0);
+	}
+
+	/**
+	 * Rescan only the given directories, not recursing into their subdirectories
+	 * unless they are new. Directories not seen by an earlier scan are skipped;
+	 * their parent has changed too, and adds them.
+	 *
+	 * @param db database
+	 * @param directories directories below the collection root, or the root itself
+	 * @param changeTime time of the first change to them
+	 */
+	public Scanner(SQLiteDatabase db, Collection<File> directories, long changeTime) {
+		this(db, false, directories, false, changeTime);
+	}
+
+	/**
+	 * Rescan the trees below the given directories the way an incremental scan of
+	 * the whole collection does, skipping the directories that have not changed.
+	 * Directories not seen by an earlier scan are skipped.
+	 *
+	 * @param db database
+	 * @param directories directories below the collection root, or the root itself
+	 */
+	public Scanner(SQLiteDatabase db, Collection<File> directories) {
+		this(db, false, directories, true, 0);
+	}
+
+	private Scanner(SQLiteDatabase db, boolean full, Collection<File> directories, boolean subtrees, long changeTime) {
 		this.db = db;
 		this.full = full;
+		this.directories = directories;
+		this.subtrees = subtrees;
+		this.changeTime = changeTime;
 
-		filesStatement = db.compileStatement("INSERT INTO files (parent_id, filename, modify_time, type, url, title, composer, date, format) VALUES (?, ?, ?, ?, ?, ? ,?, ?, ?)");
+		filesStatement = db.compileStatement("INSERT INTO files (parent_id, filename, modify_time, type, url, title, composer, date, format, identify_key, content_hash) VALUES (?, ?, ?, ?, ?, ? ,?, ?, ?, ?, ?)");
+		zipentryStatement = db.compileStatement("INSERT INTO zipentry (zip_id, zip_path, zip_modify_time, path, local_header_offset, compressed_size, size, method) VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
 		songlengthStatement = db.compileStatement("INSERT INTO songlength (file_id, md5, subsong, timeMs) VALUES (?, ?, ?, ?)");
+		completeStatement = db.compileStatement("UPDATE files SET modify_time = ?, child_count = ? WHERE _id = ?");
+		writer = new ScanWriter(db, WRITE_BATCH_SIZE, WRITE_BATCH_MS);
+	}
+
+	/** @return true while a scan is running */
+	public static boolean isScanning() {
+		return scanning.get();
 	}
 
 	@Override
@@ -102,9 +200,34 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 		Intent intent = new Intent(ACTION_SCAN);
 		intent.putExtra("progress", pct);
 		intent.putExtra("scanning", true);
+		intent.putExtra("filesPerSecond", getFilesPerSecond());
 		publishProgress(intent);
 	}
 
+	private int getFilesPerSecond() {
+		long elapsed = System.currentTimeMillis() - startTime;
+		return elapsed > 0 ? (int) (filesIdentified.get() * 1000L / elapsed) : 0;
+	}
+
+	/**
+	 * Wait for a database operation queued to the writer.
+	 *
+	 * @param future
+	 * @return result of the operation
+	 * @throws IOException
+	 */
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ie) {
+			throw new IOException("Interrupted while waiting for database write", ie);
+		}
+		catch (ExecutionException ee) {
+			throw new IOException("Database write failed", ee.getCause());
+		}
+	}
+
 	@Override
 	protected Void doInBackground(Void... ignored) {
 		try {
@@ -156,23 +279,48 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 	}
 
 	/**
-	 * Insert a directory node to a parent.
+	 * Insert a directory node to a parent, and wait until the writer has done it.
 	 *
 	 * @param name
 	 * @param parentId
 	 * @return rowid
+	 * @throws IOException
 	 */
-	private long insertDirectory(String name, Long parentId) {
-		bind(filesStatement, FILES_PARENT_ID, parentId);
-		bind(filesStatement, FILES_FILENAME, name);
-		bind(filesStatement, FILES_MODIFY_TIME);
-		bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_DIRECTORY);
-		bind(filesStatement, FILES_URL);
-		bind(filesStatement, FILES_TITLE, name);
-		bind(filesStatement, FILES_COMPOSER);
-		bind(filesStatement, FILES_DATE);
-		bind(filesStatement, FILES_FORMAT);
-		return filesStatement.executeInsert();
+	private long insertDirectory(final String name, final Long parentId) throws IOException {
+		return await(writer.submit(new Callable<Long>() {
+			@Override
+			public Long call() {
+				bind(filesStatement, FILES_PARENT_ID, parentId);
+				bind(filesStatement, FILES_FILENAME, name);
+				bind(filesStatement, FILES_MODIFY_TIME);
+				bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_DIRECTORY);
+				bind(filesStatement, FILES_URL);
+				bind(filesStatement, FILES_TITLE, name);
+				bind(filesStatement, FILES_COMPOSER);
+				bind(filesStatement, FILES_DATE);
+				bind(filesStatement, FILES_FORMAT);
+				bind(filesStatement, FILES_IDENTIFY_KEY);
+				bind(filesStatement, FILES_CONTENT_HASH);
+				return filesStatement.executeInsert();
+			}
+		}));
+	}
+
+	/**
+	 * Queue deletion of nodes, including everything below them.
+	 *
+	 * @param where
+	 * @param whereArgs
+	 */
+	private void delete(final String where, final String[] whereArgs) {
+		songlengthsChanged = true;
+		writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				db.delete("files", where, whereArgs);
+				return null;
+			}
+		});
 	}
 
 	private static String makeZipUrl(File zipFile, File songFile) {
@@ -185,32 +333,345 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 	}
 
 	/**
-	 * Insert a file node to a parent.
+	 * Queue the insertion of an identified file node to a parent.
+	 * This is called from the worker threads.
 	 *
 	 * @param songFile
-	 * @param data
+	 * @param identity
 	 * @param modifyTime
 	 * @param parentId
 	 */
-	private void insertFile(File zipFile, File songFile, byte[] data, long modifyTime, Long parentId) {
+	private void insertFile(File zipFile, final File songFile, final Identity identity, final long modifyTime, final Long parentId) {
+		filesIdentified.incrementAndGet();
 		/* We need a positive identification for accepting a file. */
-		DroidSoundPlugin.MusicInfo info = DroidSoundPlugin.identify(songFile.getName(), data);
-		if (info == null) {
+		if (identity == null) {
 			return;
 		}
+		songsAdded = true;
+
+		final DroidSoundPlugin.MusicInfo info = identity.info;
+
+		final String url = zipFile != null ? makeZipUrl(zipFile, songFile) : makeFileUrl(songFile);
+
+		writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				bind(filesStatement, FILES_PARENT_ID, parentId);
+				bind(filesStatement, FILES_FILENAME, songFile.getName());
+				bind(filesStatement, FILES_MODIFY_TIME, modifyTime);
+				bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_FILE);
+				bind(filesStatement, FILES_URL, url);
+				bind(filesStatement, FILES_TITLE, info.title != null ? info.title : songFile.getName());
+				bind(filesStatement, FILES_COMPOSER, info.composer != null ? info.composer : songFile.getParentFile().getName());
+				bind(filesStatement, FILES_DATE, info.date);
+				bind(filesStatement, FILES_FORMAT, info.format);
+				bind(filesStatement, FILES_IDENTIFY_KEY, identity.identifyKey);
+				bind(filesStatement, FILES_CONTENT_HASH, identity.contentHash);
+				filesStatement.executeInsert();
+				return null;
+			}
+		});
+	}
+
+	/** Random access to the start of a file being identified. */
+	private interface Prefix {
+		byte[] read(long maxLength) throws IOException;
+	}
+
+	/** What is known of a file after identification. */
+	private static class Identity {
+		private final DroidSoundPlugin.MusicInfo info;
+		private final String identifyKey;
+		/** Hash of the whole file if identification read all of it, otherwise null. */
+		private final String contentHash;
+
+		private Identity(DroidSoundPlugin.MusicInfo info, String identifyKey, String contentHash) {
+			this.info = info;
+			this.identifyKey = identifyKey;
+			this.contentHash = contentHash;
+		}
+	}
+
+	/** Music info found for some content, under the name of the file it was in. */
+	private static class Identified {
+		private final String name;
+		private final DroidSoundPlugin.MusicInfo info;
+
+		private Identified(String name, DroidSoundPlugin.MusicInfo info) {
+			this.name = name;
+			this.info = info;
+		}
+
+		/**
+		 * @param otherName name of a copy of the file
+		 * @return the info, with the title of the copy if the title came from the file name
+		 */
+		private DroidSoundPlugin.MusicInfo forName(String otherName) {
+			if (info.title == null || ! info.title.equals(name) || name.equals(otherName)) {
+				return info;
+			}
+			DroidSoundPlugin.MusicInfo copy = new DroidSoundPlugin.MusicInfo();
+			copy.title = otherName;
+			copy.composer = info.composer;
+			copy.copyright = info.copyright;
+			copy.format = info.format;
+			copy.channels = info.channels;
+			copy.date = info.date;
+			return copy;
+		}
+	}
+
+	/**
+	 * Identify a file by reading only as much of it as the plugins need.
+	 * <p>
+	 * The file is keyed by its size and the hash of the bytes read. Identification
+	 * depends on nothing else but the plugins tried and the file name, which only
+	 * serves as a missing title, so a file with the key of one seen earlier in the
+	 * scan gets the music info of the first one without running the plugins. The
+	 * key says nothing of the bytes not read, so such files need not be copies.
+	 * Files that are identified by name alone get no key. Files read in full also
+	 * get their content hash; the others that share a key with another file are
+	 * hashed after the scan, see {@link SongDatabase#hashCopyCandidates()}.
+	 *
+	 * @param name
+	 * @param length
+	 * @param prefix
+	 * @return music info and identify key, or null if no plugin accepts the file
+	 * @throws IOException
+	 */
+	private Identity identify(String name, long length, Prefix prefix) throws IOException {
+		int headerSize = DroidSoundPlugin.getMusicInfoHeaderSize(name);
+		if (headerSize < 0) {
+			return null;
+		}
+		if (headerSize == 0) {
+			return new Identity(DroidSoundPlugin.identify(name, new byte[0]), null, null);
+		}
+		long plugins = DroidSoundPlugin.getPluginSet(name);
+
+		byte[] data = prefix.read(headerSize);
+		bytesRead.addAndGet(data.length);
+		String key = identifyKey(data, length);
+		DroidSoundPlugin.MusicInfo info = identify(name, plugins, key, data);
+		if (data.length < length && DroidSoundPlugin.needsWholeFileToIdentify(name, data)) {
+			data = prefix.read(length);
+			bytesRead.addAndGet(data.length);
+			key = identifyKey(data, length);
+			info = identify(name, plugins, key, data);
+		}
+		return new Identity(info, key, data.length == length ? SongDatabase.contentHash(data) : null);
+	}
+
+	private DroidSoundPlugin.MusicInfo identify(String name, long plugins, String identifyKey, byte[] data) {
+		String key = identifyKey + "/" + Long.toHexString(plugins);
+		Identified cached;
+		synchronized (identified) {
+			cached = identified.get(key);
+		}
+		if (cached != null) {
+			duplicatesIdentified.incrementAndGet();
+			return cached.forName(name);
+		}
+
+		DroidSoundPlugin.MusicInfo info = DroidSoundPlugin.identify(name, data);
+		synchronized (identified) {
+			identified.put(key, new Identified(name, info));
+		}
+		return info;
+	}
 
-		String url = zipFile != null ? makeZipUrl(zipFile, songFile) : makeFileUrl(songFile);
+	private static String identifyKey(byte[] data, long length) {
+		return Long.toHexString(length) + ":" + Long.toHexString(HashUtil.xxHash64(data));
+	}
 
-		bind(filesStatement, FILES_PARENT_ID, parentId);
-		bind(filesStatement, FILES_FILENAME, songFile.getName());
-		bind(filesStatement, FILES_MODIFY_TIME, modifyTime);
-		bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_FILE);
-		bind(filesStatement, FILES_URL, url);
-		bind(filesStatement, FILES_TITLE, info.title != null ? info.title : songFile.getName());
-		bind(filesStatement, FILES_COMPOSER, info.composer != null ? info.composer : songFile.getParentFile().getName());
-		bind(filesStatement, FILES_DATE, info.date);
-		bind(filesStatement, FILES_FORMAT, info.format);
-		filesStatement.executeInsert();
+	/**
+	 * Have a worker identify and insert a file.
+	 *
+	 * @param f
+	 * @param parentId
+	 */
+	private void submitFile(final File f, final Long parentId, final Completion completion) {
+		completion.add();
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Identity identity = identify(f.getName(), f.length(), new Prefix() {
+						@Override
+						public byte[] read(long maxLength) throws IOException {
+							return StreamUtil.readPrefix(f, maxLength);
+						}
+					});
+					insertFile(null, f, identity, f.lastModified(), parentId);
+				}
+				catch (IOException ioe) {
+					Log.w(TAG, "Unable to read " + f.getPath(), ioe);
+				}
+				finally {
+					completion.done();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Have a worker identify and insert a zip entry. The worker inflates
+	 * only the start of the entry, as far as identification needs.
+	 *
+	 * @param zip
+	 * @param entry
+	 * @param songFile
+	 * @param parentId
+	 */
+	private void submitZipEntry(final ZipDirectory zip, final ZipDirectory.Entry entry, final File songFile, final Long parentId, final Completion completion) {
+		zip.retain();
+		completion.add();
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Identity identity = identify(songFile.getName(), entry.getSize(), new Prefix() {
+						@Override
+						public byte[] read(long maxLength) throws IOException {
+							return zip.read(entry, maxLength);
+						}
+					});
+					insertFile(zip.getFile(), songFile, identity, 0, parentId);
+				}
+				catch (IOException ioe) {
+					Log.w(TAG, "Unable to read " + entry.getName() + " in " + zip.getFile().getPath(), ioe);
+				}
+				finally {
+					zip.close();
+					completion.done();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Insert a node of any type other than file, and wait until the writer has done it.
+	 *
+	 * @return rowid
+	 * @throws IOException
+	 */
+	private long insertNode(final Long parentId, final String filename, final Long modifyTime, final int type, final String url, final String title) throws IOException {
+		return await(writer.submit(new Callable<Long>() {
+			@Override
+			public Long call() {
+				bind(filesStatement, FILES_PARENT_ID, parentId);
+				bind(filesStatement, FILES_FILENAME, filename);
+				bind(filesStatement, FILES_MODIFY_TIME, modifyTime);
+				bind(filesStatement, FILES_TYPE, type);
+				bind(filesStatement, FILES_URL, url);
+				bind(filesStatement, FILES_TITLE, title);
+				bind(filesStatement, FILES_COMPOSER);
+				bind(filesStatement, FILES_DATE);
+				bind(filesStatement, FILES_FORMAT);
+				bind(filesStatement, FILES_IDENTIFY_KEY);
+				bind(filesStatement, FILES_CONTENT_HASH);
+				return filesStatement.executeInsert();
+			}
+		}));
+	}
+
+	/**
+	 * Queue the insertion of a Songlengths.txt node along with its contents.
+	 *
+	 * @param parentId
+	 * @param filename
+	 * @param modifyTime
+	 * @param data contents of the file
+	 */
+	private void insertSonglengths(final Long parentId, final String filename, final Long modifyTime, final byte[] data) {
+		songlengthsChanged = true;
+		writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				bind(filesStatement, FILES_PARENT_ID, parentId);
+				bind(filesStatement, FILES_FILENAME, filename);
+				bind(filesStatement, FILES_MODIFY_TIME, modifyTime);
+				bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_SONGLENGTH);
+				bind(filesStatement, FILES_URL);
+				bind(filesStatement, FILES_TITLE, filename);
+				bind(filesStatement, FILES_COMPOSER);
+				bind(filesStatement, FILES_DATE);
+				bind(filesStatement, FILES_FORMAT);
+				bind(filesStatement, FILES_IDENTIFY_KEY);
+				bind(filesStatement, FILES_CONTENT_HASH);
+				long rowId = filesStatement.executeInsert();
+				scanSonglengthsTxt(rowId, data);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Queue setting the modify time of a directory, zip or playlist node, once all
+	 * its contents have been queued. Those nodes are inserted without a modify time,
+	 * so if the scan is interrupted before their contents are committed, the next
+	 * scan sees them as changed and scans them again.
+	 *
+	 * @param rowId the node
+	 * @param modifyTime modify time of the file
+	 * @param childCount number of entries of a directory, null for files
+	 */
+	private void markComplete(final long rowId, final long modifyTime, final Integer childCount) {
+		writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				bind(completeStatement, COMPLETE_MODIFY_TIME, modifyTime);
+				bind(completeStatement, COMPLETE_CHILD_COUNT, childCount);
+				bind(completeStatement, COMPLETE_ID, rowId);
+				completeStatement.executeUpdateDelete();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Marks a node complete after its contents, some of which are identified by
+	 * the workers and queued in any order. Each of those holds a count until its
+	 * row is queued, as does the walker until it has gone through the node. A zip
+	 * also holds a count on its directory until the zip is complete.
+	 */
+	private class Completion {
+		private final Long rowId;
+		private final long modifyTime;
+		private final Integer childCount;
+		private final Completion parent;
+		private final AtomicInteger pending = new AtomicInteger(1);
+
+		/**
+		 * @param rowId the node, null for the collection root which has none
+		 * @param modifyTime modify time of the file
+		 * @param childCount number of entries of a directory, null for files
+		 * @param parent completion of the directory holding the node, or null
+		 */
+		private Completion(Long rowId, long modifyTime, Integer childCount, Completion parent) {
+			this.rowId = rowId;
+			this.modifyTime = modifyTime;
+			this.childCount = childCount;
+			this.parent = parent;
+			if (parent != null) {
+				parent.add();
+			}
+		}
+
+		private void add() {
+			pending.incrementAndGet();
+		}
+
+		private void done() {
+			if (pending.decrementAndGet() == 0) {
+				if (rowId != null) {
+					markComplete(rowId, modifyTime, childCount);
+				}
+				if (parent != null) {
+					parent.done();
+				}
+			}
+		}
 	}
 
 	/**
@@ -223,109 +684,155 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 	 * @param rowId
 	 * @param f
 	 */
-	private void insertPlaylist(long rowId, File f) {
-		Playlist pl = new Playlist(f);
+	private void insertPlaylist(final long rowId, File f) {
+		final Playlist pl = new Playlist(f);
 
-		int i = 0;
-		for (FilesEntry sf : pl.getSongs()) {
-			bind(filesStatement, FILES_PARENT_ID, rowId);
-			bind(filesStatement, FILES_FILENAME, String.valueOf(++ i));
-			bind(filesStatement, FILES_MODIFY_TIME);
-			bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_FILE);
-			bind(filesStatement, FILES_URL, String.valueOf(sf.getUrl()));
-			bind(filesStatement, FILES_TITLE, sf.getTitle());
-			bind(filesStatement, FILES_COMPOSER, sf.getComposer());
-			bind(filesStatement, FILES_DATE, sf.getDate());
-			bind(filesStatement, FILES_FORMAT, sf.getFormat());
-			filesStatement.executeInsert();
+		writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				int i = 0;
+				for (FilesEntry sf : pl.getSongs()) {
+					bind(filesStatement, FILES_PARENT_ID, rowId);
+					bind(filesStatement, FILES_FILENAME, String.valueOf(++ i));
+					bind(filesStatement, FILES_MODIFY_TIME);
+					bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_FILE);
+					bind(filesStatement, FILES_URL, String.valueOf(sf.getUrl()));
+					bind(filesStatement, FILES_TITLE, sf.getTitle());
+					bind(filesStatement, FILES_COMPOSER, sf.getComposer());
+					bind(filesStatement, FILES_DATE, sf.getDate());
+					bind(filesStatement, FILES_FORMAT, sf.getFormat());
+					bind(filesStatement, FILES_IDENTIFY_KEY);
+					bind(filesStatement, FILES_CONTENT_HASH);
+					filesStatement.executeInsert();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Queue the recording of where each file of a zip is, for playback to
+	 * find it without reading the central directory. The rows go away with the
+	 * zip's node, which is deleted when the zip is modified.
+	 *
+	 * @param zip
+	 * @param zipId
+	 * @param modifyTime modify time of the zip file when it was scanned
+	 */
+	private void insertZipEntries(final ZipDirectory zip, final long zipId, final long modifyTime) {
+		final String zipPath = zip.getFile().getAbsolutePath();
+		writer.submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				for (ZipDirectory.Entry e : zip.getEntries()) {
+					if (e.isDirectory()) {
+						continue;
+					}
+					bind(zipentryStatement, ZIPENTRY_ZIP_ID, zipId);
+					bind(zipentryStatement, ZIPENTRY_ZIP_PATH, zipPath);
+					bind(zipentryStatement, ZIPENTRY_ZIP_MODIFY_TIME, modifyTime);
+					bind(zipentryStatement, ZIPENTRY_PATH, e.getName());
+					bind(zipentryStatement, ZIPENTRY_LOCAL_HEADER_OFFSET, e.getLocalHeaderOffset());
+					bind(zipentryStatement, ZIPENTRY_COMPRESSED_SIZE, e.getCompressedSize());
+					bind(zipentryStatement, ZIPENTRY_SIZE, e.getSize());
+					bind(zipentryStatement, ZIPENTRY_METHOD, e.getMethod());
+					zipentryStatement.executeInsert();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Find or create the node for a directory inside a zip.
+	 *
+	 * @param pathMap row ids of the directories created so far, by path
+	 * @param path path of the directory inside the zip, without trailing slash
+	 * @return rowid
+	 * @throws IOException
+	 */
+	private long zipDirectoryId(Map<String, Long> pathMap, String path) throws IOException {
+		Long rowId = pathMap.get(path);
+		if (rowId == null) {
+			/* Archives need not list directories at all, or may list them after their files. */
+			int slash = path.lastIndexOf('/');
+			long parentId = zipDirectoryId(pathMap, slash == -1 ? "" : path.substring(0, slash));
+			rowId = insertDirectory(path.substring(slash + 1), parentId);
+			pathMap.put(path, rowId);
 		}
+		return rowId;
 	}
 
 	/**
-	 * Zip scanner
+	 * Zip scanner. The central directory is read by this thread, and the
+	 * entries are handed to the workers for identification.
 	 *
 	 * @param zipFile
-	 * @return
-	 * @throws ZipException
+	 * @param parentId
+	 * @param modifyTime
 	 * @throws IOException
 	 */
-	private void scanZip(File zipFile, Long parentId) throws ZipException, IOException {
+	private void scanZip(File zipFile, long parentId, long modifyTime, Completion directory) throws IOException {
 		Log.i(TAG, "Scanning ZIP %s for files...", zipFile.getPath());
-		db.execSQL("PRAGMA foreign_keys=ON");
-		db.delete("files", "parent_id = ?", new String [] { String.valueOf(parentId) });
-		db.execSQL("PRAGMA foreign_keys=OFF");
-
-		FileInputStream fis = new FileInputStream(zipFile);
-		ZipInputStream zis = new ZipInputStream(fis);
-		Map<String, Long> pathMap = new HashMap<String, Long>();
-		pathMap.put("", parentId);
-		ZipEntry ze;
-		int shownPct = -1;
-		while (null != (ze = zis.getNextEntry())) {
-			int slash = ze.getName().lastIndexOf('/');
-			/** Path inside zip to file */
-			final String path;
-			/** Name of file */
-			final String name;
-			if (slash == -1) {
-				path = zipFile.getPath();
-				name = ze.getName();
-			} else {
-				path = ze.getName().substring(0, slash);
-				name = ze.getName().substring(slash  + 1);
-			}
-			final long pathParentId;
-			if ("".equals(name)) {
-				/* Is directory. Pick the part before the last filename */
-				int slash2 = path.lastIndexOf('/');
-				final String pathFilename;
-				if (slash2 == -1) {
-					/* top level in zip: parent to given directory */
-					pathParentId = parentId;
-					pathFilename = path;
+		delete("parent_id = ?", new String [] { String.valueOf(parentId) });
+
+		ZipDirectory zip = new ZipDirectory(zipFile);
+		Completion completion = new Completion(parentId, modifyTime, null, directory);
+		try {
+			insertZipEntries(zip, parentId, modifyTime);
+
+			Map<String, Long> pathMap = new HashMap<String, Long>();
+			pathMap.put("", parentId);
+			List<ZipDirectory.Entry> entries = zip.getEntries();
+			int shownPct = -1;
+			for (int i = 0; i < entries.size(); i ++) {
+				ZipDirectory.Entry ze = entries.get(i);
+				String entryName = ze.getName();
+				if (ze.isDirectory()) {
+					zipDirectoryId(pathMap, entryName.substring(0, entryName.length() - 1));
 				} else {
-					/* Parent of the path (if any) */
-					String parent = path.substring(0, slash2);
-					pathFilename = path.substring(slash2 + 1);
-					pathParentId = pathMap.get(parent);
+					int slash = entryName.lastIndexOf('/');
+					/** Path inside zip to file */
+					String path = slash == -1 ? "" : entryName.substring(0, slash);
+					/** Name of file */
+					String name = entryName.substring(slash + 1);
+					long pathParentId = zipDirectoryId(pathMap, path);
+					if (name.equals("Songlengths.txt")) {
+						insertSonglengths(pathParentId, name, null, zip.read(ze, ze.getSize()));
+					} else if (DroidSoundPlugin.getMusicInfoHeaderSize(name) < 0) {
+						filesIdentified.incrementAndGet();
+					} else {
+						submitZipEntry(zip, ze, new File(path, name), pathParentId, completion);
+					}
 				}
 
-				Log.i(TAG, "New directory: %s", ze.getName());
-				long rowId = insertDirectory(pathFilename, pathParentId);
-				pathMap.put(path, rowId);
-			} else {
-				pathParentId = pathMap.get(path);
-				if (name.equals("Songlengths.txt")) {
-					bind(filesStatement, FILES_PARENT_ID, pathParentId);
-					bind(filesStatement, FILES_FILENAME, name);
-					bind(filesStatement, FILES_MODIFY_TIME);
-					bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_SONGLENGTH);
-					bind(filesStatement, FILES_URL);
-					bind(filesStatement, FILES_TITLE);
-					bind(filesStatement, FILES_COMPOSER);
-					bind(filesStatement, FILES_DATE);
-					bind(filesStatement, FILES_FORMAT);
-					long rowId = filesStatement.executeInsert();
-					scanSonglengthsTxt(rowId, zis);
-				} else {
-					insertFile(zipFile, new File(path, name), StreamUtil.readFully(zis, ze.getSize()), 0, pathParentId);
+				int pct = i * 100 / entries.size();
+				if (shownPct != pct) {
+					shownPct = pct;
+					sendUpdate(pct);
 				}
 			}
 
-			int pct = (int) (fis.getChannel().position() / (fis.getChannel().size() / 100));
-			if (shownPct != pct) {
-				sendUpdate(pct);
-			}
-			zis.closeEntry();
+			completion.done();
+		}
+		finally {
+			zip.close();
 		}
-
-		zis.close();
 	}
 
 	/**
-	 * Dir scan. Roots of the tree are those with parentId = null.
+	 * Bring the rows below a directory up to date with the file system.
+	 * <p>
+	 * A directory whose modify time and number of entries are the same as at the
+	 * last scan has had no entries added, removed or renamed, so its files are not
+	 * looked at again; only its subdirectories are checked in turn.
+	 *
+	 * @param dir the directory
+	 * @param parentId row of the directory, null for the collection root
+	 * @param changed false if the directory is unchanged since the last scan
+	 * @throws IOException
 	 */
-	private void scanFiles(File dir, Long parentId) throws IOException {
+	private void scanFiles(File dir, Long parentId, boolean changed) throws IOException {
 		sendUpdate(0);
 		String where;
 		String[] whereCond;
@@ -336,59 +843,79 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 			where = "parent_id = ?";
 			whereCond = new String[] { String.valueOf(parentId) };
 		}
-		final Cursor fileCursor = db.query(
-				"files",
-				new String[] { BaseColumns._ID, "filename", "modify_time" },
-				where, whereCond,
-				null, null, null
-		);
-
-		/** Going to recurse into these */
-		Map<Long, File> directoriesToRecurse = new HashMap<Long, File>();
+		if (! changed) {
+			where += " AND type = " + SongDatabase.TYPE_DIRECTORY;
+		}
+		/* Read before listing, so that changes made during the scan are seen next time. */
+		long modifyTime = dir.lastModified();
 
 		/**
-		 * Set of files in examined directory. Entries are removed from this set
+		 * Files in examined directory by name. Entries are removed from this map
 		 * if they are also found on the database, so the remainder corresponds to files to add.
 		 */
-		List<File> files = new ArrayList<File>();
-		for (File f : dir.listFiles()) {
-			if (! f.getName().startsWith(".")) {
-				files.add(f);
+		Map<String, File> files = new HashMap<String, File>();
+		if (changed) {
+			File[] list = dir.listFiles();
+			if (list == null) {
+				throw new IOException("Unable to list " + dir.getPath());
+			}
+			for (File f : list) {
+				if (! f.getName().startsWith(".")) {
+					files.put(f.getName(), f);
+				}
 			}
 		}
+		int childCount = files.size();
+
+		/** Going to recurse into these */
+		Map<Long, File> directoriesToRecurse = new HashMap<Long, File>();
+		/** Directories among those that need no listing */
+		Set<Long> unchangedDirectories = new HashSet<Long>();
 
 		Set<Long> delFiles = new HashSet<Long>();
+		final Cursor fileCursor = db.query(
+				"files",
+				new String[] { BaseColumns._ID, "filename", "modify_time", "type", "child_count" },
+				where, whereCond,
+				null, null, null
+		);
 		/* Compare db and fs */
 		while (fileCursor.moveToNext()) {
 			long id = fileCursor.getLong(0);
-			File file = new File(dir, fileCursor.getString(1));
+			String name = fileCursor.getString(1);
 			long lastScan = fileCursor.getLong(2);
+			int type = fileCursor.getInt(3);
 
-			if (files.contains(file)) {
-				if (file.isDirectory()) {
+			File file = changed ? files.remove(name) : new File(dir, name);
+			if (type == SongDatabase.TYPE_DIRECTORY) {
+				if (file != null && file.isDirectory()) {
 					directoriesToRecurse.put(id, file);
-					files.remove(file);
-				} else {
-					/* Has recorded modify-time changed? If so, rescan. */
-					if (lastScan != file.lastModified()) {
-						delFiles.add(id);
-					} else {
-						files.remove(file);
+					if (lastScan == file.lastModified() && ! fileCursor.isNull(4)
+							&& countEntries(file) == fileCursor.getInt(4)) {
+						unchangedDirectories.add(id);
 					}
+				} else {
+					delFiles.add(id);
 				}
-			} else {
+			} else if (file == null) {
+				delFiles.add(id);
+			} else if (lastScan != file.lastModified()) {
+				/* Has recorded modify-time changed? If so, rescan. */
 				delFiles.add(id);
+				files.put(name, file);
 			}
 		}
 		fileCursor.close();
 
-		/* Delete files that need refresh or which did not exist anymore. */
-		db.beginTransaction();
-		db.execSQL("PRAGMA foreign_keys=ON");
+		/* Delete files that need refresh or which did not exist anymore.
+		 * The writer executes in order, so these happen before the reinsertions. */
 		for (long id : delFiles) {
-			db.delete("files", BaseColumns._ID + " = ?", new String[] { String.valueOf(id) } );
+			delete(BaseColumns._ID + " = ?", new String[] { String.valueOf(id) });
 		}
-		db.execSQL("PRAGMA foreign_keys=OFF");
+
+		/* The directory is recorded as scanned once all of its entries have been queued.
+		 * An unchanged one already is. */
+		Completion completion = new Completion(changed ? parentId : null, modifyTime, childCount, null);
 
 		List<File> zipsToScan = new ArrayList<File>();
 		List<File> songLengthsToDo = new ArrayList<File>();
@@ -396,134 +923,292 @@ public class Scanner extends AsyncTask<Void, Intent, Void> {
 
 		/* Add files/directories that did not exist */
 		int pct = 0;
-		for (int i = 0; i < files.size(); i ++) {
-			File f = files.get(i);
+		int i = 0;
+		for (File f : files.values()) {
 			if (f.isFile()) {
 				Log.i(TAG, "New file: %s", f.getPath());
 				String fnUpper = f.getName().toUpperCase(Locale.ROOT);
 				if (fnUpper.endsWith(".ZIP")) {
 					zipsToScan.add(f);
 				} else if (fnUpper.endsWith(".PLIST")) {
-					bind(filesStatement, FILES_PARENT_ID, parentId);
-					bind(filesStatement, FILES_FILENAME, f.getName());
-					bind(filesStatement, FILES_MODIFY_TIME, f.lastModified());
-					bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_PLAYLIST);
-					bind(filesStatement, FILES_URL, f.getAbsolutePath());
-					bind(filesStatement, FILES_TITLE, f.getName().substring(0, f.getName().length() - 6));
-					bind(filesStatement, FILES_COMPOSER);
-					bind(filesStatement, FILES_DATE);
-					bind(filesStatement, FILES_FORMAT);
-					long rowId = filesStatement.executeInsert();
+					long rowId = insertNode(parentId, f.getName(), null, SongDatabase.TYPE_PLAYLIST,
+							f.getAbsolutePath(), f.getName().substring(0, f.getName().length() - 6));
 					insertPlaylist(rowId, f);
+					markComplete(rowId, f.lastModified(), null);
 				} else if (f.getName().equals("Songlengths.txt")) {
 					songLengthsToDo.add(f);
 				} else {
-					FileInputStream fi = new FileInputStream(f);
-					insertFile(null, f, StreamUtil.readFully(fi, f.length()), f.lastModified(), parentId);
-					fi.close();
+					submitFile(f, parentId, completion);
 				}
 			} else if (f.isDirectory()) {
 				Log.i(TAG, "New directory: %s", f.getPath());
 				directoriesToAdd.add(f);
 			}
 
-			int nextPct = i * 100 / files.size();
+			int nextPct = i ++ * 100 / files.size();
 			if (pct != nextPct) {
 				pct = nextPct;
 				sendUpdate(pct);
 			}
 		}
-		db.setTransactionSuccessful();
-		db.endTransaction();
 		sendUpdate(100);
 
 		for (File f : directoriesToAdd) {
-			/* This is unfortunate, we need to create the directory before we can recurse into it.
-			 * Thankfully the transactionality here is not critical as we are talking about
-			 * real files here, a future scan will look them up just fine. */
+			/* We need the row id of the directory before we can recurse into it. The writer
+			 * hands it back as soon as the row is inserted, without waiting for the commit.
+			 * If the scan dies before the commit, the next scan just finds the files again. */
 			long rowId = insertDirectory(f.getName(), parentId);
-			scanFiles(f, rowId);
+			scanFiles(f, rowId, true);
 		}
 
 		for (File f : songLengthsToDo) {
-			db.beginTransaction();
-			bind(filesStatement, FILES_PARENT_ID, parentId);
-			bind(filesStatement, FILES_FILENAME, f.getName());
-			bind(filesStatement, FILES_MODIFY_TIME, f.lastModified());
-			bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_SONGLENGTH);
-			bind(filesStatement, FILES_URL);
-			bind(filesStatement, FILES_TITLE, f.getName());
-			bind(filesStatement, FILES_COMPOSER);
-			bind(filesStatement, FILES_DATE);
-			bind(filesStatement, FILES_FORMAT);
-			long rowId = filesStatement.executeInsert();
 			FileInputStream fi = new FileInputStream(f);
-			scanSonglengthsTxt(rowId, fi);
-			fi.close();
-			db.setTransactionSuccessful();
-			db.endTransaction();
+			try {
+				insertSonglengths(parentId, f.getName(), f.lastModified(), StreamUtil.readFully(fi, f.length()));
+			}
+			finally {
+				fi.close();
+			}
 		}
 
 		for (File f : zipsToScan) {
-			db.beginTransaction();
-			bind(filesStatement, FILES_PARENT_ID, parentId);
-			bind(filesStatement, FILES_FILENAME, f.getName());
-			bind(filesStatement, FILES_MODIFY_TIME, f.lastModified());
-			bind(filesStatement, FILES_TYPE, SongDatabase.TYPE_ZIP);
-			bind(filesStatement, FILES_URL, "file://" + Uri.encode(f.getAbsolutePath(), "/"));
-			bind(filesStatement, FILES_TITLE, f.getName().substring(0, f.getName().length() - 4));
-			bind(filesStatement, FILES_COMPOSER);
-			bind(filesStatement, FILES_DATE);
-			bind(filesStatement, FILES_FORMAT);
-			long rowId = filesStatement.executeInsert();
-			scanZip(f, rowId);
-			db.setTransactionSuccessful();
-			db.endTransaction();
-		}
-
-		/* Continue scanning into found directories */
-		for (Entry<Long, File> e : directoriesToRecurse.entrySet()) {
-			scanFiles(e.getValue(), e.getKey());
-		}
-	}
-
-	private void scanSonglengthsTxt(long fileId, InputStream is) throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(is, ISO88591));
-
-		Pattern md5AndTimes = Pattern.compile("([a-fA-f0-9]{32})=(.*)");
-		Pattern timestamps = Pattern.compile("([0-9]{1,2}):([0-9]{2})");
-
-		String line;
-		while (null != (line = br.readLine())) {
-			Matcher m = md5AndTimes.matcher(line);
-			if (! m.matches()) {
+			long rowId = insertNode(parentId, f.getName(), null, SongDatabase.TYPE_ZIP,
+					"file://" + Uri.encode(f.getAbsolutePath(), "/"), f.getName().substring(0, f.getName().length() - 4));
+			try {
+				scanZip(f, rowId, f.lastModified(), completion);
+			}
+			catch (ZipException ze) {
+				Log.w(TAG, "Skipping broken zip " + f.getPath(), ze);
+				/* Nothing more can be had from it until it changes. */
+				markComplete(rowId, f.lastModified(), null);
+			}
+		}
+
+		completion.done();
+
+		/* Continue scanning into found directories, which are rescanned on their own if
+		 * only some changed directories are being looked at. */
+		if (directories == null || subtrees) {
+			for (Entry<Long, File> e : directoriesToRecurse.entrySet()) {
+				scanFiles(e.getValue(), e.getKey(), ! unchangedDirectories.contains(e.getKey()));
+			}
+		}
+	}
+
+	/** @return number of entries of a directory the scanner looks at, -1 if it can't be listed */
+	private static int countEntries(File dir) {
+		String[] names = dir.list();
+		if (names == null) {
+			return -1;
+		}
+		int n = 0;
+		for (String name : names) {
+			if (! name.startsWith(".")) {
+				n ++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Import the subsong lengths of a Songlengths.txt. The HVSC one has hundreds
+	 * of thousands of lines, so it is parsed straight from its bytes rather than
+	 * through a reader and regular expressions. Song lines look like
+	 * {@code <md5 in hex>=m:ss m:ss.mmm(G) ...}; everything else is a comment or
+	 * section header.
+	 * <p>
+	 * Runs on the writer thread, so all rows go into the writer's transaction.
+	 *
+	 * @param fileId row of the Songlengths.txt node
+	 * @param data contents of the file
+	 */
+	private void scanSonglengthsTxt(long fileId, byte[] data) {
+		long importStart = System.currentTimeMillis();
+		char[] md5 = new char[32];
+		int rows = 0;
+		int pos = 0;
+		while (pos < data.length) {
+			int end = pos;
+			while (end < data.length && data[end] != '\n') {
+				end ++;
+			}
+			rows += scanSonglengthsLine(fileId, data, pos, end, md5);
+			pos = end + 1;
+		}
+
+		long elapsed = System.currentTimeMillis() - importStart;
+		Log.i(TAG, "Imported %d song lengths in %d ms, %d rows/s", rows, elapsed, rows * 1000L / Math.max(elapsed, 1));
+	}
+
+	/**
+	 * Insert the lengths of one line of Songlengths.txt.
+	 *
+	 * @param fileId row of the Songlengths.txt node
+	 * @param data contents of the file
+	 * @param pos start of the line
+	 * @param end end of the line, exclusive
+	 * @param md5 scratch buffer for the md5
+	 * @return number of rows inserted
+	 */
+	private int scanSonglengthsLine(long fileId, byte[] data, int pos, int end, char[] md5) {
+		if (end - pos < 33 || data[pos + 32] != '=') {
+			return 0;
+		}
+		for (int i = 0; i < 32; i ++) {
+			int digit = Character.digit(data[pos + i], 16);
+			if (digit < 0) {
+				return 0;
+			}
+			md5[i] = Character.forDigit(digit, 16);
+		}
+		songlengthStatement.bindLong(SONGLENGTH_FILE_ID, fileId);
+		songlengthStatement.bindString(SONGLENGTH_MD5, new String(md5));
+
+		int song = 0;
+		pos += 33;
+		while (pos < end) {
+			if (! isDigit(data[pos])) {
+				pos ++;
 				continue;
 			}
-			String md5 = m.group(1).toLowerCase(Locale.ROOT);
-			String times = m.group(2);
 
-			m = timestamps.matcher(times);
-			int song = 0;
-			while (m.find()) {
-				int minutes = Integer.valueOf(m.group(1));
-				int seconds = Integer.valueOf(m.group(2));
-				bind(songlengthStatement, SONGLENGTH_FILE_ID, fileId);
-				bind(songlengthStatement, SONGLENGTH_MD5, md5);
-				bind(songlengthStatement, SONGLENGTH_SUBSONG, ++ song);
-				bind(songlengthStatement, SONGLENGTH_TIME_MS, (minutes * 60 + seconds) * 1000);
-				songlengthStatement.executeInsert();
+			long minutes = 0;
+			while (pos < end && isDigit(data[pos])) {
+				minutes = minutes * 10 + data[pos ++] - '0';
+			}
+			if (pos == end || data[pos] != ':') {
+				continue;
+			}
+			pos ++;
+
+			int seconds = 0;
+			int digits = 0;
+			while (pos < end && isDigit(data[pos])) {
+				seconds = seconds * 10 + data[pos ++] - '0';
+				digits ++;
+			}
+			if (digits == 0) {
+				continue;
+			}
+
+			int millis = 0;
+			if (pos < end && data[pos] == '.') {
+				pos ++;
+				for (int scale = 100; pos < end && isDigit(data[pos]); scale /= 10) {
+					millis += (data[pos ++] - '0') * scale;
+				}
 			}
+
+			/* Attributes such as (G) or (M) qualify the length; skip them whole,
+			 * so that nothing in them is taken for the next length. */
+			while (pos < end && data[pos] == ' ') {
+				pos ++;
+			}
+			if (pos < end && data[pos] == '(') {
+				while (pos < end && data[pos ++] != ')') {
+				}
+			}
+
+			songlengthStatement.bindLong(SONGLENGTH_SUBSONG, ++ song);
+			songlengthStatement.bindLong(SONGLENGTH_TIME_MS, Math.min((minutes * 60 + seconds) * 1000 + millis, Integer.MAX_VALUE));
+			songlengthStatement.executeInsert();
 		}
+		return song;
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
 	}
 
 	private void doScan(File modsDir) throws IOException {
+		startTime = System.currentTimeMillis();
 		if (full) {
 			sendUpdate(0);
 			db.delete("files", null, null);
 			sendUpdate(50);
 			db.delete("songlength", null, null);
+			db.delete("zipentry", null, null);
 			sendUpdate(100);
 		}
-		scanFiles(modsDir, null);
+
+		/* The queue bound keeps the walker from reading far ahead of the workers;
+		 * when it is full, the walker identifies the file itself. */
+		int threads = Runtime.getRuntime().availableProcessors();
+		workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+		writer.start();
+		try {
+			if (directories == null) {
+				scanFiles(modsDir, null, true);
+			} else {
+				for (File dir : directories) {
+					if (dir.equals(modsDir)) {
+						scanFiles(dir, null, true);
+					} else {
+						long id = findDirectory(modsDir, dir);
+						if (id != -1 && dir.isDirectory()) {
+							scanFiles(dir, id, true);
+						}
+					}
+				}
+			}
+		}
+		finally {
+			workers.shutdown();
+			try {
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			writer.finish();
+		}
+
+		Log.i(TAG, "Identified %d files in %d ms with %d workers, %d files/s, %d kB read, %d copies of songs already seen",
+				filesIdentified.get(), System.currentTimeMillis() - startTime, threads, getFilesPerSecond(), bytesRead.get() >> 10,
+				duplicatesIdentified.get());
+		if (directories != null && ! subtrees) {
+			Log.i(TAG, "Indexed %d changed directories %d ms after the first change",
+					directories.size(), System.currentTimeMillis() - changeTime);
+		}
+
+		if (full || directories == null || songlengthsChanged) {
+			Application.getSongDatabase().rebuildSongLengths();
+		}
+		if (songsAdded) {
+			Application.getSongDatabase().hashCopyCandidates();
+		}
+	}
+
+	/**
+	 * Find the row of a scanned directory by following its path from the collection root.
+	 *
+	 * @param root collection root
+	 * @param dir directory below the root
+	 * @return row id, or -1 if the directory has not been scanned
+	 */
+	private long findDirectory(File root, File dir) {
+		String rootPath = root.getPath() + "/";
+		if (! dir.getPath().startsWith(rootPath)) {
+			return -1;
+		}
+
+		Long id = null;
+		for (String name : dir.getPath().substring(rootPath.length()).split("/")) {
+			Cursor c = db.query("files", new String[] { BaseColumns._ID },
+					(id == null ? "parent_id IS NULL" : "parent_id = " + id) + " AND filename = ? AND type = ?",
+					new String[] { name, String.valueOf(SongDatabase.TYPE_DIRECTORY) },
+					null, null, null);
+			try {
+				if (! c.moveToFirst()) {
+					return -1;
+				}
+				id = c.getLong(0);
+			}
+			finally {
+				c.close();
+			}
+		}
+		return id;
 	}
 }
@@ -0,0 +1,297 @@
+package com.ssb.droidsound.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+
+import com.ssb.droidsound.database.SongDatabase;
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * Search-as-you-type for the suggestions of the SearchView. Keystrokes are
+ * debounced, and a query that is superseded while it runs is cancelled, so at
+ * most one query executes at a time no matter how fast the user types.
+ * <p>
+ * Results are kept in memory. When the query merely extends the previous one
+ * and the previous result set was complete, the new results are filtered from
+ * it without touching the database. Recent queries are answered from an LRU cache.
+ * <p>
+ * All methods must be called from the main thread, and the listener is called there.
+ */
+public class SuggestionSearch {
+	private static final String TAG = SuggestionSearch.class.getSimpleName();
+
+	private static final long DEBOUNCE_MS = 150;
+	private static final int CACHE_SIZE = 32;
+
+	public interface Listener {
+		/**
+		 * New suggestions are available.
+		 *
+		 * @param query the query they are for
+		 * @param results cursor over the songs, with the columns of {@link SongDatabase#search(String, SongDatabase.Sort)}
+		 */
+		void onResults(String query, Cursor results);
+	}
+
+	/** Songs found for a query, materialized so they can be reused. */
+	private static class Result {
+		private final String query;
+		private final String[] columns;
+		private final List<Object[]> rows;
+		/** False if the search limit cut the result set short. */
+		private final boolean complete;
+
+		private Result(String query, String[] columns, List<Object[]> rows) {
+			this.query = query;
+			this.columns = columns;
+			this.rows = rows;
+			complete = rows.size() < SongDatabase.SEARCH_LIMIT;
+		}
+
+		private Cursor toCursor() {
+			MatrixCursor c = new MatrixCursor(columns, rows.size());
+			for (Object[] row : rows) {
+				c.addRow(row);
+			}
+			return c;
+		}
+	}
+
+	private final SongDatabase db;
+	private final Listener listener;
+	private final Handler handler = new Handler();
+	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	private final Map<String, Result> cache = new LinkedHashMap<String, Result>(CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** Result most recently delivered to the listener. */
+	private Result last;
+	/** Query waiting for the debounce delay, or executing. */
+	private String pending;
+	private CancellationSignal running;
+
+	private final Runnable startPending = new Runnable() {
+		@Override
+		public void run() {
+			execute(pending);
+		}
+	};
+
+	public SuggestionSearch(SongDatabase db, Listener listener) {
+		this.db = db;
+		this.listener = listener;
+	}
+
+	/**
+	 * Search for a new query, superseding any previous one.
+	 *
+	 * @param query as typed
+	 */
+	public void setQuery(String query) {
+		cancel();
+
+		/* The query is kept as typed, so that refine() folds it as the index does. */
+		Result cached = cache.get(query);
+		if (cached == null) {
+			cached = refine(query);
+		}
+		if (cached != null) {
+			deliver(cached);
+			return;
+		}
+
+		pending = query;
+		handler.postDelayed(startPending, DEBOUNCE_MS);
+	}
+
+	/** Forget the pending query, and cancel it if it is already executing. */
+	public void cancel() {
+		handler.removeCallbacks(startPending);
+		pending = null;
+		if (running != null) {
+			running.cancel();
+			running = null;
+		}
+	}
+
+	/** Stop for good, releasing the search thread. */
+	public void close() {
+		cancel();
+		executor.shutdown();
+	}
+
+	/** Forget all results, because the collection has changed. */
+	public void clearCache() {
+		cache.clear();
+		last = null;
+	}
+
+	private void deliver(Result result) {
+		cache.put(result.query, result);
+		last = result;
+		listener.onResults(result.query, result.toCursor());
+	}
+
+	private void execute(final String query) {
+		final CancellationSignal signal = new CancellationSignal();
+		running = signal;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				long startTime = System.currentTimeMillis();
+				final Result result;
+				try {
+					Cursor c = db.search(query, SongDatabase.Sort.TITLE, signal);
+					try {
+						result = new Result(query, c.getColumnNames(), readRows(c));
+					}
+					finally {
+						c.close();
+					}
+				}
+				catch (OperationCanceledException oce) {
+					Log.i(TAG, "Cancelled search for '%s'", query);
+					return;
+				}
+				Log.i(TAG, "Searched '%s' in %d ms", query, System.currentTimeMillis() - startTime);
+
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						if (running == signal) {
+							running = null;
+							pending = null;
+							deliver(result);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private static List<Object[]> readRows(Cursor c) {
+		List<Object[]> rows = new ArrayList<Object[]>(c.getCount());
+		while (c.moveToNext()) {
+			Object[] row = new Object[c.getColumnCount()];
+			for (int i = 0; i < row.length; i ++) {
+				switch (c.getType(i)) {
+				case Cursor.FIELD_TYPE_INTEGER:
+					row[i] = c.getLong(i);
+					break;
+				case Cursor.FIELD_TYPE_NULL:
+					row[i] = null;
+					break;
+				default:
+					row[i] = c.getString(i);
+					break;
+				}
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	/**
+	 * Filter the results of the new query from the last result, if they are
+	 * sure to be a subset of it. Adding characters to a query only makes its
+	 * last word longer or adds words, which can't match more songs.
+	 *
+	 * @param query
+	 * @return result, or null if the database must be searched
+	 */
+	private Result refine(final String query) {
+		if (last == null || ! last.complete || ! query.startsWith(last.query)
+				|| db.getSearchWords(last.query).isEmpty()) {
+			return null;
+		}
+
+		List<String> words = db.getSearchWords(query);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (Object[] row : last.rows) {
+			if (matches(words, row)) {
+				rows.add(row);
+			}
+		}
+
+		/* Same order as the database would give, see SongDatabase.search(). */
+		final String lowerQuery = query.toLowerCase(Locale.ROOT);
+		Collections.sort(rows, new Comparator<Object[]>() {
+			@Override
+			public int compare(Object[] a, Object[] b) {
+				int d = rank(lowerQuery, a) - rank(lowerQuery, b);
+				if (d == 0) {
+					d = lower(a[SongDatabase.COL_TITLE]).compareTo(lower(b[SongDatabase.COL_TITLE]));
+				}
+				if (d == 0) {
+					d = lower(a[SongDatabase.COL_FILENAME]).compareTo(lower(b[SongDatabase.COL_FILENAME]));
+				}
+				return d;
+			}
+		});
+		return new Result(query, last.columns, rows);
+	}
+
+	private static String lower(Object field) {
+		return field != null ? String.valueOf(field).toLowerCase(Locale.ROOT) : "";
+	}
+
+	private static int rank(String query, Object[] row) {
+		if (lower(row[SongDatabase.COL_TITLE]).startsWith(query)) {
+			return 0;
+		}
+		if (lower(row[SongDatabase.COL_COMPOSER]).startsWith(query)) {
+			return 1;
+		}
+		if (lower(row[SongDatabase.COL_FILENAME]).startsWith(query)) {
+			return 2;
+		}
+		return 3;
+	}
+
+	private static String field(Object field) {
+		return field != null ? String.valueOf(field) : "";
+	}
+
+	/** @return true if every word begins some word of the indexed columns */
+	private boolean matches(List<String> words, Object[] row) {
+		List<String> fieldWords = new ArrayList<String>();
+		fieldWords.addAll(db.getSearchWords(field(row[SongDatabase.COL_TITLE])));
+		fieldWords.addAll(db.getSearchWords(field(row[SongDatabase.COL_COMPOSER])));
+		fieldWords.addAll(db.getSearchWords(field(row[SongDatabase.COL_FILENAME])));
+		fieldWords.addAll(db.getSearchWords(field(row[SongDatabase.COL_FORMAT])));
+
+		for (String word : words) {
+			boolean found = false;
+			for (String fieldWord : fieldWords) {
+				if (fieldWord.startsWith(word)) {
+					found = true;
+					break;
+				}
+			}
+			if (! found) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -52,6 +52,18 @@ public class PlayQueue {
 		return musicList.get(musicListPos);
 	}
 
+	/**
+	 * Return the song that {@link #next()} would move to, without moving there.
+	 *
+	 * @return next song, or null if the queue is empty
+	 */
+	public FilesEntry peekNext() {
+		if (musicList.isEmpty()) {
+			return null;
+		}
+		return musicList.get((musicListPos + 1) % musicList.size());
+	}
+
 	public FilesEntry getCurrent() {
 		if (musicListPos >= musicList.size()) {
 			return null;
@@ -1,22 +1,26 @@
 package com.ssb.droidsound.database;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.URL;
 import java.net.URLConnection;
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
 import android.provider.BaseColumns;
 
 import com.ssb.droidsound.app.Application;
@@ -24,9 +28,11 @@ import com.ssb.droidsound.async.Scanner;
 import com.ssb.droidsound.bo.FilesEntry;
 import com.ssb.droidsound.bo.Playlist;
 import com.ssb.droidsound.bo.SongFileData;
+import com.ssb.droidsound.utils.ArchiveCache;
+import com.ssb.droidsound.utils.HashUtil;
 import com.ssb.droidsound.utils.Log;
 import com.ssb.droidsound.utils.StreamUtil;
-import com.ssb.droidsound.utils.ZipReader;
+import com.ssb.droidsound.utils.ZipDirectory;
 
 /**
  * This class represents the known collection of songs.
@@ -55,6 +61,9 @@ public class SongDatabase {
 	public static final int COL_TITLE = 6;
 	public static final int COL_COMPOSER = 7;
 	public static final int COL_DATE = 8;
+	/** Maximum number of songs returned by {@link #search(String, Sort)}. */
+	public static final int SEARCH_LIMIT = 100;
+
 	public static final int TYPE_ZIP = 1;
 	public static final int TYPE_DIRECTORY = 2;
 	public static final int TYPE_PLAYLIST = 3;
@@ -62,23 +71,39 @@ public class SongDatabase {
 	public static final int TYPE_MUS_FOLDER = 5;
 	public static final int TYPE_SONGLENGTH = 6;
 
-	private static final int DB_VERSION = 3;
+	private static final int DB_VERSION = 11;
 	private static final String TAG = SongDatabase.class.getSimpleName();
 	private static final String[] COLUMNS = new String[] { "_id", "parent_id", "filename", "type", "format", "url", "title", "composer", "date" };
 
 	private final SQLiteDatabase db;
 
+	/** True if the search index folds the case and diacritics of all letters, false if only ASCII case. */
+	private final boolean unicodeSearch;
+
+	/** Archives kept open between plays of files that are not in the zip entry index. */
+	private final ArchiveCache archives = new ArchiveCache(4);
+
+	/** Snapshot of the songlength table, written after each scan. */
+	private final File songlengthFile;
+
+	/** Songlength table in memory, mapped from the snapshot at startup or loaded when first needed. */
+	private volatile SonglengthIndex songlengths;
+
 	public SongDatabase(Context ctx) {
 		File f = ctx.getDatabasePath("index.db");
 		f.getParentFile().mkdirs();
+		songlengthFile = ctx.getDatabasePath("songlengths.idx");
 
 		db = SQLiteDatabase.openOrCreateDatabase(f, null);
 		db.enableWriteAheadLogging();
 
 		if (db.getVersion() != DB_VERSION) {
 			Log.i(TAG, "Deleting old schema (if any)...");
+			db.execSQL("DROP TABLE IF EXISTS files_fts;");
+			db.execSQL("DROP TABLE IF EXISTS zipentry;");
 			db.execSQL("DROP TABLE IF EXISTS songlength;");
 			db.execSQL("DROP TABLE IF EXISTS files;");
+			songlengthFile.delete();
 
 			Log.i(TAG, "Creating new schema...");
 			/* Record seen songs. */
@@ -90,11 +115,48 @@ public class SongDatabase {
 					+ "url TEXT,"
 					+ "format TEXT,"
 					+ "modify_time INTEGER,"
+					+ "child_count INTEGER,"
 					+ "title TEXT,"
 					+ "composer TEXT,"
-					+ "date INTEGER"
+					+ "date INTEGER,"
+					+ "identify_key TEXT,"
+					+ "content_hash TEXT"
 					+ ");");
+			/* identify_key is the size of a song and the hash of the bytes read to
+			 * identify it, see Scanner. Songs with equal keys are identified alike,
+			 * but the rest of their content may differ, so they need not be copies.
+			 * content_hash is the size and the hash of the whole song. Only copies
+			 * have equal ones, and as they also have equal keys, only songs sharing
+			 * a key need it. See hashCopyCandidates(). */
 			db.execSQL("CREATE UNIQUE INDEX ui_files_parent_filename ON files (parent_id, filename);");
+			db.execSQL("CREATE INDEX ui_files_identify_key ON files (identify_key);");
+			db.execSQL("CREATE INDEX ui_files_content_hash ON files (content_hash);");
+
+			/* Full-text index of the songs for search. It reads its content from
+			 * files, and the triggers keep it up to date as the scanner inserts and
+			 * deletes rows. The prefix indexes make typing a few letters cheap.
+			 * The unicode61 tokenizer folds the case of all letters and drops their
+			 * diacritics. SQLite before 3.7.13, up to Android 4.4, lacks it, and the
+			 * simple tokenizer there only folds ASCII. See getSearchWords(). */
+			try {
+				db.execSQL(createSearchIndex("unicode61"));
+			}
+			catch (SQLiteException e) {
+				Log.w(TAG, "No unicode61 tokenizer, search folds ASCII only", e);
+				db.execSQL(createSearchIndex("simple"));
+			}
+			db.execSQL("CREATE TRIGGER files_fts_ai AFTER INSERT ON files WHEN new.type = " + TYPE_FILE + " BEGIN "
+					+ "INSERT INTO files_fts (docid, title, composer, filename, format) VALUES (new._id, new.title, new.composer, new.filename, new.format); "
+					+ "END;");
+			db.execSQL("CREATE TRIGGER files_fts_bd BEFORE DELETE ON files WHEN old.type = " + TYPE_FILE + " BEGIN "
+					+ "DELETE FROM files_fts WHERE docid = old._id; "
+					+ "END;");
+			db.execSQL("CREATE TRIGGER files_fts_bu BEFORE UPDATE ON files WHEN old.type = " + TYPE_FILE + " BEGIN "
+					+ "DELETE FROM files_fts WHERE docid = old._id; "
+					+ "END;");
+			db.execSQL("CREATE TRIGGER files_fts_au AFTER UPDATE ON files WHEN new.type = " + TYPE_FILE + " BEGIN "
+					+ "INSERT INTO files_fts (docid, title, composer, filename, format) VALUES (new._id, new.title, new.composer, new.filename, new.format); "
+					+ "END;");
 
 			/* If a Songlengths.txt file is seen, we parse and store it here.
 			 * Rules are: if subsong is null, then the play length governs all
@@ -113,18 +175,140 @@ public class SongDatabase {
 			db.execSQL("CREATE UNIQUE INDEX ui_songlength_md5_subsong ON songlength (file_id, md5, subsong);");
 			db.execSQL("CREATE INDEX ui_songlength_file ON songlength (file_id);");
 
+			/* Location of every file inside the scanned zips, so that playback can
+			 * read an entry without parsing the central directory. The rows are
+			 * only valid while the zip still has the recorded modify time. */
+			db.execSQL("CREATE TABLE IF NOT EXISTS zipentry ("
+					+ BaseColumns._ID + " INTEGER PRIMARY KEY,"
+					+ "zip_id NOT NULL REFERENCES files ON DELETE CASCADE,"
+					+ "zip_path TEXT NOT NULL,"
+					+ "zip_modify_time INTEGER NOT NULL,"
+					+ "path TEXT NOT NULL,"
+					+ "local_header_offset INTEGER NOT NULL,"
+					+ "compressed_size INTEGER NOT NULL,"
+					+ "size INTEGER NOT NULL,"
+					+ "method INTEGER NOT NULL"
+					+ ");");
+			db.execSQL("CREATE UNIQUE INDEX ui_zipentry_zip_path ON zipentry (zip_path, path);");
+			db.execSQL("CREATE INDEX ui_zipentry_zip ON zipentry (zip_id);");
+
 			db.setVersion(DB_VERSION);
 			Log.i(TAG, "Schema complete.");
 		}
+
+		Cursor c = db.rawQuery("SELECT sql FROM sqlite_master WHERE name = 'files_fts'", null);
+		try {
+			unicodeSearch = c.moveToFirst() && c.getString(0).contains("unicode61");
+		}
+		finally {
+			c.close();
+		}
+
+		if (songlengthFile.exists()) {
+			try {
+				songlengths = SonglengthIndex.map(songlengthFile);
+			}
+			catch (IOException ioe) {
+				Log.w(TAG, "Ignoring broken songlength snapshot", ioe);
+			}
+		}
+	}
+
+	private static String createSearchIndex(String tokenizer) {
+		return "CREATE VIRTUAL TABLE files_fts USING fts4("
+				+ "content=\"files\","
+				+ "title,"
+				+ "composer,"
+				+ "filename,"
+				+ "format,"
+				+ "prefix=\"1,2,3\","
+				+ "tokenize=" + tokenizer
+				+ ");";
+	}
+
+	/**
+	 * Split a search query, or a field of a song, into words folded the way the
+	 * tokenizer of the search index folds them. A song is found by a query when
+	 * each word of the query begins some word of its fields.
+	 *
+	 * @param text query or field, as typed or stored
+	 * @return folded words, possibly none
+	 */
+	public List<String> getSearchWords(String text) {
+		String folded;
+		String separators;
+		if (unicodeSearch) {
+			folded = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+			separators = "[^\\p{L}\\p{N}]+";
+		} else {
+			/* The simple tokenizer keeps every non-ASCII character as it is. */
+			StringBuilder sb = new StringBuilder(text);
+			for (int i = 0; i < sb.length(); i ++) {
+				char ch = sb.charAt(i);
+				if (ch >= 'A' && ch <= 'Z') {
+					sb.setCharAt(i, (char) (ch + 'a' - 'A'));
+				}
+			}
+			folded = sb.toString();
+			separators = "[^a-z0-9\\u0080-\\uffff]+";
+		}
+
+		List<String> words = new ArrayList<String>();
+		for (String word : folded.split(separators)) {
+			if (! "".equals(word)) {
+				words.add(word);
+			}
+		}
+		return words;
 	}
 
 	public Cursor search(String query, Sort sorting) {
-		String q = "%" + query.toLowerCase(Locale.ROOT) + "%" ;
-		return db.query("files",
+		return search(query, sorting, null);
+	}
+
+	/**
+	 * Search songs by words of their title, composer, filename or format.
+	 * Each word of the query matches words beginning with it. Songs whose title,
+	 * composer or filename begins with the query as typed are ranked first.
+	 *
+	 * @param query
+	 * @param sorting order within the same rank
+	 * @param signal cancels the query while it executes, or null
+	 * @return cursor with at most {@link #SEARCH_LIMIT} songs
+	 */
+	public Cursor search(String query, Sort sorting, CancellationSignal signal) {
+		String q = query.toLowerCase(Locale.ROOT);
+		StringBuilder match = new StringBuilder();
+		for (String word : getSearchWords(query)) {
+			match.append(match.length() != 0 ? " " : "").append(word).append('*');
+		}
+		if (match.length() == 0) {
+			return searchLike(q, sorting, signal);
+		}
+
+		String prefix = q + "%";
+		return db.query(false, "files",
+				COLUMNS,
+				"_id IN (SELECT docid FROM files_fts WHERE files_fts MATCH ?) AND type = ?",
+				new String[] { match.toString(), String.valueOf(TYPE_FILE), prefix, prefix, prefix },
+				null, null,
+				"CASE WHEN lower(title) LIKE ? THEN 0 WHEN lower(composer) LIKE ? THEN 1 WHEN lower(filename) LIKE ? THEN 2 ELSE 3 END, " + sorting.toSQL(),
+				String.valueOf(SEARCH_LIMIT),
+				signal
+		);
+	}
+
+	/**
+	 * Search by substring, for queries that have no words to look up in the index.
+	 */
+	private Cursor searchLike(String query, Sort sorting, CancellationSignal signal) {
+		String q = "%" + query + "%" ;
+		return db.query(false, "files",
 				COLUMNS,
 				"(lower(title) LIKE ? OR lower(composer) LIKE ? OR lower(filename) LIKE ?) AND type = ?", new String[] { q, q, q, String.valueOf(TYPE_FILE) },
 				null, null, sorting.toSQL(),
-				"100"
+				String.valueOf(SEARCH_LIMIT),
+				signal
 		);
 	}
 
@@ -153,6 +337,109 @@ public class SongDatabase {
 		);
 	}
 
+	/**
+	 * Return songs that are in the collection more than once, such as the same
+	 * tune in a directory and in a compilation zip. Copies are adjacent.
+	 *
+	 * @return Cursor to read from
+	 */
+	public Cursor getDuplicates() {
+		return db.query(
+				"files",
+				COLUMNS,
+				"type = ? AND content_hash IN (SELECT content_hash FROM files WHERE type = ? AND content_hash IS NOT NULL GROUP BY content_hash HAVING COUNT(*) > 1)",
+				new String[] { String.valueOf(TYPE_FILE), String.valueOf(TYPE_FILE) },
+				null, null, "content_hash, " + Sort.TITLE.toSQL()
+		);
+	}
+
+	/**
+	 * The content hash stored for a song: its size and the xxHash64 of all of it.
+	 *
+	 * @param data the whole song
+	 * @return hash
+	 */
+	public static String contentHash(byte[] data) {
+		return Long.toHexString(data.length) + ":" + Long.toHexString(HashUtil.xxHash64(data));
+	}
+
+	/**
+	 * Hash the songs that may be copies of others and are not hashed yet. Copies
+	 * have equal identify keys, so only the songs sharing a key are read in full.
+	 * Called on the scanning thread after songs have been added.
+	 */
+	public void hashCopyCandidates() {
+		long startTime = System.currentTimeMillis();
+		List<Long> ids = new ArrayList<Long>();
+		List<String> urls = new ArrayList<String>();
+		Cursor c = db.query("files",
+				new String[] { BaseColumns._ID, "url" },
+				"type = ? AND content_hash IS NULL AND identify_key IN (SELECT identify_key FROM files WHERE type = ? AND identify_key IS NOT NULL GROUP BY identify_key HAVING COUNT(*) > 1)",
+				new String[] { String.valueOf(TYPE_FILE), String.valueOf(TYPE_FILE) },
+				null, null, null
+		);
+		try {
+			while (c.moveToNext()) {
+				ids.add(c.getLong(0));
+				urls.add(c.getString(1));
+			}
+		}
+		finally {
+			c.close();
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
+
+		ContentValues values = new ContentValues();
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < ids.size(); i ++) {
+				byte[] data;
+				try {
+					data = readSong(Uri.parse(urls.get(i)));
+				}
+				catch (IOException ioe) {
+					Log.w(TAG, "Unable to hash " + urls.get(i), ioe);
+					continue;
+				}
+				if (data != null) {
+					values.put("content_hash", contentHash(data));
+					db.update("files", values, BaseColumns._ID + " = ?", new String[] { String.valueOf(ids.get(i)) });
+				}
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+		Log.i(TAG, "Hashed %d possible copies in %d ms", ids.size(), System.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * Read a song of the collection.
+	 *
+	 * @param url file:// or zip:// URL of the song
+	 * @return data of the song, or null if it is no longer there
+	 * @throws IOException
+	 */
+	private byte[] readSong(Uri url) throws IOException {
+		if ("zip".equals(url.getScheme())) {
+			return readZipEntry(new File(url.getPath()), url.getQueryParameter("path").replaceFirst("^/", ""));
+		}
+		File f = new File(url.getPath());
+		if (! f.isFile()) {
+			return null;
+		}
+		FileInputStream fi = new FileInputStream(f);
+		try {
+			return StreamUtil.readFully(fi, f.length());
+		}
+		finally {
+			fi.close();
+		}
+	}
+
 	/**
 	 * Return a particular file's data from collection.
 	 *
@@ -168,6 +455,48 @@ public class SongDatabase {
 		);
 	}
 
+	/**
+	 * Read a file from a zip. The location recorded by the scanner is used
+	 * when it is still valid, otherwise the archive's own directory.
+	 *
+	 * @param zipFile the archive
+	 * @param path full path of the entry inside the archive
+	 * @return data of the entry, or null if there is no such entry
+	 * @throws IOException
+	 */
+	private byte[] readZipEntry(File zipFile, String path) throws IOException {
+		Cursor c = db.query("zipentry",
+				new String[] { "local_header_offset", "compressed_size", "size", "method" },
+				"zip_path = ? AND path = ? AND zip_modify_time = ?",
+				new String[] { zipFile.getAbsolutePath(), path, String.valueOf(zipFile.lastModified()) },
+				null, null, null
+		);
+		try {
+			if (c.moveToFirst()) {
+				RandomAccessFile raf = new RandomAccessFile(zipFile, "r");
+				try {
+					return ZipDirectory.read(raf.getChannel(), c.getLong(0), c.getInt(3), c.getLong(1), c.getLong(2), c.getLong(2));
+				}
+				finally {
+					raf.close();
+				}
+			}
+		}
+		finally {
+			c.close();
+		}
+
+		Log.i(TAG, "Entry %s of %s is not indexed, reading the zip directory", path, zipFile.getPath());
+		ZipDirectory zip = archives.open(zipFile);
+		try {
+			ZipDirectory.Entry ze = zip.getEntry(path);
+			return ze != null ? zip.read(ze, ze.getSize()) : null;
+		}
+		finally {
+			zip.close();
+		}
+	}
+
 	public List<SongFileData> getSongFileData(FilesEntry song) throws IOException {
 		/* This system decodes the input and gets the file from the URL.
 		 * We currently support file:// and zip:// URLs. The zip URLs are our own invention.
@@ -191,27 +520,20 @@ public class SongDatabase {
 				name2 = new File(secondUrl.getQueryParameter("path"));
 			}
 
-			ZipFile zr = ZipReader.openZip(zipFilePath);
-			ZipEntry ze = zr.getEntry(name1.getPath());
-			InputStream is1 = zr.getInputStream(ze);
-			data1 = StreamUtil.readFully(is1, ze.getSize());
-			is1.close();
+			data1 = readZipEntry(zipFilePath, name1.getPath());
+			if (data1 == null) {
+				throw new FileNotFoundException("No " + name1.getPath() + " in " + zipFilePath.getPath());
+			}
 
 			/* If the name looks like there might be a secondary file, we extract that from zip also */
 			if (name2 != null) {
 				Log.i(TAG, "Reading secondary file: %s", name2);
-				ZipEntry ze2 = zr.getEntry(name2.getPath().replaceFirst("^/", ""));
-				if (ze2 != null) {
-					InputStream is2 = zr.getInputStream(ze2);
-					data2 = StreamUtil.readFully(is2, ze2.getSize());
-					is2.close();
-				} else {
+				data2 = readZipEntry(zipFilePath, name2.getPath().replaceFirst("^/", ""));
+				if (data2 == null) {
 					Log.i(TAG, "No secondary file found. Attempting to continue.");
 				}
 			}
 
-			zr.close();
-
 		} else if ("file".equals(url.getScheme()) || "http".equals(url.getScheme()) || "https".equals(url.getScheme())) {
 			Log.i(TAG, "Entry %s", url);
 			name1 = new File(url.getPath());
@@ -252,41 +574,41 @@ public class SongDatabase {
 	}
 
 	/**
-	 *
+	 * Look up the length of a subsong from the Songlengths.txt files seen by the scanner.
+	 * The lengths come from the snapshot mapped at startup, or if there is none yet,
+	 * the songlength table is loaded into memory on first use.
 	 *
 	 * @param md5 the plugin-generated md5sum for the tune
 	 * @param subsong subsong value 1 .. N and 0 is never valid)
-	 * @return
+	 * @return length in milliseconds, or -1 if unknown
 	 */
 	public int getSongLength(byte[] md5, int subsong) {
-		String hex = "";
-		for (byte b : md5) {
-			hex += String.format("%02x", b & 0xff);
+		SonglengthIndex index = songlengths;
+		if (index == null) {
+			long startTime = System.currentTimeMillis();
+			index = SonglengthIndex.load(db);
+			songlengths = index;
+			Log.i(TAG, "Loaded lengths of %d songs in %d ms", index.size(), System.currentTimeMillis() - startTime);
 		}
+		return index.get(md5, subsong);
+	}
 
-		int nonSubsongSpecificTime = -1;
-		int subsongSpecificTime = -1;
-		Cursor c = db.query("songlength",
-				new String[] { "subsong", "timeMs" },
-				"md5 = ?", new String[] { hex },
-				null, null, null
-		);
-		while (c.moveToNext()) {
-			int rowTime = c.getInt(1);
-			if (c.isNull(0)) {
-				nonSubsongSpecificTime = rowTime;
-				continue;
-			}
-
-			int rowSubsong = c.getInt(0);
-			if (rowSubsong == subsong) {
-				subsongSpecificTime = rowTime;
-			}
+	/**
+	 * Rebuild the songlength snapshot from the table, because the scanner has changed it.
+	 * Called on the scanning thread, so that playback never waits for the table.
+	 */
+	public void rebuildSongLengths() {
+		long startTime = System.currentTimeMillis();
+		SonglengthIndex index = SonglengthIndex.load(db);
+		songlengths = index;
+		try {
+			index.write(songlengthFile);
 		}
-		c.close();
-
-		Log.i(TAG, "Looking up songlength for (%s, %d) => %d ms (fallback: %d ms)", hex, subsong, subsongSpecificTime, nonSubsongSpecificTime);
-		return subsongSpecificTime != -1 ? subsongSpecificTime : nonSubsongSpecificTime;
+		catch (IOException ioe) {
+			Log.w(TAG, "Unable to write songlength snapshot", ioe);
+			songlengthFile.delete();
+		}
+		Log.i(TAG, "Wrote lengths of %d songs in %d ms", index.size(), System.currentTimeMillis() - startTime);
 	}
 
 	/**
@@ -335,4 +657,24 @@ public class SongDatabase {
 	public void scan(boolean full) {
 		new Scanner(db, full).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
 	}
+
+	/**
+	 * Rescan some directories of the collection that are known to have changed.
+	 *
+	 * @param directories the directories
+	 * @param changeTime time of the first change
+	 */
+	public void scan(Collection<File> directories, long changeTime) {
+		new Scanner(db, directories, changeTime).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
+
+	/**
+	 * Rescan the trees below some directories of the collection, skipping what
+	 * has not changed.
+	 *
+	 * @param directories the directories
+	 */
+	public void scanSubtrees(Collection<File> directories) {
+		new Scanner(db, directories).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	}
 }
@@ -0,0 +1,289 @@
+package com.ssb.droidsound.database;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Compact copy of the songlength table, for looking up subsong lengths without
+ * a query. It is built from the table after a scan, written to a file, and
+ * memory-mapped from there on the next start, so that the first song played
+ * does not have to wait for the table to be read.
+ * <p>
+ * The file is a header of four ints (magic, version, number of records, number
+ * of lengths), then the records sorted by md5, then the packed lengths. Each
+ * record is the 16-byte md5, the start and count of its subsong lengths in the
+ * packed lengths, and the length that applies to all subsongs not listed.
+ * Lengths are in milliseconds, -1 where unknown. A lookup is a binary search
+ * over the records and allocates nothing.
+ *
+ * @see SongDatabase#getSongLength(byte[], int)
+ */
+public class SonglengthIndex {
+	private static final int MAGIC = 0x4453534c; /* DSSL */
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final int RECORD_SIZE = 28;
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int lengthsOffset;
+
+	private SonglengthIndex(ByteBuffer buffer) throws IOException {
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not a songlength index");
+		}
+		size = buffer.getInt(8);
+		lengthsOffset = HEADER_SIZE + size * RECORD_SIZE;
+		if (size < 0 || buffer.capacity() != lengthsOffset + (long) buffer.getInt(12) * 4) {
+			throw new IOException("Truncated songlength index");
+		}
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Read the whole songlength table.
+	 *
+	 * @param db
+	 * @return index
+	 */
+	public static SonglengthIndex load(SQLiteDatabase db) {
+		Cursor c = db.query("songlength",
+				new String[] { "md5", "subsong", "timeMs" },
+				null, null,
+				null, null, "md5, subsong"
+		);
+		try {
+			Builder builder = new Builder(c.getCount());
+			String lastMd5 = null;
+			while (c.moveToNext()) {
+				String md5 = c.getString(0);
+				if (! md5.equals(lastMd5)) {
+					lastMd5 = md5;
+					builder.add(parseHex(md5, 0), parseHex(md5, 16));
+				}
+				if (c.isNull(1)) {
+					builder.setFallback(c.getInt(2));
+				} else {
+					builder.put(c.getInt(1), c.getInt(2));
+				}
+			}
+			return builder.build();
+		}
+		finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * Map an index written by {@link #write(File)}.
+	 *
+	 * @param f the file
+	 * @return index
+	 * @throws IOException if the file is missing or not a valid index
+	 */
+	public static SonglengthIndex map(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			/* The mapping stays valid after the file is closed. */
+			return new SonglengthIndex(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Save the index for {@link #map(File)}. The file is replaced atomically,
+	 * so a reader never sees a partial index.
+	 *
+	 * @param f the file
+	 * @throws IOException
+	 */
+	public void write(File f) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			ByteBuffer bb = buffer.duplicate();
+			bb.clear();
+			out.getChannel().write(bb);
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		if (! tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("Unable to replace " + f.getPath());
+		}
+	}
+
+	private static long parseHex(String hex, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 16; i ++) {
+			value = (value << 4) | Character.digit(hex.charAt(i), 16);
+		}
+		return value;
+	}
+
+	private static long toLong(byte[] md5, int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 8; i ++) {
+			value = (value << 8) | (md5[i] & 0xff);
+		}
+		return value;
+	}
+
+	/** Compare as unsigned, the order of the hex strings in the table. */
+	private static int compare(long a, long b) {
+		a ^= Long.MIN_VALUE;
+		b ^= Long.MIN_VALUE;
+		return a < b ? -1 : a > b ? 1 : 0;
+	}
+
+	private int find(long hi, long lo) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int record = HEADER_SIZE + mid * RECORD_SIZE;
+			int d = compare(buffer.getLong(record), hi);
+			if (d == 0) {
+				d = compare(buffer.getLong(record + 8), lo);
+			}
+			if (d < 0) {
+				low = mid + 1;
+			} else if (d > 0) {
+				high = mid - 1;
+			} else {
+				return record;
+			}
+		}
+		return -1;
+	}
+
+	/** @return number of md5s in the index */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param md5 the plugin-generated md5sum for the tune
+	 * @param subsong subsong value 1 .. N
+	 * @return length in milliseconds, or -1 if unknown
+	 */
+	public int get(byte[] md5, int subsong) {
+		if (md5 == null || md5.length != 16) {
+			return -1;
+		}
+
+		int record = find(toLong(md5, 0), toLong(md5, 8));
+		if (record < 0) {
+			return -1;
+		}
+		if (subsong >= 1 && subsong <= buffer.getInt(record + 20)) {
+			int length = buffer.getInt(lengthsOffset + (buffer.getInt(record + 16) + subsong - 1) * 4);
+			if (length != -1) {
+				return length;
+			}
+		}
+		return buffer.getInt(record + 24);
+	}
+
+	/**
+	 * Collects the rows of the table, which arrive ordered by md5 and subsong, so
+	 * the records come out sorted and each md5's subsong lengths can be appended
+	 * at the end of the packed array.
+	 */
+	private static class Builder {
+		private long[] keys;
+		private int[] start;
+		private int[] count;
+		private int[] fallback;
+		private int size;
+
+		private int[] lengths;
+		private int lengthsUsed;
+
+		private Builder(int rows) {
+			int capacity = Math.max(rows, 8);
+			keys = new long[capacity * 2];
+			start = new int[capacity];
+			count = new int[capacity];
+			fallback = new int[capacity];
+			lengths = new int[capacity];
+		}
+
+		private void add(long hi, long lo) {
+			if (size == start.length) {
+				int capacity = size * 2;
+				long[] grownKeys = new long[capacity * 2];
+				System.arraycopy(keys, 0, grownKeys, 0, size * 2);
+				keys = grownKeys;
+				start = grow(start, capacity, size);
+				count = grow(count, capacity, size);
+				fallback = grow(fallback, capacity, size);
+			}
+			keys[size * 2] = hi;
+			keys[size * 2 + 1] = lo;
+			start[size] = lengthsUsed;
+			fallback[size] = -1;
+			size ++;
+		}
+
+		private void setFallback(int timeMs) {
+			fallback[size - 1] = timeMs;
+		}
+
+		private void put(int subsong, int timeMs) {
+			if (subsong < 1) {
+				return;
+			}
+			int slot = size - 1;
+			int end = start[slot] + subsong;
+			if (end > lengths.length) {
+				lengths = grow(lengths, Math.max(end, lengths.length * 2), lengthsUsed);
+			}
+			for (int i = start[slot] + count[slot]; i < end; i ++) {
+				lengths[i] = -1;
+			}
+			lengths[end - 1] = timeMs;
+			count[slot] = Math.max(count[slot], subsong);
+			lengthsUsed = Math.max(lengthsUsed, end);
+		}
+
+		private static int[] grow(int[] array, int capacity, int used) {
+			int[] grown = new int[capacity];
+			System.arraycopy(array, 0, grown, 0, used);
+			return grown;
+		}
+
+		private SonglengthIndex build() {
+			ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE + size * RECORD_SIZE + lengthsUsed * 4);
+			bb.putInt(MAGIC);
+			bb.putInt(VERSION);
+			bb.putInt(size);
+			bb.putInt(lengthsUsed);
+			for (int i = 0; i < size; i ++) {
+				bb.putLong(keys[i * 2]);
+				bb.putLong(keys[i * 2 + 1]);
+				bb.putInt(start[i]);
+				bb.putInt(count[i]);
+				bb.putInt(fallback[i]);
+			}
+			bb.asIntBuffer().put(lengths, 0, lengthsUsed);
+			try {
+				return new SonglengthIndex(bb);
+			}
+			catch (IOException ioe) {
+				throw new IllegalStateException(ioe);
+			}
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package com.ssb.droidsound.plugins;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
 import com.ssb.droidsound.utils.HashUtil;
+import com.ssb.droidsound.utils.SampleConverter;
 
 /**
  * Base class for the implementation of different
@@ -33,6 +35,18 @@ public abstract class DroidSoundPlugin {
 
 	private static final MusicInfo EMPTY_INFO = new MusicInfo();
 
+	/** Array rendered into by the default {@link #getSoundData(ByteBuffer)} and {@link #getSoundData(float[])}. */
+	private short[] soundDataStage;
+
+	/** Header size of plugins whose {@link #getMusicInfo(String, byte[])} must see the whole file. */
+	protected static final int HEADER_WHOLE_FILE = Integer.MAX_VALUE;
+
+	/**
+	 * Directory of the in-memory files of the native plugins whose players
+	 * open their modules by name, see jni/common/memfile.h. It is not on disk.
+	 */
+	protected static final String MEMFILE_DIR = "/memfile/";
+
 	private static final List<DroidSoundPlugin> PLUGINS = Arrays.asList(
 			new VICEPlugin(),
 			new GMEPlugin(),
@@ -74,6 +88,32 @@ public abstract class DroidSoundPlugin {
 		return PLUGINS;
 	}
 
+	/**
+	 * Creates a new, unloaded instance of this plugin.
+	 * <p>
+	 * Only meaningful for plugins that return true from {@link #canLoadConcurrently()},
+	 * because the others share their native state between all instances anyway.
+	 *
+	 * @return A new instance of the same plugin class.
+	 */
+	public DroidSoundPlugin newInstance() {
+		try {
+			return getClass().newInstance();
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Whether all native state of this plugin lives behind its per-song handle,
+	 * so that a second instance can load and render a song while another one plays.
+	 *
+	 * @return True, if several instances may be loaded at once; false otherwise.
+	 */
+	public boolean canLoadConcurrently() {
+		return false;
+	}
+
 	/**
 	 * Performs an MD5 checksum check upon the given data.
 	 *
@@ -131,6 +171,68 @@ public abstract class DroidSoundPlugin {
 	 */
 	public abstract int getSoundData(short[] dest);
 
+	/**
+	 * Gets the sample data for the track currently being played into a direct
+	 * buffer, from its position up to its limit, and advances the position
+	 * past the samples generated.
+	 * <p>
+	 * Plugins whose native code can render straight into the buffer override
+	 * this, which saves pinning or copying an array on every call. The default
+	 * renders into an array and copies it over.
+	 *
+	 * @param dest Destination buffer, direct and in native byte order.
+	 *
+	 * @return The amount of generated samples.
+	 */
+	public int getSoundData(ByteBuffer dest) {
+		short[] stage = soundDataStage(dest.remaining() / 2);
+		int length = getSoundData(stage);
+		if (length > 0) {
+			dest.asShortBuffer().put(stage, 0, length);
+		}
+		return advance(dest, length);
+	}
+
+	/**
+	 * Gets the sample data for the track currently being played as floats
+	 * in the range -1 to 1, for the float output path.
+	 * <p>
+	 * The default converts what {@link #getSoundData(short[])} renders.
+	 * Plugins whose emulators produce floats can override this to skip
+	 * the round trip through 16 bits.
+	 *
+	 * @param dest Destination sample buffer.
+	 *
+	 * @return The amount of generated samples.
+	 */
+	public int getSoundData(float[] dest) {
+		short[] stage = soundDataStage(dest.length);
+		int length = getSoundData(stage);
+		SampleConverter.toFloat(stage, dest, length);
+		return length;
+	}
+
+	private short[] soundDataStage(int size) {
+		if (soundDataStage == null || soundDataStage.length != size) {
+			soundDataStage = new short[size];
+		}
+		return soundDataStage;
+	}
+
+	/**
+	 * Move the position of a buffer past the samples that native code rendered into it.
+	 *
+	 * @param dest the buffer given to {@link #getSoundData(ByteBuffer)}
+	 * @param length the amount of samples generated, not positive on error or at the end
+	 * @return length
+	 */
+	protected static int advance(ByteBuffer dest, int length) {
+		if (length > 0) {
+			dest.position(dest.position() + length * 2);
+		}
+		return length;
+	}
+
 	/**
 	 * Handles the unloading of any native-side allocations, etc.
 	 */
@@ -213,6 +315,29 @@ public abstract class DroidSoundPlugin {
 	 */
 	protected abstract MusicInfo getMusicInfo(String name, byte[] module);
 
+	/**
+	 * Gets the number of bytes from the start of a file that {@link #getMusicInfo(String, byte[])}
+	 * looks at, so that identification doesn't need to read the whole file.
+	 *
+	 * @return Header size in bytes, 0 if the content is not looked at, or {@link #HEADER_WHOLE_FILE}.
+	 */
+	protected int getMusicInfoHeaderSize() {
+		return HEADER_WHOLE_FILE;
+	}
+
+	/**
+	 * Tells whether {@link #getMusicInfo(String, byte[])} would find more in the
+	 * file than in the header of {@link #getMusicInfoHeaderSize()} bytes it was given.
+	 *
+	 * @param name   The name of the file.
+	 * @param header The start of the file.
+	 *
+	 * @return True, if the whole file is needed to identify it.
+	 */
+	protected boolean needsWholeFile(String name, byte[] header) {
+		return false;
+	}
+
 	private static void fixInfo(String basename, MusicInfo info) {
 		if (info.composer != null) {
 			info.composer = info.composer.trim();
@@ -244,6 +369,27 @@ public abstract class DroidSoundPlugin {
 		}
 	}
 
+	/**
+	 * Finds the first plugin that handles the given file and agrees to load it.
+	 * The plugin is left loaded, so the caller takes over the responsibility
+	 * of unloading it.
+	 *
+	 * @param f1    First file
+	 * @param data1 Data of the first file.
+	 * @param f2    Second file, or null.
+	 * @param data2 Data of the second file, or null.
+	 *
+	 * @return The plugin that loaded the file, or null if no plugin accepted it.
+	 */
+	public static DroidSoundPlugin loadWithFirstAccepting(String f1, byte[] data1, String f2, byte[] data2) {
+		for (DroidSoundPlugin plugin : PLUGINS) {
+			if (plugin.canHandle(f1) && plugin.load(f1, data1, f2, data2)) {
+				return plugin;
+			}
+		}
+		return null;
+	}
+
 	public static MusicInfo identify(String name1, byte[] module1) {
 		boolean handle = false;
 		for (DroidSoundPlugin plugin : DroidSoundPlugin.getPluginList()) {
@@ -259,6 +405,62 @@ public abstract class DroidSoundPlugin {
 		return handle ? EMPTY_INFO : null;
 	}
 
+	/**
+	 * Gets the number of bytes from the start of the named file that {@link #identify(String, byte[])}
+	 * needs to see. It is the largest header size of the plugins that may handle the file.
+	 *
+	 * @param name1 The name of the file.
+	 *
+	 * @return Header size in bytes, or -1 if no plugin handles the file, in which case it need not be read at all.
+	 */
+	public static int getMusicInfoHeaderSize(String name1) {
+		int size = -1;
+		for (DroidSoundPlugin plugin : PLUGINS) {
+			if (plugin.canHandle(name1)) {
+				size = Math.max(size, plugin.getMusicInfoHeaderSize());
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the plugins that {@link #identify(String, byte[])} tries for the named file.
+	 * Files of the same content are identified alike if their names give the same plugins.
+	 *
+	 * @param name1 The name of the file.
+	 *
+	 * @return Bit set of the plugins, by their index in {@link #getPluginList()}.
+	 */
+	public static long getPluginSet(String name1) {
+		long set = 0;
+		for (int i = 0; i < PLUGINS.size(); i ++) {
+			if (PLUGINS.get(i).canHandle(name1)) {
+				set |= 1L << i;
+			}
+		}
+		return set;
+	}
+
+	/**
+	 * Whether the named file must be identified again with all of its contents,
+	 * because the header read for {@link #identify(String, byte[])} shows that the
+	 * information is further in. The AHX title is such a case. Otherwise the result
+	 * from the header is final, even if no plugin found anything in it.
+	 *
+	 * @param name1  The name of the file.
+	 * @param header The start of the file given to {@link #identify(String, byte[])}.
+	 *
+	 * @return True, if identification should be retried with the whole file.
+	 */
+	public static boolean needsWholeFileToIdentify(String name1, byte[] header) {
+		for (DroidSoundPlugin plugin : PLUGINS) {
+			if (plugin.canHandle(name1) && plugin.needsWholeFile(name1, header)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Gets the sampling frequency of the currently loaded track.
 	 * <P>
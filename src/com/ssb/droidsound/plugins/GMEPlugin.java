@@ -1,6 +1,7 @@
 package com.ssb.droidsound.plugins;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -96,6 +97,11 @@ public class GMEPlugin extends DroidSoundPlugin {
 		return N_seekTo(currentSong, seconds);
 	}
 	
+	@Override
+	public boolean canLoadConcurrently() {
+		return true;
+	}
+
 	@Override
 	public boolean canSeek() {
 		return true;
@@ -112,11 +118,22 @@ public class GMEPlugin extends DroidSoundPlugin {
 		return N_getSoundData(currentSong, dest, dest.length);
 	}
 
+	@Override
+	public int getSoundData(ByteBuffer dest) {
+		return advance(dest, N_getSoundDataDirect(currentSong, dest, dest.position(), dest.remaining() / 2));
+	}
+
 	@Override
 	public boolean setTune(int tune) {
 		return N_setTune(currentSong, tune);
 	}
 
+	@Override
+	protected int getMusicInfoHeaderSize() {
+		/* The SPC composer is the last field used. */
+		return 0x100;
+	}
+
 	@Override
 	protected MusicInfo getMusicInfo(String name, byte[] module) {
 		if (module.length < 27) {
@@ -173,6 +190,7 @@ public class GMEPlugin extends DroidSoundPlugin {
 
 	// Expects Stereo, 44.1Khz, signed, big-endian shorts
 	native private int N_getSoundData(long song, short[] dest, int size);
+	native private int N_getSoundDataDirect(long song, ByteBuffer dest, int offset, int size);
 
 	native private boolean N_seekTo(long song, int seconds);
 
@@ -44,6 +44,11 @@ public class HivelyPlugin extends DroidSoundPlugin {
 		N_unload(songRef);
 	}
 
+	@Override
+	public boolean canLoadConcurrently() {
+		return true;
+	}
+
 	@Override
 	protected MusicInfo getMusicInfo(String name, byte[] module) {
 		if (module.length < 3) {
@@ -1,5 +1,6 @@
 package com.ssb.droidsound.plugins;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -43,6 +44,11 @@ public class ModPlugin extends DroidSoundPlugin {
 		return N_getSoundData(currentSong, dest, dest.length);
 	}
 
+	@Override
+	public int getSoundData(ByteBuffer dest) {
+		return advance(dest, N_getSoundDataDirect(currentSong, dest, dest.position(), dest.remaining() / 2));
+	}
+
 	@Override
 	public void unload() {
 		N_unload(currentSong);
@@ -98,6 +104,12 @@ public class ModPlugin extends DroidSoundPlugin {
 		return "libmodplug 0.8.8.4";
 	}
 
+	@Override
+	protected int getMusicInfoHeaderSize() {
+		/* The XM channel count is the last field used. */
+		return 0x6a;
+	}
+
 	@Override
 	protected MusicInfo getMusicInfo(String name, byte[] module) {
 		if (module.length < 48) {
@@ -138,6 +150,7 @@ public class ModPlugin extends DroidSoundPlugin {
 
 	// Expects Stereo, 44.1Khz, signed, big-endian shorts
 	native private int N_getSoundData(long song, short[] dest, int size);
+	native private int N_getSoundDataDirect(long song, ByteBuffer dest, int offset, int size);
 	native private boolean N_seekTo(long song, int seconds);
 	native private boolean N_setTune(long song, int tune);
 	native private String N_getStringInfo(long song, int what);
@@ -1,6 +1,7 @@
 package com.ssb.droidsound.plugins;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Locale;
 
@@ -86,6 +87,15 @@ public class SC68Plugin extends DroidSoundPlugin {
 		return N_getSoundData(currentSong, dest, dest.length);
 	}
 
+	@Override
+	public int getSoundData(ByteBuffer dest) {
+		if (currentSong == 0) {
+			return -1;
+		}
+
+		return advance(dest, N_getSoundDataDirect(currentSong, dest, dest.position(), dest.remaining() / 2));
+	}
+
 	@Override
 	public int getIntInfo(int what) {
 		if (currentSong == 0) {
@@ -211,6 +221,7 @@ public class SC68Plugin extends DroidSoundPlugin {
 
 	// Expects Stereo, 44.1Khz, signed, big-endian shorts
 	native private int N_getSoundData(long song, short[] dest, int size);
+	native private int N_getSoundDataDirect(long song, ByteBuffer dest, int offset, int size);
 	native private boolean N_seekTo(long song, int seconds);
 	native private boolean N_setTune(long song, int tune);
 	native private String N_getStringInfo(long song, int what);
@@ -1,16 +1,11 @@
 package com.ssb.droidsound.plugins;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.HashMap;
 import java.util.Map;
 
-import com.ssb.droidsound.app.Application;
-
 public class SexyPSFPlugin extends DroidSoundPlugin {
     
     private long songFile = 0;
@@ -94,28 +89,13 @@ public class SexyPSFPlugin extends DroidSoundPlugin {
     
     @Override
     public boolean load(String f1, byte[] data1, String f2, byte[] data2) {
-        File tmpDir = Application.getTmpDirectory();
-        for (File f : tmpDir.listFiles()) {
-            if (! f.getName().startsWith(".")) {
-                f.delete();
-            }
+        N_clearFiles();
+        if (! N_addFile(f1, data1) || (f2 != null && ! N_addFile(f2, data2))) {
+            N_clearFiles();
+            return false;
         }
 
-        try {
-            FileOutputStream fo1 = new FileOutputStream(new File(tmpDir, f1));
-            fo1.write(data1);
-            fo1.close();
-            if (f2 != null) {
-                FileOutputStream fo2 = new FileOutputStream(new File(tmpDir, f2));
-                fo2.write(data2);
-                fo2.close();
-            }
-        }
-        catch (IOException ioe) {
-            throw new RuntimeException(ioe);
-        }
-
-        songFile = N_loadFile(new File(tmpDir, f1).getPath());
+        songFile = N_loadFile(MEMFILE_DIR + f1);
         return true;
     }
     
@@ -123,6 +103,11 @@ public class SexyPSFPlugin extends DroidSoundPlugin {
     public int getSoundData(short[] dest) {
         return N_getSoundData(songFile, dest, dest.length);
     }
+
+    @Override
+    public int getSoundData(ByteBuffer dest) {
+        return advance(dest, N_getSoundDataDirect(songFile, dest, dest.position(), dest.remaining() / 2));
+    }
     
     @Override
     public void unload() {
@@ -130,6 +115,7 @@ public class SexyPSFPlugin extends DroidSoundPlugin {
             N_unload(songFile);
         else if(info != null)
             info = null;  
+        N_clearFiles();
     }
     
     @Override
@@ -193,9 +179,12 @@ public class SexyPSFPlugin extends DroidSoundPlugin {
         return null;
     }
 
+    native private static boolean N_addFile(String name, byte[] data);
+    native private static void N_clearFiles();
     native private long N_loadFile(String name);
     native private void N_unload(long song);
     native private int N_getSoundData(long song, short[] dest, int size);
+    native private int N_getSoundDataDirect(long song, ByteBuffer dest, int offset, int size);
     native private String N_getStringInfo(long song, int what);
     native private int N_getIntInfo(long song, int what);
 }
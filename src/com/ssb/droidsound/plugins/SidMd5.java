@@ -0,0 +1,109 @@
+package com.ssb.droidsound.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+import com.ssb.droidsound.utils.HashUtil;
+
+/**
+ * The MD5 of a PSID or RSID file that HVSC's Songlengths.txt is keyed by. It is
+ * computed as sidplay2 does: the C64 data, without the header and any load address
+ * in front of the data, followed by a trailer made of some of the header fields.
+ * <p>
+ * This is kept apart from {@link VICEPlugin}, which can't be loaded without its
+ * native library.
+ */
+final class SidMd5 {
+	/** Most songs a tune can have, further ones are ignored. */
+	private static final int MAX_SONGS = 256;
+	/** Speed of a song driven by the vertical blank. */
+	private static final byte SPEED_VBI = 0;
+	/** Speed of a song driven by CIA 1 timer A. */
+	private static final byte SPEED_CIA = 60;
+	/** Clock of an NTSC tune. */
+	private static final byte CLOCK_NTSC = 2;
+
+	private SidMd5() {
+	}
+
+	/**
+	 * @param module the whole file
+	 * @return the MD5, or null if the file is not a PSID or RSID
+	 */
+	static byte[] md5(byte[] module) {
+		if (module.length < 0x76) {
+			return null;
+		}
+		ByteBuffer src = ByteBuffer.wrap(module);
+		src.order(ByteOrder.BIG_ENDIAN);
+
+		final int magic = src.getInt();
+		final boolean rsid = magic == 0x52534944;
+		if (magic != 0x50534944 && ! rsid) {
+			return null;
+		}
+
+		final int version = src.getShort() & 0xffff;
+		int moduleDataOffset = src.getShort() & 0xffff;
+		final int loadAddress = src.getShort() & 0xffff;
+		final int initAddress = src.getShort() & 0xffff;
+		final int playAddress = src.getShort() & 0xffff;
+		final int songs = src.getShort() & 0xffff;
+		src.position(0x12);
+		final int speedBits = src.getInt();
+		final int flags = version >= 2 && module.length >= 0x78 ? src.getShort(0x76) & 0xffff : 0;
+
+		/* A load address of 0 means it is in the first two bytes of the data. */
+		if (loadAddress == 0) {
+			moduleDataOffset += 2;
+		}
+		if (moduleDataOffset > module.length) {
+			return null;
+		}
+
+		MessageDigest md5 = HashUtil.md5Digest();
+		md5.update(module, moduleDataOffset, module.length - moduleDataOffset);
+		md5.update(trailer(rsid, version, initAddress, playAddress, songs, speedBits, flags));
+		return md5.digest();
+	}
+
+	/**
+	 * The header fields hashed after the C64 data: the init and play addresses and
+	 * the number of songs in little endian, the speed of each song, and the clock
+	 * if it is NTSC. Songs past the 32nd have the speed of the 32nd, and all the
+	 * songs of an RSID run on the CIA timer. PSID v1 has no clock flags.
+	 *
+	 * @param rsid true for an RSID file, false for a PSID
+	 * @param version header version
+	 * @param initAddress init address
+	 * @param playAddress play address
+	 * @param songs number of songs
+	 * @param speedBits speed field, bit n set if song n + 1 uses the CIA timer
+	 * @param flags flags field of a v2 or later header
+	 * @return trailer bytes
+	 */
+	static byte[] trailer(boolean rsid, int version, int initAddress, int playAddress, int songs, int speedBits, int flags) {
+		songs = Math.min(songs, MAX_SONGS);
+		final boolean ntsc = version >= 2 && ((flags >> 2) & 0x3) == CLOCK_NTSC;
+
+		byte[] trailer = new byte[6 + songs + (ntsc ? 1 : 0)];
+		int n = 0;
+		trailer[n ++] = (byte) initAddress;
+		trailer[n ++] = (byte) (initAddress >> 8);
+		trailer[n ++] = (byte) playAddress;
+		trailer[n ++] = (byte) (playAddress >> 8);
+		trailer[n ++] = (byte) songs;
+		trailer[n ++] = (byte) (songs >> 8);
+
+		for (int i = 0; i < songs; i ++) {
+			int bit = Math.min(i, 31);
+			trailer[n ++] = rsid || (speedBits & (1 << bit)) != 0 ? SPEED_CIA : SPEED_VBI;
+		}
+
+		if (ntsc) {
+			trailer[n ++] = CLOCK_NTSC;
+		}
+		return trailer;
+	}
+}
@@ -2,7 +2,6 @@ package com.ssb.droidsound.plugins;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -92,30 +91,15 @@ public class UADEPlugin extends DroidSoundPlugin {
 
 	@Override
 	public boolean load(String f1, byte[] data1, String f2, byte[] data2) {
-		File tmpDir = Application.getTmpDirectory();
-		for (File f : tmpDir.listFiles()) {
-			if (! f.getName().startsWith(".")) {
-				f.delete();
-			}
-		}
-
-		try {
-			FileOutputStream fo1 = new FileOutputStream(new File(tmpDir, f1));
-			fo1.write(data1);
-			fo1.close();
-			if (f2 != null) {
-				FileOutputStream fo2 = new FileOutputStream(new File(tmpDir, f2));
-				fo2.write(data2);
-				fo2.close();
-			}
-		}
-		catch (IOException ioe) {
-			throw new RuntimeException(ioe);
+		N_clearFiles();
+		if (! N_addFile(f1, data1) || (f2 != null && ! N_addFile(f2, data2))) {
+			N_clearFiles();
+			return false;
 		}
 
 		File pluginDir = Application.getPluginDataDirectory(UADEPlugin.class);
 		N_init(pluginDir.getPath());
-		currentSong = N_loadFile(new File(tmpDir, f1).getPath());
+		currentSong = N_loadFile(MEMFILE_DIR + f1);
 		return currentSong != 0;
 	}
 
@@ -126,6 +110,7 @@ public class UADEPlugin extends DroidSoundPlugin {
 		}
 		N_unload(currentSong);
 		N_exit();
+		N_clearFiles();
 		currentSong = 0;
 	}
 
@@ -189,6 +174,21 @@ public class UADEPlugin extends DroidSoundPlugin {
 		return "UADE 2.13";
 	}
 
+	@Override
+	protected int getMusicInfoHeaderSize() {
+		/* The MOD magic is the last field used. AHX titles are further in, see needsWholeFile(). */
+		return 0x43c;
+	}
+
+	@Override
+	protected boolean needsWholeFile(String name, byte[] header) {
+		if (header.length < 6 || ! new String(header, 0, 3, ISO88591).equals("AHX")) {
+			return false;
+		}
+		int namePtr = ((header[4] & 0xff) << 8) | (header[5] & 0xff);
+		return namePtr > header.length - 128;
+	}
+
 	/**
 	 * Currently extracting info from AHX.
 	 */
@@ -250,6 +250,8 @@ public class UADEPlugin extends DroidSoundPlugin {
 	native private static void N_setOption(int what, int val);
 
 	native private long N_load(byte[] module, int size);
+	native private static boolean N_addFile(String name, byte[] data);
+	native private static void N_clearFiles();
 	native private long N_loadFile(String name);
 	native private void N_unload(long song);
 
@@ -1,16 +1,12 @@
 package com.ssb.droidsound.plugins;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
 import android.util.Log;
 
-import com.ssb.droidsound.app.Application;
-
 public class VGMStreamPlugin extends DroidSoundPlugin {
 	private static final String TAG = VGMStreamPlugin.class.getSimpleName();
 
@@ -54,29 +50,18 @@ public class VGMStreamPlugin extends DroidSoundPlugin {
 
 	@Override
 	public boolean load(String f1, byte[] data1, String f2, byte[] data2) {
-		File tmpDir = Application.getTmpDirectory();
-		for (File f : tmpDir.listFiles()) {
-			if (! f.getName().startsWith(".")) {
-				f.delete();
-			}
+		N_clearFiles();
+		if (! N_addFile(f1, data1) || (f2 != null && ! N_addFile(f2, data2))) {
+			N_clearFiles();
+			return false;
 		}
 
-		try {
-			FileOutputStream fo1 = new FileOutputStream(new File(tmpDir, f1));
-			fo1.write(data1);
-			fo1.close();
-			if (f2 != null) {
-				FileOutputStream fo2 = new FileOutputStream(new File(tmpDir, f2));
-				fo2.write(data2);
-				fo2.close();
-			}
-		}
-		catch (IOException ioe) {
-			throw new RuntimeException(ioe);
+		currentSong = N_loadFile(MEMFILE_DIR + f1);
+		if (currentSong == 0) {
+			N_clearFiles();
+			return false;
 		}
-
-		currentSong = N_loadFile(new File(tmpDir, f1).getPath());
-		return currentSong != 0;
+		return true;
 	}
 
 	@Override
@@ -84,9 +69,15 @@ public class VGMStreamPlugin extends DroidSoundPlugin {
 		return N_getSoundData(currentSong, dest, dest.length);
 	}
 
+	@Override
+	public int getSoundData(ByteBuffer dest) {
+		return advance(dest, N_getSoundDataDirect(currentSong, dest, dest.position(), dest.remaining() / 2));
+	}
+
 	@Override
 	public void unload() {
 		N_unload(currentSong);
+		N_clearFiles();
 		currentSong = 0;
 	}
 	
@@ -122,6 +113,12 @@ public class VGMStreamPlugin extends DroidSoundPlugin {
 		return "vgmstream revision 1002";
 	}
 
+	@Override
+	protected int getMusicInfoHeaderSize() {
+		/* Not identified by content. */
+		return 0;
+	}
+
 	@Override
 	protected MusicInfo getMusicInfo(String name, byte[] module) {
 		/* To be implemented */
@@ -145,11 +142,14 @@ public class VGMStreamPlugin extends DroidSoundPlugin {
 
 	native private static int N_getFrameRate(long song);
 	native private static void N_setOption(int what, int val);
+	native private static boolean N_addFile(String name, byte[] data);
+	native private static void N_clearFiles();
 	native private long N_loadFile(String name);
 	native private void N_unload(long song);
 
 	// Expects Stereo, 44.1Khz, signed, big-endian shorts
 	native private int N_getSoundData(long song, short[] dest, int size);
+	native private int N_getSoundDataDirect(long song, ByteBuffer dest, int offset, int size);
 	native private String N_getStringInfo(long song, int what);
 	native private int N_getIntInfo(long song, int what);
 
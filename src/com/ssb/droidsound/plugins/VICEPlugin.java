@@ -1,14 +1,10 @@
 package com.ssb.droidsound.plugins;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.Charset;
 
 import com.ssb.droidsound.app.Application;
-import com.ssb.droidsound.utils.HashUtil;
 import com.ssb.droidsound.utils.Log;
 import com.ssb.droidsound.utils.Unzipper;
 
@@ -62,6 +58,21 @@ public class VICEPlugin extends DroidSoundPlugin {
 	 */
 	native private static String N_loadFile(String name);
 
+	/**
+	 * Make a file available to {@link #N_loadFile(String)} under {@link #MEMFILE_DIR}.
+	 *
+	 * @param name Name of the file
+	 * @param data Contents of the file, copied
+	 *
+	 * @return false if out of memory.
+	 */
+	native private static boolean N_addFile(String name, byte[] data);
+
+	/**
+	 * Drop all files added by {@link #N_addFile(String, byte[])}.
+	 */
+	native private static void N_clearFiles();
+
 	/**
 	 * Unload song from memory.
 	 */
@@ -75,6 +86,15 @@ public class VICEPlugin extends DroidSoundPlugin {
 	 */
 	native private static int N_getSoundData(short[] dest, int size);
 
+	/**
+	 * Generates audio straight into a direct buffer.
+	 *
+	 * @param dest the buffer to fill, in native byte order
+	 * @param offset byte offset to start at
+	 * @param size number of shorts
+	 */
+	native private static int N_getSoundDataDirect(ByteBuffer dest, int offset, int size);
+
 	/**
 	 * Select a subsong.
 	 */
@@ -124,6 +144,11 @@ public class VICEPlugin extends DroidSoundPlugin {
 		return N_getSoundData(dest, dest.length);
 	}
 
+	@Override
+	public int getSoundData(ByteBuffer dest) {
+		return advance(dest, N_getSoundDataDirect(dest, dest.position(), dest.remaining() / 2));
+	}
+
 	@Override
 	public boolean seekTo(int seconds) {
 		return false;
@@ -131,63 +156,7 @@ public class VICEPlugin extends DroidSoundPlugin {
 
 	@Override
 	public byte[] md5(byte[] module) {
-		ByteBuffer src = ByteBuffer.wrap(module);
-		src.order(ByteOrder.BIG_ENDIAN);
-
-		final byte[] id = new byte[4];
-		src.get(id);
-		if (id[1] != 'S' && id[2] != 'I' && id[3] != 'D') {
-			return null;
-		}
-
-		final int version = src.getShort() & 0xffff;
-		src.position(0x8);
-		final int loadAddress = src.getShort() & 0xffff;
-		final int initAddress = src.getShort() & 0xffff;
-		final int playAddress = src.getShort() & 0xffff;
-		final int songs = src.getShort() & 0xffff;
-		src.position(0x12);
-		final int speedBits = src.getInt();
-		final int flags;
-
-		int moduleDataOffset;
-		if (version == 1) {
-			flags = 0;
-			moduleDataOffset = 0x76;
-		} else {
-			src.position(0x76);
-			flags = src.getShort() & 0xffff;
-			moduleDataOffset = 0x7c;
-		}
-		if (loadAddress == 0) {
-			moduleDataOffset += 2;
-		}
-
-		/* header is only partially included, maximum data length is < 64k, 256 for subsong speeds */
-		ByteBuffer dest = ByteBuffer.allocate(65536 + 256);
-		dest.order(ByteOrder.LITTLE_ENDIAN);
-
-		Log.i(TAG, "md5 signature pieces: %x %04x %04x %d %d %d", moduleDataOffset, initAddress, playAddress, songs, version, (flags >> 2) & 0x3);
-		dest.put(module, moduleDataOffset, module.length - moduleDataOffset);
-		dest.putShort((short) initAddress);
-		dest.putShort((short) playAddress);
-		dest.putShort((short) songs);
-
-		for (int i = 0; i < songs && i < 256; i ++) {
-			int ibit = i < 32 ? i : 31;
-			if (id[0] == 'R' || (speedBits & (1 << ibit)) != 0) {
-				dest.put((byte) 60);
-			} else {
-				dest.put((byte) 0);
-			}
-		}
-
-		/* sid clock flags == 2 -> write 2 */
-		if (version != 1 && ((flags >> 2) & 0x3) == 2) {
-			dest.put((byte) 2);
-		}
-
-		return HashUtil.md5(dest.array(), 0, dest.position());
+		return SidMd5.md5(module);
 	}
 
 	@Override
@@ -269,28 +238,13 @@ public class VICEPlugin extends DroidSoundPlugin {
 		}
 
 		songInfo = new Info();
-		File tmpDir = Application.getTmpDirectory();
-		for (File f : tmpDir.listFiles()) {
-			if (! f.getName().startsWith(".")) {
-				f.delete();
-			}
-		}
-
-		try {
-			FileOutputStream fo1 = new FileOutputStream(new File(tmpDir, f1));
-			fo1.write(data1);
-			fo1.close();
-			if (f2 != null) {
-				FileOutputStream fo2 = new FileOutputStream(new File(tmpDir, f2));
-				fo2.write(data1);
-				fo2.close();
-			}
-		}
-		catch (IOException ioe) {
-			throw new RuntimeException(ioe);
+		if (! N_addFile(f1, data1)) {
+			return false;
 		}
 
-		String error = N_loadFile(new File(tmpDir, f1).getPath());
+		String error = N_loadFile(MEMFILE_DIR + f1);
+		/* The whole tune is read by the load, so the file is no longer needed. */
+		N_clearFiles();
 		if (error != null) {
 			Log.w(TAG, "Unable to load file: %s", error);
 			return false;
@@ -333,6 +287,12 @@ public class VICEPlugin extends DroidSoundPlugin {
 		N_unload();
 	}
 
+	@Override
+	protected int getMusicInfoHeaderSize() {
+		/* The copyright string is the last field used. */
+		return 0x7c;
+	}
+
 	@Override
 	protected MusicInfo getMusicInfo(String name, byte[] module) {
 		String magic = new String(module, 1, 3, ISO88591);
@@ -0,0 +1,72 @@
+package com.ssb.droidsound.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the most recently used zip archives open, with their central directory
+ * parsed and indexed, so that playing the next song from a large archive such as
+ * HVSC doesn't begin with reading through 60000 directory entries again.
+ * <p>
+ * Archives are handed out with a reference taken for the caller, which must
+ * {@link ZipDirectory#close()} them when done. An archive dropped from the cache
+ * stays open until its last user closes it.
+ */
+public class ArchiveCache {
+	private static final String TAG = ArchiveCache.class.getSimpleName();
+
+	private final int capacity;
+
+	/** Open archives by path, in access order. */
+	private final LinkedHashMap<String, ZipDirectory> archives = new LinkedHashMap<String, ZipDirectory>(16, 0.75f, true);
+
+	/**
+	 * @param capacity maximum number of archives kept open
+	 */
+	public ArchiveCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Get an open archive, opening it if it isn't in the cache or it has changed.
+	 *
+	 * @param file the archive
+	 * @return archive with a reference held for the caller
+	 * @throws IOException
+	 */
+	public synchronized ZipDirectory open(File file) throws IOException {
+		String key = file.getAbsolutePath();
+		ZipDirectory zip = archives.get(key);
+		if (zip != null) {
+			if (zip.isCurrent()) {
+				return zip.retain();
+			}
+			archives.remove(key);
+			zip.close();
+		}
+
+		long startTime = System.currentTimeMillis();
+		zip = new ZipDirectory(file);
+		Log.i(TAG, "Opened %s with %d entries in %d ms", key, zip.getEntries().size(), System.currentTimeMillis() - startTime);
+		archives.put(key, zip);
+
+		Iterator<Map.Entry<String, ZipDirectory>> it = archives.entrySet().iterator();
+		while (archives.size() > capacity) {
+			it.next().getValue().close();
+			it.remove();
+		}
+
+		return zip.retain();
+	}
+
+	/** Drop all archives. Those still in use are closed by their last user. */
+	public synchronized void clear() {
+		for (ZipDirectory zip : archives.values()) {
+			zip.close();
+		}
+		archives.clear();
+	}
+}
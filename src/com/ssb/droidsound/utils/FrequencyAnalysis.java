@@ -1,5 +1,6 @@
 package com.ssb.droidsound.utils;
 
+import java.nio.ShortBuffer;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -71,12 +72,36 @@ public class FrequencyAnalysis {
 
 	/**
 	 * Read interleaved stereo sample data, buffer it, then fire it into queue.
+	 * The position of the buffer is left where it was.
+	 *
+	 * @param samples input buffer, read from its position up to its limit
+	 */
+	public void feed(ShortBuffer samples) {
+		int posInSamples = samples.position();
+		int lengthInSamples = samples.remaining();
+		long time = startFeed();
+		for (int i = posInSamples; i < posInSamples + lengthInSamples; i += 2) {
+			add(samples.get(i) + samples.get(i + 1), time, i - (posInSamples + lengthInSamples));
+		}
+	}
+
+	/**
+	 * Read interleaved stereo float sample data in the range -1 to 1, the same as
+	 * {@link #feed(ShortBuffer)}. The frames come out at the same scale.
 	 *
 	 * @param samples input array
 	 * @param posInSamples start offset in input array
 	 * @param lengthInSamples number of samples to read
 	 */
-	public void feed(short[] samples, int posInSamples, int lengthInSamples) {
+	public void feed(float[] samples, int posInSamples, int lengthInSamples) {
+		long time = startFeed();
+		for (int i = posInSamples; i < posInSamples + lengthInSamples; i += 2) {
+			add((samples[i] + samples[i + 1]) * 32768f, time, i - (posInSamples + lengthInSamples));
+		}
+	}
+
+	/** @return estimated time when the current head of audio buffer will play back */
+	private long startFeed() {
 		/* Consume old junk if the visualizer isn't keeping up */
 		while (true) {
 			Data d = queue.peek();
@@ -87,17 +112,21 @@ public class FrequencyAnalysis {
 			break;
 		}
 
-		/* Estimated time when the current head of audio buffer will play back */
-		long time = System.currentTimeMillis() + bufferingMs;
-		for (int i = posInSamples; i < posInSamples + lengthInSamples; i += 2) {
-			float mono = samples[i] + samples[i + 1];
-			sample[sampleIdx] = mono;
-			if (++ sampleIdx == sample.length) {
-				Data d = new Data(time + 1000 * (i - (posInSamples + lengthInSamples)) / 2 / frameRate, sample);
-				queue.add(d);
-				sample = new float[overlap];
-				sampleIdx = 0;
-			}
+		return System.currentTimeMillis() + bufferingMs;
+	}
+
+	/**
+	 * @param mono sum of the channels of a frame
+	 * @param time estimated playback time of the end of the input
+	 * @param offset position of the frame relative to the end of the input, in samples
+	 */
+	private void add(float mono, long time, int offset) {
+		sample[sampleIdx] = mono;
+		if (++ sampleIdx == sample.length) {
+			Data d = new Data(time + 1000 * offset / 2 / frameRate, sample);
+			queue.add(d);
+			sample = new float[overlap];
+			sampleIdx = 0;
 		}
 	}
 
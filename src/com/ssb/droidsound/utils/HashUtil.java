@@ -3,22 +3,146 @@ package com.ssb.droidsound.utils;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Hash functions. MD5 is what song length databases are keyed by; everything
+ * that only needs to tell contents apart should use the much faster xxHash64.
+ * <p>
+ * Both are safe to call from any number of threads at once.
+ */
 public class HashUtil {
-	private static final MessageDigest MD5;
-	static {
-		try {
-			MD5 = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new ExceptionInInitializerError(e);
+	/** Each thread has its own digest, so hashing is never serialized. */
+	private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
 		}
-	}
+	};
+
+	private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME64_3 = 0x165667B19E3779F9L;
+	private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
 
 	public static byte[] md5(byte[] data) {
 		return md5(data, 0, data.length);
 	}
 
-	public synchronized static byte[] md5(byte[] data, int start, int length) {
-		MD5.update(data, start, length);
-		return MD5.digest();
+	public static byte[] md5(byte[] data, int start, int length) {
+		MessageDigest md5 = md5Digest();
+		md5.update(data, start, length);
+		return md5.digest();
+	}
+
+	/**
+	 * Get the MD5 digest of the calling thread, for hashing data in pieces.
+	 * It must not be used by a nested hash before {@link MessageDigest#digest()}.
+	 *
+	 * @return reset digest
+	 */
+	public static MessageDigest md5Digest() {
+		MessageDigest md5 = MD5.get();
+		md5.reset();
+		return md5;
+	}
+
+	public static long xxHash64(byte[] data) {
+		return xxHash64(data, 0, data.length, 0);
+	}
+
+	/**
+	 * The 64-bit xxHash of Yann Collet, not cryptographic but very fast and well distributed.
+	 *
+	 * @param data data to hash
+	 * @param start offset of the first byte
+	 * @param length number of bytes
+	 * @param seed seed value, 0 for the standard hash
+	 * @return hash
+	 */
+	public static long xxHash64(byte[] data, int start, int length, long seed) {
+		int p = start;
+		int end = start + length;
+		long h;
+
+		if (length >= 32) {
+			long v1 = seed + PRIME64_1 + PRIME64_2;
+			long v2 = seed + PRIME64_2;
+			long v3 = seed;
+			long v4 = seed - PRIME64_1;
+			int limit = end - 32;
+			do {
+				v1 = round(v1, getLong(data, p));
+				v2 = round(v2, getLong(data, p + 8));
+				v3 = round(v3, getLong(data, p + 16));
+				v4 = round(v4, getLong(data, p + 24));
+				p += 32;
+			} while (p <= limit);
+
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else {
+			h = seed + PRIME64_5;
+		}
+
+		h += length;
+
+		while (p + 8 <= end) {
+			h ^= round(0, getLong(data, p));
+			h = Long.rotateLeft(h, 27) * PRIME64_1 + PRIME64_4;
+			p += 8;
+		}
+		if (p + 4 <= end) {
+			h ^= (getInt(data, p) & 0xffffffffL) * PRIME64_1;
+			h = Long.rotateLeft(h, 23) * PRIME64_2 + PRIME64_3;
+			p += 4;
+		}
+		while (p < end) {
+			h ^= (data[p] & 0xff) * PRIME64_5;
+			h = Long.rotateLeft(h, 11) * PRIME64_1;
+			p ++;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME64_2;
+		h ^= h >>> 29;
+		h *= PRIME64_3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * PRIME64_2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * PRIME64_1;
+	}
+
+	private static long mergeRound(long acc, long val) {
+		acc ^= round(0, val);
+		return acc * PRIME64_1 + PRIME64_4;
+	}
+
+	private static long getLong(byte[] b, int i) {
+		return (b[i] & 0xffL)
+				| (b[i + 1] & 0xffL) << 8
+				| (b[i + 2] & 0xffL) << 16
+				| (b[i + 3] & 0xffL) << 24
+				| (b[i + 4] & 0xffL) << 32
+				| (b[i + 5] & 0xffL) << 40
+				| (b[i + 6] & 0xffL) << 48
+				| (b[i + 7] & 0xffL) << 56;
+	}
+
+	private static int getInt(byte[] b, int i) {
+		return (b[i] & 0xff)
+				| (b[i + 1] & 0xff) << 8
+				| (b[i + 2] & 0xff) << 16
+				| (b[i + 3] & 0xff) << 24;
 	}
 }
@@ -0,0 +1,383 @@
+package com.ssb.droidsound.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.SharedPreferences;
+
+import com.ssb.droidsound.plugins.DroidSoundPlugin;
+
+/**
+ * Disk cache of rendered subsongs. The emulators are expensive to run, and the
+ * same tunes are played over and over, so the PCM produced during a complete
+ * playback is stored and streamed back from a memory mapping next time.
+ * <p>
+ * Entries are keyed by the plugin's md5 of the song, the subsong, and the plugin's
+ * options, because any of these change the rendered audio. Old entries are evicted
+ * in least recently used order when the size limit is exceeded.
+ * <p>
+ * The file is a 16-byte header followed by interleaved stereo 16-bit little-endian
+ * samples. It is not compressed, because inflating would defeat reading straight
+ * from the mapping.
+ * <p>
+ * Recordings are written to disk on a thread of the cache, so that a slow card
+ * never holds up rendering. One entry may take at most a quarter of the size
+ * limit; longer recordings, such as looping tunes of unknown length, are dropped.
+ */
+public class RenderCache {
+	private static final String TAG = RenderCache.class.getSimpleName();
+	private static final int MAGIC = 0x44535243; /* DSRC */
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	/** Samples per block handed to the disk thread. */
+	private static final int BLOCK_SAMPLES = 8192 * 2;
+	/** Blocks a recording may have waiting for the disk before it is dropped. */
+	private static final int BLOCKS = 16;
+
+	private final File dir;
+	/** Does all the file work of the recorders, in order. */
+	private final ExecutorService diskWriter = Executors.newSingleThreadExecutor();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	public RenderCache(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+	}
+
+	/**
+	 * Build the cache key for a subsong rendered by the given plugin with its current options.
+	 *
+	 * @param plugin the plugin that renders the song
+	 * @param prefs preferences holding the plugin's options
+	 * @param md5 plugin-generated md5 of the song
+	 * @param subsong subsong number
+	 * @param lengthMs length the subsong is played for, which is where a recording
+	 *                 stops unless the song ends before
+	 * @return the key, or null if the song can't be cached
+	 */
+	public static String key(DroidSoundPlugin plugin, SharedPreferences prefs, byte[] md5, int subsong, int lengthMs) {
+		if (md5 == null) {
+			return null;
+		}
+
+		/* Options reach the plugins as "PluginClass.option" preferences, see Application.onCreate(). */
+		String prefix = plugin.getClass().getSimpleName() + ".";
+		Map<String, Object> options = new TreeMap<String, Object>();
+		for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+			if (e.getKey().startsWith(prefix)) {
+				options.put(e.getKey(), e.getValue());
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md5) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		sb.append('_').append(subsong);
+		sb.append('_').append(lengthMs);
+		sb.append('_').append(Integer.toHexString(options.toString().hashCode()));
+		return sb.toString();
+	}
+
+	/**
+	 * Open a cached rendering.
+	 *
+	 * @param key cache key
+	 * @param frameRate rate the rendering must have been made at
+	 * @return reader positioned at the start, or null on cache miss
+	 */
+	public Reader open(String key, int frameRate) {
+		File f = new File(dir, key + ".pcm");
+		if (! f.exists()) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+			/* The mapping stays valid after the file is closed. */
+			raf.close();
+
+			if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != frameRate) {
+				f.delete();
+				misses.incrementAndGet();
+				return null;
+			}
+
+			f.setLastModified(System.currentTimeMillis());
+			hits.incrementAndGet();
+			map.position(HEADER_SIZE);
+			return new Reader(map.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer(), frameRate);
+		}
+		catch (IOException ioe) {
+			Log.w(TAG, "Unable to read cache entry " + key, ioe);
+			f.delete();
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Start recording a rendering. It only becomes visible to {@link #open(String, int)}
+	 * after {@link Recorder#commit()}.
+	 *
+	 * @param key cache key
+	 * @param frameRate rate of the audio to be recorded
+	 * @param sizeLimit cache size limit in bytes to enforce on commit
+	 * @return recorder
+	 */
+	public Recorder record(String key, int frameRate, long sizeLimit) {
+		return new Recorder(key, frameRate, sizeLimit);
+	}
+
+	private void evict(long sizeLimit) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+		}
+		if (total <= sizeLimit) {
+			return;
+		}
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long d = a.lastModified() - b.lastModified();
+				return d < 0 ? -1 : d > 0 ? 1 : 0;
+			}
+		});
+		for (File f : files) {
+			if (total <= sizeLimit) {
+				break;
+			}
+			/* Recordings in progress are not entries yet. */
+			if (f.getName().endsWith(".tmp")) {
+				continue;
+			}
+			total -= f.length();
+			f.delete();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** @return hit rate in percent of all lookups */
+	public int getHitRate() {
+		long total = hits.get() + misses.get();
+		return total != 0 ? (int) (hits.get() * 100 / total) : 0;
+	}
+
+	/** @return number of PCM bytes played from cache instead of being rendered */
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	/** Streams a cached rendering from its memory mapping. */
+	public class Reader {
+		private final ShortBuffer pcm;
+		private final int frameRate;
+
+		private Reader(ShortBuffer pcm, int frameRate) {
+			this.pcm = pcm;
+			this.frameRate = frameRate;
+		}
+
+		/**
+		 * @param dest destination buffer, filled from its position up to its limit
+		 * @return number of samples copied, 0 at end of rendering
+		 */
+		public int read(ShortBuffer dest) {
+			int length = Math.min(dest.remaining(), pcm.remaining());
+			int limit = pcm.limit();
+			pcm.limit(pcm.position() + length);
+			dest.put(pcm);
+			pcm.limit(limit);
+			bytesSaved.addAndGet(length * 2);
+			return length;
+		}
+
+		public void seekTo(int msec) {
+			long sample = (long) msec * frameRate / 1000 * 2;
+			pcm.position((int) Math.min(sample, pcm.limit()));
+		}
+	}
+
+	/**
+	 * Writes audio as it is rendered, to a temporary file until committed. The
+	 * methods are called from the rendering thread and only queue the work for
+	 * the disk thread.
+	 */
+	public class Recorder {
+		private final String key;
+		private final long sizeLimit;
+		private final File tmp;
+		/** Blocks free for the rendering thread to fill. */
+		private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(BLOCKS);
+		/** Bytes of audio queued so far. */
+		private long length;
+		/** Set on the disk thread if the file can't be written. */
+		private volatile boolean failed;
+		/** Opened on the disk thread. */
+		private FileOutputStream out;
+
+		private Recorder(String key, final int frameRate, long sizeLimit) {
+			this.key = key;
+			this.sizeLimit = sizeLimit;
+			tmp = new File(dir, key + ".tmp");
+			for (int i = 0; i < BLOCKS; i ++) {
+				free.add(new byte[BLOCK_SAMPLES * 2]);
+			}
+
+			diskWriter.execute(new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+					header.putInt(MAGIC);
+					header.putInt(VERSION);
+					header.putInt(frameRate);
+					try {
+						out = new FileOutputStream(tmp);
+						out.write(header.array());
+					}
+					catch (IOException ioe) {
+						fail(ioe);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Queue samples for writing. The recording is given up if it grows past a
+		 * quarter of the size limit, if the disk falls behind, or if writing fails;
+		 * the caller should then {@link #abort()} it.
+		 *
+		 * @param samples samples from the position up to the limit, which are all consumed
+		 * @return false if the recording was given up
+		 */
+		public boolean write(ShortBuffer samples) {
+			if (failed) {
+				return false;
+			}
+			if (HEADER_SIZE + length + samples.remaining() * 2 > sizeLimit / 4) {
+				Log.i(TAG, "Not caching %s, it is longer than a quarter of the cache", key);
+				return false;
+			}
+
+			int limit = samples.limit();
+			while (samples.hasRemaining()) {
+				final byte[] block = free.poll();
+				if (block == null) {
+					Log.w(TAG, "Not caching %s, the disk can't keep up", key);
+					return false;
+				}
+
+				final int n = Math.min(samples.remaining(), BLOCK_SAMPLES);
+				samples.limit(samples.position() + n);
+				ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().put(samples);
+				samples.limit(limit);
+				length += n * 2;
+
+				diskWriter.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							if (! failed) {
+								out.write(block, 0, n * 2);
+							}
+						}
+						catch (IOException ioe) {
+							fail(ioe);
+						}
+						free.add(block);
+					}
+				});
+			}
+			return true;
+		}
+
+		/** Publish the recording, which must contain the complete subsong. */
+		public void commit() {
+			final long entryLength = HEADER_SIZE + length;
+			diskWriter.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (! close() || entryLength == HEADER_SIZE || entryLength > sizeLimit / 4
+							|| ! tmp.renameTo(new File(dir, key + ".pcm"))) {
+						tmp.delete();
+						return;
+					}
+					Log.i(TAG, "Cached %d bytes for %s", entryLength, key);
+					evict(sizeLimit);
+				}
+			});
+		}
+
+		/** Throw away an incomplete recording. */
+		public void abort() {
+			diskWriter.execute(new Runnable() {
+				@Override
+				public void run() {
+					close();
+					tmp.delete();
+				}
+			});
+		}
+
+		/**
+		 * Close the file on the disk thread.
+		 *
+		 * @return true if everything was written
+		 */
+		private boolean close() {
+			if (out == null) {
+				return false;
+			}
+			try {
+				out.close();
+			}
+			catch (IOException ioe) {
+				fail(ioe);
+			}
+			return ! failed;
+		}
+
+		private void fail(IOException ioe) {
+			if (! failed) {
+				Log.w(TAG, "Unable to write cache entry " + key, ioe);
+				failed = true;
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.ssb.droidsound.utils;
+
+/**
+ * Converts interleaved stereo floats from one rate to another with a polyphase
+ * Kaiser-windowed sinc filter, so that songs of any rate can play through an
+ * output running at the device's own rate instead of the platform resampler.
+ * <p>
+ * The coefficients of all phases are computed once, one phase after another,
+ * and each channel is kept in its own array. An output sample is then a plain
+ * dot product over two contiguous arrays, which the compiler can unroll and
+ * vectorize.
+ * <p>
+ * The ratio of the rates is kept exactly as a fraction when that takes no more
+ * than {@link #MAX_PHASES} phases, which is the case for all the common rates.
+ * Other ratios are rounded to the nearest phase.
+ */
+public class Resampler {
+	/** Trade-off between CPU time and the steepness of the filter. */
+	public enum Quality {
+		LOW(8, 0.80, 5.0),
+		MEDIUM(16, 0.90, 7.0),
+		HIGH(32, 0.95, 9.0);
+
+		/** Filter length in input frames, when not downsampling. */
+		private final int taps;
+		/** Cutoff as a fraction of the lower Nyquist frequency. */
+		private final double cutoff;
+		/** Kaiser window shape. */
+		private final double beta;
+
+		private Quality(int taps, double cutoff, double beta) {
+			this.taps = taps;
+			this.cutoff = cutoff;
+			this.beta = beta;
+		}
+	}
+
+	private static final int MAX_PHASES = 1024;
+
+	private final int inRate;
+	private final int outRate;
+	private final int taps;
+	private final int phases;
+	/** Input advance per output frame, in phases. */
+	private final int step;
+	/** Coefficients of phase p at [p * taps, (p + 1) * taps). */
+	private final float[] coefficients;
+
+	private final float[] left;
+	private final float[] right;
+	/** Frames in left and right. */
+	private int fill;
+	/** First frame of the next output. */
+	private int pos;
+	private int phase;
+
+	/**
+	 * @param inRate rate of the input
+	 * @param outRate rate of the output
+	 * @param quality filter quality
+	 * @param maxInSamples largest input given to {@link #process(float[], int, float[])}, in samples
+	 */
+	public Resampler(int inRate, int outRate, Quality quality, int maxInSamples) {
+		this.inRate = inRate;
+		this.outRate = outRate;
+
+		int gcd = gcd(inRate, outRate);
+		if (outRate / gcd <= MAX_PHASES) {
+			phases = outRate / gcd;
+			step = inRate / gcd;
+		} else {
+			phases = MAX_PHASES;
+			step = (int) Math.round((double) inRate * MAX_PHASES / outRate);
+		}
+
+		/* When downsampling, the filter must be longer to keep the same transition band. */
+		double scale = Math.max(1.0, (double) inRate / outRate);
+		taps = ((int) Math.ceil(quality.taps * scale) + 3) & ~3;
+		double fc = quality.cutoff / scale;
+		coefficients = new float[phases * taps];
+		double half = taps / 2;
+		double i0Beta = besselI0(quality.beta);
+		for (int p = 0; p < phases; p ++) {
+			double sum = 0;
+			for (int k = 0; k < taps; k ++) {
+				double x = k - (half - 1) - (double) p / phases;
+				double r = x / half;
+				double window = r * r < 1 ? besselI0(quality.beta * Math.sqrt(1 - r * r)) / i0Beta : 0;
+				double h = fc * sinc(fc * x) * window;
+				coefficients[p * taps + k] = (float) h;
+				sum += h;
+			}
+			/* Unity gain at DC for every phase, so no ripple at the phase rate. */
+			for (int k = 0; k < taps; k ++) {
+				coefficients[p * taps + k] /= sum;
+			}
+		}
+
+		left = new float[taps + maxInSamples / 2];
+		right = new float[taps + maxInSamples / 2];
+		reset();
+	}
+
+	public int getInRate() {
+		return inRate;
+	}
+
+	public int getOutRate() {
+		return outRate;
+	}
+
+	/**
+	 * @param inSamples input size in samples
+	 * @return the most samples {@link #process(float[], int, float[])} can produce from that
+	 */
+	public int maxOutput(int inSamples) {
+		return (int) (((long) inSamples / 2 * phases / step + 2) * 2);
+	}
+
+	/** Forget the input seen so far, for seeking or starting another song. */
+	public void reset() {
+		/* Start with half a filter of silence, so the first output is centered on the first input. */
+		fill = taps / 2 - 1;
+		pos = 0;
+		phase = 0;
+		for (int i = 0; i < fill; i ++) {
+			left[i] = 0;
+			right[i] = 0;
+		}
+	}
+
+	/**
+	 * Take all the input and produce as much output as it allows. The output lags
+	 * the input by half the filter length.
+	 *
+	 * @param in interleaved stereo input
+	 * @param inSamples number of input samples, at most the maximum given to the constructor
+	 * @param out interleaved stereo output, at least {@link #maxOutput(int)} long
+	 * @return number of output samples
+	 */
+	public int process(float[] in, int inSamples, float[] out) {
+		int frames = inSamples / 2;
+		for (int i = 0; i < frames; i ++) {
+			left[fill + i] = in[i * 2];
+			right[fill + i] = in[i * 2 + 1];
+		}
+		fill += frames;
+
+		final float[] coefficients = this.coefficients;
+		final float[] left = this.left;
+		final float[] right = this.right;
+		final int taps = this.taps;
+		int n = 0;
+		while (pos + taps <= fill) {
+			int c = phase * taps;
+			float l = 0;
+			float r = 0;
+			for (int k = 0; k < taps; k ++) {
+				float h = coefficients[c + k];
+				l += h * left[pos + k];
+				r += h * right[pos + k];
+			}
+			out[n ++] = l;
+			out[n ++] = r;
+
+			phase += step;
+			pos += phase / phases;
+			phase %= phases;
+		}
+
+		/* Keep the frames still needed at the start of the arrays. */
+		int consumed = Math.min(pos, fill);
+		System.arraycopy(left, consumed, left, 0, fill - consumed);
+		System.arraycopy(right, consumed, right, 0, fill - consumed);
+		fill -= consumed;
+		pos -= consumed;
+		return n;
+	}
+
+	private static double sinc(double x) {
+		if (x == 0) {
+			return 1;
+		}
+		return Math.sin(Math.PI * x) / (Math.PI * x);
+	}
+
+	/** Modified Bessel function of the first kind, order 0, by its power series. */
+	private static double besselI0(double x) {
+		double sum = 1;
+		double term = 1;
+		double q = x * x / 4;
+		for (int k = 1; k < 50; k ++) {
+			term *= q / (k * k);
+			sum += term;
+			if (term < sum * 1e-12) {
+				break;
+			}
+		}
+		return sum;
+	}
+
+	private static int gcd(int a, int b) {
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+}
@@ -0,0 +1,59 @@
+package com.ssb.droidsound.utils;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Conversions between 16-bit and float samples. Floats are in the range -1 to 1,
+ * as AudioFormat.ENCODING_PCM_FLOAT expects.
+ */
+public class SampleConverter {
+	private static final float SHORT_TO_FLOAT = 1f / 32768f;
+
+	/**
+	 * @param src 16-bit samples
+	 * @param dst float samples
+	 * @param length number of samples to convert, nothing if not positive
+	 */
+	public static void toFloat(short[] src, float[] dst, int length) {
+		for (int i = 0; i < length; i ++) {
+			dst[i] = src[i] * SHORT_TO_FLOAT;
+		}
+	}
+
+	/**
+	 * Convert the samples from the position to the limit of the source, which
+	 * is left where it was.
+	 *
+	 * @param src 16-bit samples
+	 * @param dst float samples, starting at 0
+	 * @return number of samples converted
+	 */
+	public static int toFloat(ShortBuffer src, float[] dst) {
+		int start = src.position();
+		int length = src.remaining();
+		for (int i = 0; i < length; i ++) {
+			dst[i] = src.get(start + i) * SHORT_TO_FLOAT;
+		}
+		return length;
+	}
+
+	/**
+	 * Convert into the destination from its position, clipping what is out of range,
+	 * and advance its position past the samples written.
+	 *
+	 * @param src float samples, starting at 0
+	 * @param length number of samples to convert
+	 * @param dst 16-bit samples
+	 */
+	public static void toShort(float[] src, int length, ShortBuffer dst) {
+		for (int i = 0; i < length; i ++) {
+			float v = src[i] * 32768f;
+			if (v > Short.MAX_VALUE) {
+				v = Short.MAX_VALUE;
+			} else if (v < Short.MIN_VALUE) {
+				v = Short.MIN_VALUE;
+			}
+			dst.put((short) v);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.ssb.droidsound.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer of samples, either shorts or floats, for exactly one
+ * producer thread and one consumer thread. The storage is allocated once, and reads and writes are
+ * plain bulk copies, so no garbage is generated while audio flows.
+ * <p>
+ * The storage is a direct buffer in native byte order, so the consumer can
+ * hand what is readable straight to the audio output with {@link #peek(int)}
+ * instead of copying it out first.
+ * <p>
+ * The positions grow forever; only their difference matters. A long won't
+ * overflow in any realistic playback session.
+ */
+public class SampleRingBuffer {
+	private final int capacity;
+	private final int mask;
+	private final int bytesPerSample;
+
+	/** Views of the storage used by the producer, only the one for the sample type is set. */
+	private final ShortBuffer inShorts;
+	private final FloatBuffer inFloats;
+	/** Views of the storage used by the consumer. */
+	private final ShortBuffer outShorts;
+	private final ByteBuffer outBytes;
+
+	/** Total number of samples ever written. Only the producer modifies this. */
+	private final AtomicLong writePos = new AtomicLong();
+
+	/** Total number of samples ever read. Only the consumer modifies this. */
+	private final AtomicLong readPos = new AtomicLong();
+
+	/**
+	 * @param minCapacity the minimum number of samples to hold, rounded up to a power of two
+	 * @param floats true to hold floats, false to hold shorts
+	 */
+	public SampleRingBuffer(int minCapacity, boolean floats) {
+		capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+		mask = capacity - 1;
+		bytesPerSample = floats ? 4 : 2;
+
+		ByteBuffer storage = ByteBuffer.allocateDirect(capacity * bytesPerSample).order(ByteOrder.nativeOrder());
+		inShorts = floats ? null : storage.asShortBuffer();
+		inFloats = floats ? storage.asFloatBuffer() : null;
+		outShorts = floats ? null : storage.asShortBuffer();
+		outBytes = storage.duplicate().order(ByteOrder.nativeOrder());
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/** @return 2 for a ring of shorts, 4 for a ring of floats */
+	public int bytesPerSample() {
+		return bytesPerSample;
+	}
+
+	/** @return number of samples available for reading */
+	public int size() {
+		return (int) (writePos.get() - readPos.get());
+	}
+
+	/** @return number of samples that can be written without overwriting unread data */
+	public int free() {
+		return capacity - size();
+	}
+
+	/**
+	 * Copy as much of the source, from its position to its limit, as fits.
+	 * The position of the source is advanced past what was written.
+	 * Producer thread only, for a ring of shorts.
+	 *
+	 * @param src source buffer
+	 * @return number of samples written, possibly less than were remaining
+	 */
+	public int write(ShortBuffer src) {
+		long w = writePos.get();
+		int n = Math.min(src.remaining(), capacity - (int) (w - readPos.get()));
+		if (n <= 0) {
+			return 0;
+		}
+
+		int start = (int) w & mask;
+		int first = Math.min(n, capacity - start);
+		int limit = src.limit();
+		src.limit(src.position() + first);
+		inShorts.position(start);
+		inShorts.put(src);
+		src.limit(src.position() + n - first);
+		inShorts.position(0);
+		inShorts.put(src);
+		src.limit(limit);
+		writePos.lazySet(w + n);
+		return n;
+	}
+
+	/**
+	 * Copy as much of the source as fits, like {@link #write(ShortBuffer)}.
+	 * Producer thread only, for a ring of floats.
+	 *
+	 * @param src source buffer
+	 * @return number of samples written, possibly less than were remaining
+	 */
+	public int write(FloatBuffer src) {
+		long w = writePos.get();
+		int n = Math.min(src.remaining(), capacity - (int) (w - readPos.get()));
+		if (n <= 0) {
+			return 0;
+		}
+
+		int start = (int) w & mask;
+		int first = Math.min(n, capacity - start);
+		int limit = src.limit();
+		src.limit(src.position() + first);
+		inFloats.position(start);
+		inFloats.put(src);
+		src.limit(src.position() + n - first);
+		inFloats.position(0);
+		inFloats.put(src);
+		src.limit(limit);
+		writePos.lazySet(w + n);
+		return n;
+	}
+
+	/**
+	 * Copy as much data as is available. Consumer thread only, for a ring of shorts.
+	 *
+	 * @param dst destination array
+	 * @param off start offset in destination
+	 * @param len maximum number of samples to read
+	 * @return number of samples read, possibly less than len
+	 */
+	public int read(short[] dst, int off, int len) {
+		long r = readPos.get();
+		int n = Math.min(len, (int) (writePos.get() - r));
+		if (n <= 0) {
+			return 0;
+		}
+
+		int start = (int) r & mask;
+		int first = Math.min(n, capacity - start);
+		outShorts.position(start);
+		outShorts.get(dst, off, first);
+		outShorts.position(0);
+		outShorts.get(dst, off + first, n - first);
+		readPos.lazySet(r + n);
+		return n;
+	}
+
+	/**
+	 * Get the readable data that is contiguous in the storage, without copying it.
+	 * The data stays in the ring until {@link #skip(int)} is called, so it can't be
+	 * overwritten while it is being used. Consumer thread only.
+	 *
+	 * @param len maximum number of samples wanted
+	 * @return buffer from the first readable byte up to at most len samples, empty if nothing is available
+	 */
+	public ByteBuffer peek(int len) {
+		long r = readPos.get();
+		int start = (int) r & mask;
+		int n = Math.max(0, Math.min(Math.min(len, (int) (writePos.get() - r)), capacity - start));
+		outBytes.limit((start + n) * bytesPerSample);
+		outBytes.position(start * bytesPerSample);
+		return outBytes;
+	}
+
+	/**
+	 * Drop data that has been consumed through {@link #peek(int)}. Consumer thread only.
+	 *
+	 * @param len number of samples consumed
+	 */
+	public void skip(int len) {
+		readPos.lazySet(readPos.get() + len);
+	}
+
+	/** Drop all data currently available for reading. Consumer thread only. */
+	public void clear() {
+		readPos.lazySet(writePos.get());
+	}
+}
@@ -1,9 +1,14 @@
 package com.ssb.droidsound.utils;
 
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 public class StreamUtil {
 	public static void copy(InputStream is, OutputStream os) throws IOException {
@@ -19,4 +24,29 @@ public class StreamUtil {
 		new DataInputStream(is).readFully(data);
 		return data;
 	}
+
+	/**
+	 * Read the start of a file with positioned reads, leaving the rest of it untouched.
+	 *
+	 * @param f file to read
+	 * @param length maximum number of bytes to read
+	 * @return the first length bytes of the file, or all of it if it is shorter
+	 * @throws IOException
+	 */
+	public static byte[] readPrefix(File f, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer bb = ByteBuffer.allocate((int) Math.min(length, fc.size()));
+			while (bb.hasRemaining()) {
+				if (fc.read(bb, bb.position()) < 0) {
+					return Arrays.copyOf(bb.array(), bb.position());
+				}
+			}
+			return bb.array();
+		}
+		finally {
+			raf.close();
+		}
+	}
 }
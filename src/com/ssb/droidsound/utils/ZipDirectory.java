@@ -0,0 +1,332 @@
+package com.ssb.droidsound.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Zip reader working from the central directory at the end of the archive.
+ * Unlike ZipInputStream, it doesn't need to inflate its way through the archive
+ * to find an entry, and unlike Android's ZipFile, it has no trouble with archives
+ * of more than 32768 entries.
+ * <p>
+ * Entries are read with positioned reads of the underlying channel, so several
+ * threads may read entries of the same archive at once. Each reader can stop
+ * inflating after the number of bytes it needs.
+ * <p>
+ * The archive is reference counted: it starts with one reference held by the
+ * creator, and the file is closed when the last reference is released.
+ */
+public class ZipDirectory {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int LOCAL_HEADER_SIZE = 30;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int CENTRAL_HEADER_SIZE = 46;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int END_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_EXTRA_ID = 0x0001;
+
+	public static final int METHOD_STORED = 0;
+	public static final int METHOD_DEFLATED = 8;
+
+	/** An entry of the central directory. */
+	public static class Entry {
+		private final String name;
+		private final int method;
+		private final long compressedSize;
+		private final long size;
+		private final long localHeaderOffset;
+
+		protected Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+			this.name = name;
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+
+		public int getMethod() {
+			return method;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLocalHeaderOffset() {
+			return localHeaderOffset;
+		}
+	}
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final List<Entry> entries;
+	private final long lastModified;
+	private final long length;
+	private final AtomicInteger references = new AtomicInteger(1);
+	private Map<String, Entry> index;
+
+	public ZipDirectory(File file) throws IOException {
+		this.file = file;
+		lastModified = file.lastModified();
+		length = file.length();
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		try {
+			entries = readCentralDirectory();
+		}
+		catch (IOException ioe) {
+			raf.close();
+			throw ioe;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** @return entries in central directory order */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Look up an entry by name. The index is built on first use.
+	 *
+	 * @param name full path of the entry inside the archive
+	 * @return the entry, or null if there is none of that name
+	 */
+	public synchronized Entry getEntry(String name) {
+		if (index == null) {
+			index = new HashMap<String, Entry>(entries.size() * 4 / 3 + 1);
+			for (Entry e : entries) {
+				index.put(e.name, e);
+			}
+		}
+		return index.get(name);
+	}
+
+	/** @return true if the file has not been modified since it was opened */
+	public boolean isCurrent() {
+		return file.lastModified() == lastModified && file.length() == length;
+	}
+
+	/**
+	 * Take an additional reference, for a reader that may outlive the current holder.
+	 *
+	 * @return this archive
+	 */
+	public ZipDirectory retain() {
+		references.incrementAndGet();
+		return this;
+	}
+
+	/** Release a reference, closing the file when it was the last one. */
+	public void close() {
+		if (references.decrementAndGet() == 0) {
+			try {
+				raf.close();
+			}
+			catch (IOException ioe) {
+			}
+		}
+	}
+
+	/**
+	 * Read the start of an entry, inflating no more than necessary.
+	 *
+	 * @param entry entry of this archive
+	 * @param maxLength maximum number of bytes wanted
+	 * @return the first maxLength bytes of the entry, or all of it if it is shorter
+	 * @throws IOException
+	 */
+	public byte[] read(Entry entry, long maxLength) throws IOException {
+		return read(channel, entry.localHeaderOffset, entry.method, entry.compressedSize, entry.size, maxLength);
+	}
+
+	/**
+	 * Read the start of an entry of an archive, given the location recorded for it in
+	 * the central directory. The central directory itself is not needed for this.
+	 *
+	 * @param channel the archive
+	 * @param localHeaderOffset offset of the local header of the entry
+	 * @param method compression method
+	 * @param compressedSize size of the entry in the archive
+	 * @param size uncompressed size of the entry
+	 * @param maxLength maximum number of bytes wanted
+	 * @return the first maxLength bytes of the entry, or all of it if it is shorter
+	 * @throws IOException
+	 */
+	public static byte[] read(FileChannel channel, long localHeaderOffset, int method, long compressedSize, long size, long maxLength) throws IOException {
+		ByteBuffer header = readAt(channel, localHeaderOffset, LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+			throw new ZipException("Bad local header at " + localHeaderOffset);
+		}
+		long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE
+				+ (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+
+		int length = (int) Math.min(size, maxLength);
+		if (method == METHOD_STORED) {
+			return readAt(channel, dataOffset, length).array();
+		}
+		if (method != METHOD_DEFLATED) {
+			throw new ZipException("Unsupported compression method " + method);
+		}
+
+		byte[] out = new byte[length];
+		byte[] in = new byte[(int) Math.min(compressedSize, 8192)];
+		Inflater inflater = new Inflater(true);
+		try {
+			int outPos = 0;
+			long inPos = 0;
+			while (outPos < length) {
+				if (inflater.needsInput()) {
+					int n = (int) Math.min(in.length, compressedSize - inPos);
+					if (n <= 0) {
+						break;
+					}
+					readFully(channel, ByteBuffer.wrap(in, 0, n), dataOffset + inPos);
+					inPos += n;
+					inflater.setInput(in, 0, n);
+				}
+				int n = inflater.inflate(out, outPos, length - outPos);
+				if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+					break;
+				}
+				outPos += n;
+			}
+			return outPos == length ? out : Arrays.copyOf(out, outPos);
+		}
+		catch (DataFormatException dfe) {
+			throw new ZipException("Corrupt entry at " + localHeaderOffset + ": " + dfe.getMessage());
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+	private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, bb, position);
+		bb.rewind();
+		return bb;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+		int start = bb.position();
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position + bb.position() - start) < 0) {
+				throw new ZipException("Unexpected end of archive");
+			}
+		}
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		long fileSize = channel.size();
+		int tailLength = (int) Math.min(fileSize, END_SIZE + 0xffff);
+		long tailStart = fileSize - tailLength;
+		ByteBuffer tail = readAt(channel, tailStart, tailLength);
+
+		/* The end record is followed by a comment of up to 64k, so search backwards. */
+		int end = -1;
+		for (int i = tailLength - END_SIZE; i >= 0; i --) {
+			if (tail.getInt(i) == END_SIGNATURE) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			throw new ZipException("No central directory in " + file.getPath());
+		}
+
+		long cdSize = tail.getInt(end + 12) & 0xffffffffL;
+		long cdOffset = tail.getInt(end + 16) & 0xffffffffL;
+		int locator = end - ZIP64_LOCATOR_SIZE;
+		if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+			ByteBuffer zip64End = readAt(channel, tail.getLong(locator + 8), 56);
+			if (zip64End.getInt(0) == ZIP64_END_SIGNATURE) {
+				cdSize = zip64End.getLong(40);
+				cdOffset = zip64End.getLong(48);
+			}
+		}
+		if (cdSize > Integer.MAX_VALUE || cdOffset + cdSize > fileSize) {
+			throw new ZipException("Bad central directory in " + file.getPath());
+		}
+
+		/* The entry count of the end record is only 16 bits, so walk the directory
+		 * by its size instead. */
+		ByteBuffer cd = readAt(channel, cdOffset, (int) cdSize);
+		byte[] cdArray = cd.array();
+		List<Entry> list = new ArrayList<Entry>();
+		int pos = 0;
+		while (pos + CENTRAL_HEADER_SIZE <= cdSize && cd.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+			int method = cd.getShort(pos + 10) & 0xffff;
+			long compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+			long size = cd.getInt(pos + 24) & 0xffffffffL;
+			int nameLength = cd.getShort(pos + 28) & 0xffff;
+			int extraLength = cd.getShort(pos + 30) & 0xffff;
+			int commentLength = cd.getShort(pos + 32) & 0xffff;
+			long localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+			String name = new String(cdArray, pos + CENTRAL_HEADER_SIZE, nameLength, UTF8);
+
+			/* Zip64 sizes, present only for the fields that overflowed. */
+			int extra = pos + CENTRAL_HEADER_SIZE + nameLength;
+			int extraEnd = extra + extraLength;
+			while (extra + 4 <= extraEnd) {
+				int id = cd.getShort(extra) & 0xffff;
+				int length = cd.getShort(extra + 2) & 0xffff;
+				if (id == ZIP64_EXTRA_ID) {
+					int field = extra + 4;
+					if (size == 0xffffffffL) {
+						size = cd.getLong(field);
+						field += 8;
+					}
+					if (compressedSize == 0xffffffffL) {
+						compressedSize = cd.getLong(field);
+						field += 8;
+					}
+					if (localHeaderOffset == 0xffffffffL) {
+						localHeaderOffset = cd.getLong(field);
+					}
+				}
+				extra += 4 + length;
+			}
+
+			list.add(new Entry(name, method, compressedSize, size, localHeaderOffset));
+			pos = extraEnd + commentLength;
+		}
+
+		return list;
+	}
+}
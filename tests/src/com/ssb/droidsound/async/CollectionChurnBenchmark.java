@@ -0,0 +1,157 @@
+package com.ssb.droidsound.async;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.ssb.droidsound.app.Application;
+import com.ssb.droidsound.database.SongDatabase;
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * Adds, changes and removes songs in a directory of the collection and measures
+ * how long the {@link CollectionWatcher} takes to get each change into the index.
+ * The lag includes the quiet time the watcher waits for. Run it on a device; the
+ * timings go to the log. The directory is removed afterwards.
+ */
+public class CollectionChurnBenchmark extends AndroidTestCase {
+	private static final String TAG = CollectionChurnBenchmark.class.getSimpleName();
+	private static final String DIRECTORY = "DroidSoundChurn";
+	private static final int ROUNDS = 5;
+	private static final int FILES = 20;
+	private static final int MODIFIED = 5;
+	private static final int DELETED = 10;
+	/** Longest wait for the index to catch up. */
+	private static final long TIMEOUT_MS = 60000;
+	/** Modify times on FAT only change in steps of 2 s. */
+	private static final long MODIFY_TIME_STEP_MS = 2000;
+
+	private File dir;
+	private boolean watching;
+	/** Another connection to the index of the application. */
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		watching = Application.getAppPreferences().getBoolean("watch_collection", true);
+		if (! watching) {
+			Application.setCollectionWatching(true);
+			/* The observers are set up on a thread of their own. */
+			Thread.sleep(1000);
+		}
+		db = SQLiteDatabase.openDatabase(getContext().getDatabasePath("index.db").getPath(), null, SQLiteDatabase.OPEN_READONLY);
+		dir = new File(Application.getModsDirectory(), DIRECTORY);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] list = dir.listFiles();
+		if (list != null) {
+			for (File f : list) {
+				f.delete();
+			}
+		}
+		dir.delete();
+		db.close();
+		if (! watching) {
+			Application.setCollectionWatching(false);
+		}
+		super.tearDown();
+	}
+
+	/** A PSID header with the given title, and a little code. */
+	private static void writeSid(File f, String title) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(0x7c + 6);
+		b.put("PSID".getBytes("ISO-8859-1"));
+		b.putShort((short) 2);
+		b.putShort((short) 0x7c);
+		b.putShort((short) 0x1000);
+		b.putShort((short) 0x1000);
+		b.putShort((short) 0x1003);
+		b.putShort((short) 1);
+		b.putShort((short) 1);
+		b.putInt(0);
+		b.put(title.getBytes("ISO-8859-1"));
+		b.position(0x36);
+		b.put("DroidSound".getBytes("ISO-8859-1"));
+		b.position(0x7c);
+		b.put(new byte[] { (byte) 0xa9, 0x00, (byte) 0x8d, 0x18, (byte) 0xd4, 0x60 });
+		FileOutputStream out = new FileOutputStream(f);
+		try {
+			out.write(b.array());
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	private long count(String where, String... args) {
+		return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM files WHERE " + where, args);
+	}
+
+	/**
+	 * Wait for the index to have a number of rows.
+	 *
+	 * @return time waited, in milliseconds
+	 */
+	private long waitFor(long expected, String where, String... args) throws InterruptedException {
+		long startTime = System.currentTimeMillis();
+		while (count(where, args) != expected) {
+			if (System.currentTimeMillis() - startTime > TIMEOUT_MS) {
+				fail("Index did not catch up within " + TIMEOUT_MS + " ms: " + where);
+			}
+			Thread.sleep(20);
+		}
+		return System.currentTimeMillis() - startTime;
+	}
+
+	public void testChurn() throws Exception {
+		assertTrue("Unable to create " + dir.getPath(), dir.mkdirs());
+		long lag = waitFor(1, "parent_id IS NULL AND filename = ? AND type = " + SongDatabase.TYPE_DIRECTORY, DIRECTORY);
+		Log.i(TAG, "New directory indexed after %d ms", lag);
+		String parent = "parent_id = (SELECT _id FROM files WHERE parent_id IS NULL AND filename = '" + DIRECTORY + "')";
+
+		long[] addLag = new long[ROUNDS];
+		long[] modifyLag = new long[ROUNDS];
+		long[] deleteLag = new long[ROUNDS];
+		int expected = 0;
+		for (int round = 0; round < ROUNDS; round ++) {
+			for (int i = 0; i < FILES; i ++) {
+				writeSid(new File(dir, String.format("churn_%d_%02d.sid", round, i)), "Churn " + round + " " + i);
+			}
+			expected += FILES;
+			addLag[round] = waitFor(expected, parent);
+
+			/* Otherwise the scanner may not see that the files have changed. */
+			Thread.sleep(MODIFY_TIME_STEP_MS);
+			for (int i = 0; i < MODIFIED; i ++) {
+				writeSid(new File(dir, String.format("churn_%d_%02d.sid", round, i)), "Changed " + round + " " + i);
+			}
+			modifyLag[round] = waitFor(MODIFIED, parent + " AND title LIKE ?", "Changed " + round + " %");
+
+			for (int i = FILES - DELETED; i < FILES; i ++) {
+				assertTrue(new File(dir, String.format("churn_%d_%02d.sid", round, i)).delete());
+			}
+			expected -= DELETED;
+			deleteLag[round] = waitFor(expected, parent);
+
+			Log.i(TAG, "Round %d: %d added after %d ms, %d changed after %d ms, %d removed after %d ms",
+					round, FILES, addLag[round], MODIFIED, modifyLag[round], DELETED, deleteLag[round]);
+		}
+		Log.i(TAG, "Mean lag: add %d ms, change %d ms, remove %d ms", mean(addLag), mean(modifyLag), mean(deleteLag));
+	}
+
+	private static long mean(long[] values) {
+		long sum = 0;
+		for (long v : values) {
+			sum += v;
+		}
+		return sum / values.length;
+	}
+}
@@ -0,0 +1,142 @@
+package com.ssb.droidsound.database;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * Times {@link SongDatabase#search(String, SongDatabase.Sort)} against the LIKE
+ * query it replaced, on a synthetic collection of {@link #ROWS} songs. Run it on
+ * a device; the timings go to the log. The collection is built on the first run
+ * and kept in a database of its own, apart from the real index.
+ */
+public class SearchBenchmark extends AndroidTestCase {
+	private static final String TAG = SearchBenchmark.class.getSimpleName();
+	private static final int ROWS = 500000;
+	private static final int RUNS = 5;
+
+	private static final String[] WORDS = {
+		"commando", "delta", "last", "ninja", "monty", "wizball", "sanxion", "cybernoid",
+		"hubbard", "galway", "tel", "daglish", "huelsbeck", "jeroen", "laxity", "drax",
+		"östergaard", "Ärzte", "jörg", "Čajkovskij", "Été", "dance", "remix", "intro",
+	};
+	private static final String[] FORMATS = { "SID", "MOD", "XM", "S3M", "AHX", "SPC", "NSF" };
+
+	private static final String[] QUERIES = { "nin", "last ninja", "hub", "dance remix", "in" };
+
+	private SongDatabase songDatabase;
+	/** Another connection to the same database, for what SongDatabase doesn't offer. */
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "benchmark.");
+		songDatabase = new SongDatabase(context);
+
+		File f = context.getDatabasePath("index.db");
+		db = SQLiteDatabase.openDatabase(f.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+		if (DatabaseUtils.queryNumEntries(db, "files") < ROWS) {
+			fill(db);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private static void fill(SQLiteDatabase db) {
+		long startTime = System.currentTimeMillis();
+		Random random = new Random(1);
+		db.delete("files", null, null);
+		SQLiteStatement insert = db.compileStatement("INSERT INTO files (filename, type, title, composer, format) VALUES (?, ?, ?, ?, ?)");
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < ROWS; i ++) {
+				String format = FORMATS[random.nextInt(FORMATS.length)];
+				String title = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)];
+				insert.bindString(1, String.format(Locale.ROOT, "%s_%06d.%s", title.replace(' ', '_'), i, format.toLowerCase(Locale.ROOT)));
+				insert.bindLong(2, SongDatabase.TYPE_FILE);
+				insert.bindString(3, title);
+				insert.bindString(4, WORDS[random.nextInt(WORDS.length)]);
+				insert.bindString(5, format);
+				insert.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+		Log.i(TAG, "Inserted %d songs in %d ms", ROWS, System.currentTimeMillis() - startTime);
+	}
+
+	/** The substring search used before the full-text index. */
+	private Cursor searchLike(String query) {
+		String q = "%" + query.toLowerCase(Locale.ROOT) + "%";
+		return db.query(false, "files",
+				new String[] { "_id", "title" },
+				"(lower(title) LIKE ? OR lower(composer) LIKE ? OR lower(filename) LIKE ?) AND type = ?",
+				new String[] { q, q, q, String.valueOf(SongDatabase.TYPE_FILE) },
+				null, null, "lower(title)", String.valueOf(SongDatabase.SEARCH_LIMIT));
+	}
+
+	public void testSearchAgainstLike() {
+		for (String query : QUERIES) {
+			long likeNanos = Long.MAX_VALUE;
+			long ftsNanos = Long.MAX_VALUE;
+			int found = 0;
+			for (int i = 0; i < RUNS; i ++) {
+				long startTime = System.nanoTime();
+				Cursor c = searchLike(query);
+				c.getCount();
+				c.close();
+				likeNanos = Math.min(likeNanos, System.nanoTime() - startTime);
+
+				startTime = System.nanoTime();
+				c = songDatabase.search(query, SongDatabase.Sort.TITLE);
+				found = c.getCount();
+				c.close();
+				ftsNanos = Math.min(ftsNanos, System.nanoTime() - startTime);
+			}
+			Log.i(TAG, "'%s': LIKE %d us, FTS %d us, %d songs", query, likeNanos / 1000, ftsNanos / 1000, found);
+			assertTrue("Nothing found for " + query, found > 0);
+		}
+	}
+
+	/** Every song found must have a word that the query word begins, folded the same way. */
+	public void testQueryIsFoldedLikeTheIndex() {
+		for (String query : new String[] { "östergaard", "ÖSTERGAARD", "Ärzte", "ärzte" }) {
+			String word = songDatabase.getSearchWords(query).get(0);
+			Cursor c = songDatabase.search(query, SongDatabase.Sort.TITLE);
+			try {
+				if (query.equals("östergaard") || query.equals("Ärzte")) {
+					assertTrue("Nothing found for " + query + " as stored", c.getCount() > 0);
+				}
+				while (c.moveToNext()) {
+					List<String> words = songDatabase.getSearchWords(c.getString(SongDatabase.COL_TITLE)
+							+ " " + c.getString(SongDatabase.COL_COMPOSER) + " " + c.getString(SongDatabase.COL_FILENAME));
+					boolean found = false;
+					for (String w : words) {
+						found |= w.startsWith(word);
+					}
+					assertTrue(query + " found " + words, found);
+				}
+			}
+			finally {
+				c.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.ssb.droidsound.database;
+
+import java.io.File;
+import java.util.Random;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.ssb.droidsound.utils.Log;
+
+/**
+ * Times {@link SonglengthIndex#get(byte[], int)} against the query on the
+ * songlength table that {@link SongDatabase#getSongLength(byte[], int)} ran
+ * before, for {@link #TUNES} tunes, about the size of HVSC. Run it on a device;
+ * the timings go to the log. The table is filled on the first run and kept in a
+ * database of its own, apart from the real index.
+ */
+public class SonglengthBenchmark extends AndroidTestCase {
+	private static final String TAG = SonglengthBenchmark.class.getSimpleName();
+	private static final int TUNES = 50000;
+	private static final int MAX_SUBSONGS = 8;
+	private static final int QUERY_LOOKUPS = 2000;
+	private static final int INDEX_LOOKUPS = 1000000;
+	private static final int RUNS = 5;
+
+	private SQLiteDatabase db;
+	/** The md5s in the table, in the order they were inserted. */
+	private byte[][] md5s;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "songlength.");
+		/* Creates the schema. */
+		new SongDatabase(context);
+
+		File f = context.getDatabasePath("index.db");
+		db = SQLiteDatabase.openDatabase(f.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+
+		Random random = new Random(1);
+		md5s = new byte[TUNES][16];
+		for (byte[] md5 : md5s) {
+			random.nextBytes(md5);
+		}
+		if (DatabaseUtils.queryNumEntries(db, "songlength") < TUNES) {
+			fill(db, md5s, random);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private static void fill(SQLiteDatabase db, byte[][] md5s, Random random) {
+		long startTime = System.currentTimeMillis();
+		db.delete("songlength", null, null);
+		db.delete("files", null, null);
+		SQLiteStatement insertFile = db.compileStatement("INSERT INTO files (filename, type) VALUES ('Songlengths.txt', ?)");
+		SQLiteStatement insert = db.compileStatement("INSERT INTO songlength (file_id, md5, subsong, timeMs) VALUES (?, ?, ?, ?)");
+		db.beginTransaction();
+		try {
+			insertFile.bindLong(1, SongDatabase.TYPE_FILE);
+			long fileId = insertFile.executeInsert();
+			for (byte[] md5 : md5s) {
+				String hex = hex(md5);
+				int subsongs = 1 + random.nextInt(MAX_SUBSONGS);
+				for (int subsong = 0; subsong <= subsongs; subsong ++) {
+					insert.bindLong(1, fileId);
+					insert.bindString(2, hex);
+					/* Like the scanner, the first length also applies to subsongs not listed. */
+					if (subsong == 0) {
+						insert.bindNull(3);
+					} else {
+						insert.bindLong(3, subsong);
+					}
+					insert.bindLong(4, 1000 * (10 + random.nextInt(600)));
+					insert.executeInsert();
+				}
+			}
+			db.setTransactionSuccessful();
+		}
+		finally {
+			db.endTransaction();
+		}
+		Log.i(TAG, "Inserted lengths of %d tunes in %d ms", md5s.length, System.currentTimeMillis() - startTime);
+	}
+
+	private static String hex(byte[] md5) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md5) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	/** The lookup used before the index, without its logging. */
+	private int queryLength(byte[] md5, int subsong) {
+		String hex = "";
+		for (byte b : md5) {
+			hex += String.format("%02x", b & 0xff);
+		}
+
+		int nonSubsongSpecificTime = -1;
+		int subsongSpecificTime = -1;
+		Cursor c = db.query("songlength",
+				new String[] { "subsong", "timeMs" },
+				"md5 = ?", new String[] { hex },
+				null, null, null
+		);
+		while (c.moveToNext()) {
+			int rowTime = c.getInt(1);
+			if (c.isNull(0)) {
+				nonSubsongSpecificTime = rowTime;
+				continue;
+			}
+
+			int rowSubsong = c.getInt(0);
+			if (rowSubsong == subsong) {
+				subsongSpecificTime = rowTime;
+			}
+		}
+		c.close();
+		return subsongSpecificTime != -1 ? subsongSpecificTime : nonSubsongSpecificTime;
+	}
+
+	public void testIndexAgainstQuery() {
+		long startTime = System.currentTimeMillis();
+		SonglengthIndex index = SonglengthIndex.load(db);
+		Log.i(TAG, "Loaded lengths of %d tunes in %d ms", index.size(), System.currentTimeMillis() - startTime);
+		assertEquals(TUNES, index.size());
+
+		Random random = new Random(2);
+		long queryNanos = Long.MAX_VALUE;
+		long indexNanos = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run ++) {
+			long sum = 0;
+			startTime = System.nanoTime();
+			for (int i = 0; i < QUERY_LOOKUPS; i ++) {
+				sum += queryLength(md5s[random.nextInt(TUNES)], 1 + random.nextInt(MAX_SUBSONGS + 1));
+			}
+			queryNanos = Math.min(queryNanos, (System.nanoTime() - startTime) / QUERY_LOOKUPS);
+
+			startTime = System.nanoTime();
+			for (int i = 0; i < INDEX_LOOKUPS; i ++) {
+				sum += index.get(md5s[random.nextInt(TUNES)], 1 + random.nextInt(MAX_SUBSONGS + 1));
+			}
+			indexNanos = Math.min(indexNanos, (System.nanoTime() - startTime) / INDEX_LOOKUPS);
+			assertTrue(sum > 0);
+		}
+		Log.i(TAG, "Lookup: query %d ns, index %d ns", queryNanos, indexNanos);
+	}
+
+	/** Both lookups give the same length, including past the subsongs listed and for unknown tunes. */
+	public void testIndexAgreesWithQuery() throws Exception {
+		SonglengthIndex loaded = SonglengthIndex.load(db);
+		File f = new File(getContext().getCacheDir(), "songlength.idx");
+		loaded.write(f);
+		SonglengthIndex mapped = SonglengthIndex.map(f);
+		try {
+			Random random = new Random(3);
+			for (int i = 0; i < QUERY_LOOKUPS; i ++) {
+				byte[] md5 = md5s[random.nextInt(TUNES)];
+				int subsong = 1 + random.nextInt(MAX_SUBSONGS + 1);
+				int expected = queryLength(md5, subsong);
+				assertEquals(expected, loaded.get(md5, subsong));
+				assertEquals(expected, mapped.get(md5, subsong));
+			}
+
+			byte[] unknown = new byte[16];
+			random.nextBytes(unknown);
+			assertEquals(-1, queryLength(unknown, 1));
+			assertEquals(-1, loaded.get(unknown, 1));
+			assertEquals(-1, mapped.get(unknown, 1));
+		}
+		finally {
+			f.delete();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.ssb.droidsound.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import junit.framework.TestCase;
+
+import com.ssb.droidsound.utils.Log;
+import com.ssb.droidsound.utils.SampleRingBuffer;
+
+/**
+ * Measures what the copies between a plugin and the AudioTrack cost per second
+ * of audio, over a stub plugin instead of an emulator. The stub "renders" by
+ * copying from a table, as the native side writes what its emulator produced.
+ * <ul>
+ * <li>ARRAY is the old path: into a short[], which JNI copies back from the
+ * native side, then into the ring, then out of it into the chunk the
+ * AudioTrack is given.</li>
+ * <li>STAGED is {@link DroidSoundPlugin#getSoundData(ByteBuffer)} as UADE and
+ * Hively have it: through the array, then into the direct buffer.</li>
+ * <li>DIRECT renders straight into the direct buffer, and the region of the
+ * ring is handed over without a copy.</li>
+ * </ul>
+ * The copy into the AudioTrack itself is the same for all and left out. Run it
+ * on a device; the results go to the log.
+ */
+public class DirectBufferBenchmark extends TestCase {
+	private static final String TAG = DirectBufferBenchmark.class.getSimpleName();
+	/** Samples in a second of 44.1 kHz stereo. */
+	private static final int SECOND = 44100 * 2;
+	/** Samples asked of the plugin per call, as the player does. */
+	private static final int RENDER_SAMPLES = 4096 * 2;
+	/** Samples handed to the AudioTrack per write. */
+	private static final int CHUNK_SAMPLES = 4096;
+	private static final int SECONDS = 200;
+	private static final int RUNS = 3;
+
+	private enum Path {
+		ARRAY(4), STAGED(4), DIRECT(2);
+
+		/** Copies of every sample on the way, not counting the AudioTrack. */
+		final int copies;
+
+		Path(int copies) {
+			this.copies = copies;
+		}
+	}
+
+	/** Stands in for a plugin with only the array path. */
+	private static class StubPlugin extends DroidSoundPlugin {
+		/** What the emulator made, a second of a square wave. */
+		protected final short[] table = new short[SECOND];
+		/** Memory of the native side that a short[] is copied back from. */
+		private final short[] nativeSide = new short[RENDER_SAMPLES];
+		protected int pos;
+
+		StubPlugin() {
+			for (int i = 0; i < table.length; i ++) {
+				table[i] = (short) ((i / 100) % 2 == 0 ? 8000 : -8000);
+			}
+		}
+
+		/** @return samples available in the table from its current position */
+		protected int next(int wanted) {
+			if (pos == table.length) {
+				pos = 0;
+			}
+			return Math.min(wanted, table.length - pos);
+		}
+
+		@Override
+		public int getSoundData(short[] dest) {
+			int n = next(Math.min(dest.length, nativeSide.length));
+			System.arraycopy(table, pos, nativeSide, 0, n);
+			System.arraycopy(nativeSide, 0, dest, 0, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public boolean canHandle(String name) {
+			return false;
+		}
+
+		@Override
+		public boolean load(String name, byte[] module) {
+			return true;
+		}
+
+		@Override
+		public void unload() {
+		}
+
+		@Override
+		public void setOption(String string, Object val) {
+		}
+
+		@Override
+		public String getVersion() {
+			return "stub";
+		}
+
+		@Override
+		protected MusicInfo getMusicInfo(String name, byte[] module) {
+			return null;
+		}
+	}
+
+	/** Stands in for a plugin that renders into direct buffers. */
+	private static class DirectStubPlugin extends StubPlugin {
+		@Override
+		public int getSoundData(ByteBuffer dest) {
+			int n = next(dest.remaining() / 2);
+			dest.asShortBuffer().put(table, pos, n);
+			pos += n;
+			return advance(dest, n);
+		}
+	}
+
+	/** @return nanoseconds per second of audio, the best of {@link #RUNS} */
+	private static long measure(Path path) {
+		StubPlugin plugin = path == Path.DIRECT ? new DirectStubPlugin() : new StubPlugin();
+		SampleRingBuffer ring = new SampleRingBuffer(RENDER_SAMPLES * 2, false);
+		short[] pcmArray = new short[RENDER_SAMPLES];
+		ByteBuffer pcm = ByteBuffer.allocateDirect(RENDER_SAMPLES * 2).order(ByteOrder.nativeOrder());
+		short[] chunk = new short[CHUNK_SAMPLES];
+
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run ++) {
+			long sum = 0;
+			long startTime = System.nanoTime();
+			for (long done = 0; done < (long) SECONDS * SECOND; ) {
+				ShortBuffer samples;
+				if (path == Path.ARRAY) {
+					int n = plugin.getSoundData(pcmArray);
+					samples = ShortBuffer.wrap(pcmArray, 0, n);
+				} else {
+					pcm.clear();
+					int n = plugin.getSoundData(pcm);
+					pcm.flip();
+					samples = pcm.asShortBuffer();
+					assertEquals(n, samples.remaining());
+				}
+				ring.write(samples);
+
+				while (ring.size() > 0) {
+					int n;
+					if (path == Path.ARRAY) {
+						n = ring.read(chunk, 0, chunk.length);
+						sum += chunk[n - 1] & 0xffff;
+					} else {
+						ByteBuffer data = ring.peek(CHUNK_SAMPLES);
+						n = data.remaining() / ring.bytesPerSample();
+						sum += data.getShort(data.limit() - 2) & 0xffff;
+						ring.skip(n);
+					}
+					done += n;
+				}
+			}
+			best = Math.min(best, (System.nanoTime() - startTime) / SECONDS);
+			assertTrue(sum != 0);
+		}
+		return best;
+	}
+
+	public void testCopies() {
+		for (Path path : Path.values()) {
+			long nanos = measure(path);
+			Log.i(TAG, "%s: %d us and %d KB copied per second of audio", path, nanos / 1000, path.copies * SECOND * 2 / 1024);
+			assertTrue(nanos > 0);
+		}
+	}
+}
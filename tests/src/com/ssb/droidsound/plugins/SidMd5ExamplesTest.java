@@ -0,0 +1,64 @@
+package com.ssb.droidsound.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import android.test.AndroidTestCase;
+
+import com.ssb.droidsound.utils.StreamUtil;
+
+/**
+ * Checks {@link SidMd5} on tunes of the Examples.zip that comes with the
+ * application, against the digests that VICEPlugin.md5() gave them before the
+ * hash was moved to SidMd5. They cover RSID files, more than 32 songs, speed
+ * bits and PSIDs without a clock.
+ */
+public class SidMd5ExamplesTest extends AndroidTestCase {
+	private static final String[][] DIGESTS = {
+		{ "C64 Games/Commando.sid", "a08c08aa1c74990c7d753e8c1d2f023e" },
+		{ "C64 Games/Arkanoid.sid", "2d2f67a14f11b69b35788046d258f812" },
+		{ "C64 Games/Savage.sid", "13ce8c244115312cce614985fc5a2820" },
+		{ "C64 Games/Hyper_Sports.sid", "3bc001666c70ca0932228a5aecabf0f4" },
+		{ "C64 Games/Wizball.sid", "f1bfc3b9633b5d67a6c2f26d1e5228fa" },
+		{ "C64 Games/Supremacy.sid", "9c333219eed982375baf03b45bc6e632" },
+		{ "C64 Demo/Hyperraum.sid", "8323e08fc443d0a7511a8467d9431f7f" },
+		{ "C64 Demo/Edge_of_Disgrace.sid", "e733689b2338e188c72f3c297dab326c" },
+	};
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+		for (byte v : b) {
+			sb.append(String.format("%02x", v & 0xff));
+		}
+		return sb.toString();
+	}
+
+	public void testExamples() throws Exception {
+		Map<String, String> expected = new HashMap<String, String>();
+		for (String[] digest : DIGESTS) {
+			expected.put(digest[0], digest[1]);
+		}
+
+		InputStream is = getContext().getAssets().open("Examples.zip");
+		ZipInputStream zis = new ZipInputStream(is);
+		try {
+			ZipEntry ze;
+			while ((ze = zis.getNextEntry()) != null) {
+				String digest = expected.remove(ze.getName());
+				if (digest != null) {
+					ByteArrayOutputStream sid = new ByteArrayOutputStream();
+					StreamUtil.copy(zis, sid);
+					assertEquals(ze.getName(), digest, hex(SidMd5.md5(sid.toByteArray())));
+				}
+			}
+		}
+		finally {
+			zis.close();
+		}
+		assertTrue("Not in Examples.zip: " + expected.keySet(), expected.isEmpty());
+	}
+}
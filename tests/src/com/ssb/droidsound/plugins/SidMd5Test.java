@@ -0,0 +1,125 @@
+package com.ssb.droidsound.plugins;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link SidMd5} against digests built by hand from the rules of the
+ * HVSC Songlengths.txt: C64 data, then init, play and song count in little
+ * endian, one speed byte per song, and 2 for NTSC tunes.
+ * <p>
+ * It needs nothing of Android, so it runs on the device with the other tests
+ * or with plain JUnit. {@link SidMd5ExamplesTest} checks real tunes.
+ */
+public class SidMd5Test extends TestCase {
+	private static final byte[] DATA = { (byte) 0xa9, 0x00, (byte) 0x8d, 0x18, (byte) 0xd4, 0x60 };
+
+	/** A header followed by {@link #DATA}. */
+	private static byte[] sid(String magic, int version, int load, int init, int play, int songs, int speed, int flags) {
+		int headerSize = version == 1 ? 0x76 : 0x7c;
+		ByteBuffer b = ByteBuffer.allocate(headerSize + DATA.length);
+		b.put(magic.getBytes());
+		b.putShort((short) version);
+		b.putShort((short) headerSize);
+		b.putShort((short) load);
+		b.putShort((short) init);
+		b.putShort((short) play);
+		b.putShort((short) songs);
+		b.putShort((short) 1);
+		b.putInt(speed);
+		if (version != 1) {
+			b.putShort(0x76, (short) flags);
+		}
+		b.position(headerSize);
+		b.put(DATA);
+		return b.array();
+	}
+
+	private static byte[] md5(byte[]... pieces) throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		for (byte[] piece : pieces) {
+			md5.update(piece);
+		}
+		return md5.digest();
+	}
+
+	private static void assertArrayEquals(byte[] expected, byte[] actual) {
+		assertTrue(Arrays.toString(expected) + " != " + Arrays.toString(actual), Arrays.equals(expected, actual));
+	}
+
+	private static byte[] bytes(int... values) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int v : values) {
+			out.write(v);
+		}
+		return out.toByteArray();
+	}
+
+	public void testPsidV1() throws Exception {
+		byte[] sid = sid("PSID", 1, 0x1000, 0x1000, 0x1003, 2, 0x2, 0);
+		assertArrayEquals(md5(DATA, bytes(0x00, 0x10, 0x03, 0x10, 2, 0, 0, 60)), SidMd5.md5(sid));
+	}
+
+	public void testPsidV1IgnoresClockFlags() throws Exception {
+		/* A v1 header has no flags, what is at their place is data. */
+		byte[] sid = sid("PSID", 1, 0x1000, 0x1000, 0x1003, 1, 0, 0);
+		sid[0x77] = 2 << 2;
+		byte[] data = Arrays.copyOfRange(sid, 0x76, sid.length);
+		assertArrayEquals(md5(data, bytes(0x00, 0x10, 0x03, 0x10, 1, 0, 0)), SidMd5.md5(sid));
+	}
+
+	public void testPsidV2Ntsc() throws Exception {
+		byte[] sid = sid("PSID", 2, 0x1000, 0x1000, 0x1003, 1, 0, 2 << 2);
+		assertArrayEquals(md5(DATA, bytes(0x00, 0x10, 0x03, 0x10, 1, 0, 0, 2)), SidMd5.md5(sid));
+	}
+
+	public void testPsidV2PalAndAnyClockAreNotHashed() throws Exception {
+		byte[] expected = md5(DATA, bytes(0x00, 0x10, 0x03, 0x10, 1, 0, 0));
+		assertArrayEquals(expected, SidMd5.md5(sid("PSID", 2, 0x1000, 0x1000, 0x1003, 1, 0, 1 << 2)));
+		assertArrayEquals(expected, SidMd5.md5(sid("PSID", 2, 0x1000, 0x1000, 0x1003, 1, 0, 3 << 2)));
+	}
+
+	public void testSongsPast32HaveTheSpeedOfThe32nd() throws Exception {
+		byte[] sid = sid("PSID", 2, 0x1000, 0x1000, 0x1003, 34, 0x80000001, 0);
+		byte[] trailer = new byte[6 + 34];
+		trailer[0] = 0x00;
+		trailer[1] = 0x10;
+		trailer[2] = 0x03;
+		trailer[3] = 0x10;
+		trailer[4] = 34;
+		trailer[6] = 60;
+		trailer[6 + 31] = 60;
+		trailer[6 + 32] = 60;
+		trailer[6 + 33] = 60;
+		assertArrayEquals(md5(DATA, trailer), SidMd5.md5(sid));
+	}
+
+	public void testRsidSongsAllUseTheCia() throws Exception {
+		byte[] sid = sid("RSID", 2, 0x1000, 0x1000, 0, 3, 0, 0);
+		assertArrayEquals(md5(DATA, bytes(0x00, 0x10, 0x00, 0x00, 3, 0, 60, 60, 60)), SidMd5.md5(sid));
+	}
+
+	public void testEmbeddedLoadAddressIsNotHashed() throws Exception {
+		byte[] sid = sid("PSID", 2, 0, 0x1000, 0x1003, 1, 0, 0);
+		byte[] data = new byte[DATA.length - 2];
+		System.arraycopy(DATA, 2, data, 0, data.length);
+		assertArrayEquals(md5(data, bytes(0x00, 0x10, 0x03, 0x10, 1, 0, 0)), SidMd5.md5(sid));
+	}
+
+	public void testSongsAreLimitedTo256() throws Exception {
+		byte[] trailer = SidMd5.trailer(false, 2, 0x1000, 0x1003, 300, 0, 0);
+		assertArrayEquals(bytes(0x00, 0x10, 0x03, 0x10, 0x00, 0x01), Arrays.copyOf(trailer, 6));
+		assertArrayEquals(new byte[256], Arrays.copyOfRange(trailer, 6, trailer.length));
+	}
+
+	public void testOtherFilesHaveNoMd5() {
+		byte[] sid = sid("PSID", 2, 0x1000, 0x1000, 0x1003, 1, 0, 0);
+		sid[0] = 'X';
+		assertNull(SidMd5.md5(sid));
+		assertNull(SidMd5.md5(new byte[16]));
+	}
+}
@@ -0,0 +1,118 @@
+package com.ssb.droidsound.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the throughput of the hashes in {@link HashUtil} on one thread and on
+ * as many threads as there are processors, next to the MD5 shared under a lock
+ * that HashUtil used to have. The data are {@link #SIZE} byte blocks, the size of
+ * a typical SID. Run it on a device; the results go to the log.
+ */
+public class HashBenchmark extends TestCase {
+	private static final String TAG = HashBenchmark.class.getSimpleName();
+	private static final int SIZE = 4096;
+	private static final int BLOCKS = 256;
+	/** Bytes each thread hashes per run. */
+	private static final long BYTES_PER_THREAD = 64L << 20;
+	private static final int RUNS = 3;
+
+	private static final MessageDigest SHARED_MD5;
+	static {
+		try {
+			SHARED_MD5 = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private enum Hash {
+		MD5_SHARED {
+			@Override
+			long hash(byte[] data) {
+				synchronized (SHARED_MD5) {
+					SHARED_MD5.reset();
+					return SHARED_MD5.digest(data)[0];
+				}
+			}
+		},
+		MD5 {
+			@Override
+			long hash(byte[] data) {
+				return HashUtil.md5(data)[0];
+			}
+		},
+		XXHASH64 {
+			@Override
+			long hash(byte[] data) {
+				return HashUtil.xxHash64(data);
+			}
+		};
+
+		abstract long hash(byte[] data);
+	}
+
+	private final byte[][] blocks = new byte[BLOCKS][SIZE];
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(1);
+		for (byte[] block : blocks) {
+			random.nextBytes(block);
+		}
+	}
+
+	/** @return MB/s over all threads, the best of {@link #RUNS} */
+	private double measure(final Hash hash, int threads) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			double best = 0;
+			for (int run = 0; run < RUNS; run ++) {
+				List<Future<Long>> results = new ArrayList<Future<Long>>();
+				long startTime = System.nanoTime();
+				for (int t = 0; t < threads; t ++) {
+					results.add(pool.submit(new Callable<Long>() {
+						@Override
+						public Long call() {
+							long sum = 0;
+							for (long done = 0; done < BYTES_PER_THREAD; done += SIZE) {
+								sum += hash.hash(blocks[(int) (done / SIZE) % BLOCKS]);
+							}
+							return sum;
+						}
+					}));
+				}
+				for (Future<Long> result : results) {
+					result.get();
+				}
+				long nanos = System.nanoTime() - startTime;
+				best = Math.max(best, BYTES_PER_THREAD * threads * 1e9 / nanos / (1 << 20));
+			}
+			return best;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testThroughput() throws Exception {
+		int processors = Runtime.getRuntime().availableProcessors();
+		for (Hash hash : Hash.values()) {
+			double single = measure(hash, 1);
+			double multi = measure(hash, processors);
+			Log.i(TAG, "%s: %.0f MB/s on 1 thread, %.0f MB/s on %d threads", hash, single, multi, processors);
+			assertTrue(single > 0 && multi > 0);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package com.ssb.droidsound.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link HashUtil} against published outputs: the XXH64 values of the
+ * xxHash README and of the sanity check in xxhsum, and the MD5 values of RFC 1321.
+ */
+public class HashUtilTest extends TestCase {
+	/** Seed used by the xxhsum sanity check. */
+	private static final long PRIME = 2654435761L;
+
+	/** The buffer of the xxhsum sanity check. */
+	private static byte[] sanityBuffer(int length) {
+		byte[] buffer = new byte[length];
+		int byteGen = (int) PRIME;
+		for (int i = 0; i < length; i ++) {
+			buffer[i] = (byte) (byteGen >>> 24);
+			byteGen *= byteGen;
+		}
+		return buffer;
+	}
+
+	private static byte[] ascii(String s) throws Exception {
+		return s.getBytes("US-ASCII");
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+		for (byte v : b) {
+			sb.append(String.format("%02x", v & 0xff));
+		}
+		return sb.toString();
+	}
+
+	public void testXxHash64Strings() throws Exception {
+		assertEquals(0xef46db3751d8e999L, HashUtil.xxHash64(new byte[0]));
+		assertEquals(0xd24ec4f1a98c6e5bL, HashUtil.xxHash64(ascii("a")));
+		assertEquals(0x44bc2cf5ad770999L, HashUtil.xxHash64(ascii("abc")));
+		assertEquals(0xfbcea83c8a378bf1L, HashUtil.xxHash64(ascii("Nobody inspects the spammish repetition")));
+	}
+
+	public void testXxHash64SanityCheck() {
+		byte[] buffer = sanityBuffer(222);
+		assertEquals(0x4fce394cc88952d8L, HashUtil.xxHash64(buffer, 0, 1, 0));
+		assertEquals(0x739840cb819fa723L, HashUtil.xxHash64(buffer, 0, 1, PRIME));
+		assertEquals(0xcffa8db881bc3a3dL, HashUtil.xxHash64(buffer, 0, 14, 0));
+		assertEquals(0x5b9611585efcc9cbL, HashUtil.xxHash64(buffer, 0, 14, PRIME));
+		assertEquals(0x9dd507880debb03dL, HashUtil.xxHash64(buffer, 0, 222, 0));
+		assertEquals(0xdc515172b8ee0600L, HashUtil.xxHash64(buffer, 0, 222, PRIME));
+	}
+
+	public void testXxHash64OfPartOfAnArray() {
+		byte[] buffer = sanityBuffer(222);
+		byte[] padded = new byte[222 + 5];
+		System.arraycopy(buffer, 0, padded, 3, 222);
+		assertEquals(0x9dd507880debb03dL, HashUtil.xxHash64(padded, 3, 222, 0));
+	}
+
+	public void testMd5() throws Exception {
+		assertEquals("d41d8cd98f00b204e9800998ecf8427e", hex(HashUtil.md5(new byte[0])));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", hex(HashUtil.md5(ascii("abc"))));
+		assertEquals("f96b697d7cb7938d525a2f31aaf161d0", hex(HashUtil.md5(ascii("message digest"))));
+		assertEquals("900150983cd24fb0d6963f7d28e17f72", hex(HashUtil.md5(ascii("xabcx"), 1, 3)));
+	}
+
+	/** Threads hashing at once each get the digest of their own data. */
+	public void testMd5FromManyThreads() throws Exception {
+		final byte[] abc = ascii("abc");
+		final byte[] digest = ascii("message digest");
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 8; t ++) {
+				final boolean even = t % 2 == 0;
+				results.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						byte[] expected = HashUtil.md5(even ? abc : digest);
+						for (int i = 0; i < 10000; i ++) {
+							if (! Arrays.equals(expected, HashUtil.md5(even ? abc : digest))) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.ssb.droidsound.utils;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.ssb.droidsound.utils.Resampler.Quality;
+
+/**
+ * Measures the CPU time {@link Resampler} takes per second of output at each
+ * {@link Quality}, for the rates that songs come in, to a 48 kHz and a 44.1 kHz
+ * device. The input comes in the blocks the player renders. Run it on a
+ * device; the results go to the log.
+ */
+public class ResamplerBenchmark extends TestCase {
+	private static final String TAG = ResamplerBenchmark.class.getSimpleName();
+	private static final int[][] RATES = {
+		{ 22050, 48000 }, { 32000, 48000 }, { 44100, 48000 }, { 48000, 44100 }, { 96000, 48000 },
+	};
+	/** Samples the player renders per call. */
+	private static final int BUFFER_SAMPLES = 4096 * 2;
+	private static final int SECONDS = 60;
+	private static final int RUNS = 3;
+
+	private final float[] in = new float[BUFFER_SAMPLES];
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(1);
+		for (int i = 0; i < in.length; i ++) {
+			in[i] = random.nextFloat() - 0.5f;
+		}
+	}
+
+	/** @return nanoseconds per second of output, the best of {@link #RUNS} */
+	private long measure(Quality quality, int inRate, int outRate) {
+		Resampler resampler = new Resampler(inRate, outRate, quality, BUFFER_SAMPLES);
+		float[] out = new float[resampler.maxOutput(BUFFER_SAMPLES)];
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run ++) {
+			float sum = 0;
+			long startTime = System.nanoTime();
+			for (long done = 0; done < (long) SECONDS * inRate * 2; done += BUFFER_SAMPLES) {
+				int length = resampler.process(in, BUFFER_SAMPLES, out);
+				sum += out[length - 1];
+			}
+			best = Math.min(best, (System.nanoTime() - startTime) / SECONDS);
+			assertTrue(sum != 0);
+		}
+		return best;
+	}
+
+	public void testQualities() {
+		for (Quality quality : Quality.values()) {
+			for (int[] rates : RATES) {
+				long nanos = measure(quality, rates[0], rates[1]);
+				Log.i(TAG, "%s, %d Hz to %d Hz: %d us per second of audio, %.1f%% of a core",
+						quality, rates[0], rates[1], nanos / 1000, nanos / 1e7);
+				assertTrue(nanos > 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.ssb.droidsound.utils;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.ssb.droidsound.utils.Resampler.Quality;
+
+/**
+ * Checks the amount of output of {@link Resampler}, its gain at DC, and with
+ * sines for each {@link Quality}, that the passband is flat and that what lies
+ * above the lower Nyquist frequency is suppressed.
+ */
+public class ResamplerTest extends TestCase {
+	private static final int[][] RATES = {
+		{ 22050, 48000 }, { 32000, 48000 }, { 44100, 48000 }, { 48000, 44100 }, { 48000, 22050 },
+	};
+	private static final int BLOCK_SAMPLES = 4096 * 2;
+	private static final double AMPLITUDE = 0.5;
+
+	/**
+	 * Per quality: the end of the passband and the start of the stopband, as
+	 * fractions of the lower Nyquist frequency, and the least attenuation in the
+	 * stopband in dB.
+	 */
+	private static double[] limits(Quality quality) {
+		switch (quality) {
+		case LOW:
+			return new double[] { 0.5, 1.3, 50 };
+		case MEDIUM:
+			return new double[] { 0.7, 1.3, 70 };
+		default:
+			return new double[] { 0.8, 1.2, 85 };
+		}
+	}
+
+	private interface Signal {
+		float get(int frame, int channel);
+	}
+
+	/** Resample the signal in blocks of the given number of frames. */
+	private static float[] resample(Resampler resampler, Signal signal, int frames, int blockFrames) {
+		float[] in = new float[blockFrames * 2];
+		float[] out = new float[resampler.maxOutput(in.length)];
+		float[] all = new float[resampler.maxOutput(frames * 2) + out.length];
+		int n = 0;
+		for (int done = 0; done < frames; ) {
+			int count = Math.min(blockFrames, frames - done);
+			for (int i = 0; i < count; i ++) {
+				in[i * 2] = signal.get(done + i, 0);
+				in[i * 2 + 1] = signal.get(done + i, 1);
+			}
+			int length = resampler.process(in, count * 2, out);
+			assertTrue(length <= resampler.maxOutput(count * 2));
+			assertEquals(0, length % 2);
+			System.arraycopy(out, 0, all, n, length);
+			n += length;
+			done += count;
+		}
+		return Arrays.copyOf(all, n);
+	}
+
+	private static Signal sine(final double frequency, final int rate) {
+		return new Signal() {
+			@Override
+			public float get(int frame, int channel) {
+				return (float) (AMPLITUDE * Math.sin(2 * Math.PI * frequency * frame / rate));
+			}
+		};
+	}
+
+	/**
+	 * Amplitude of one frequency in the left channel, correlated over the last
+	 * three quarters of the output, past the start of the filter.
+	 *
+	 * @return gain against {@link #AMPLITUDE}, in dB
+	 */
+	private static double gain(float[] out, double frequency, int rate) {
+		int frames = out.length / 2;
+		int start = frames / 4;
+		double re = 0;
+		double im = 0;
+		for (int i = start; i < frames; i ++) {
+			double w = 2 * Math.PI * frequency * i / rate;
+			re += out[i * 2] * Math.cos(w);
+			im += out[i * 2] * Math.sin(w);
+		}
+		double amplitude = 2 * Math.hypot(re, im) / (frames - start);
+		return 20 * Math.log10(amplitude / AMPLITUDE);
+	}
+
+	public void testOutputCount() {
+		Signal silence = new Signal() {
+			@Override
+			public float get(int frame, int channel) {
+				return 0;
+			}
+		};
+		for (Quality quality : Quality.values()) {
+			for (int[] rates : RATES) {
+				Resampler resampler = new Resampler(rates[0], rates[1], quality, BLOCK_SAMPLES);
+				int frames = rates[0] * 3;
+				int outFrames = resample(resampler, silence, frames, 1000).length / 2;
+				/* Short by the lag of half a filter: up to 16 input frames, or 16 output frames when downsampling. */
+				int expected = rates[1] * 3;
+				int lag = 16 * rates[1] / Math.min(rates[0], rates[1]) + 2;
+				String name = quality + " " + rates[0] + " Hz to " + rates[1] + " Hz: " + outFrames;
+				assertTrue(name, outFrames <= expected && outFrames >= expected - lag);
+			}
+		}
+	}
+
+	/** The output does not depend on how the input is split into blocks. */
+	public void testBlockSize() {
+		Signal signal = sine(1000, 32000);
+		for (Quality quality : Quality.values()) {
+			float[] whole = resample(new Resampler(32000, 48000, quality, BLOCK_SAMPLES), signal, 32000, BLOCK_SAMPLES / 2);
+			float[] blocks = resample(new Resampler(32000, 48000, quality, BLOCK_SAMPLES), signal, 32000, 333);
+			assertTrue(quality.toString(), Arrays.equals(whole, blocks));
+		}
+	}
+
+	public void testDcGain() {
+		Signal dc = new Signal() {
+			@Override
+			public float get(int frame, int channel) {
+				return channel == 0 ? 0.25f : -0.5f;
+			}
+		};
+		for (Quality quality : Quality.values()) {
+			for (int[] rates : RATES) {
+				float[] out = resample(new Resampler(rates[0], rates[1], quality, BLOCK_SAMPLES), dc, rates[0], 1000);
+				/* Past the filter's first fill, the output is the input. */
+				for (int i = 200; i < out.length; i += 2) {
+					assertEquals(0.25, out[i], 1e-5);
+					assertEquals(-0.5, out[i + 1], 1e-5);
+				}
+			}
+		}
+	}
+
+	public void testPassband() {
+		for (Quality quality : Quality.values()) {
+			double edge = limits(quality)[0];
+			for (int[] rates : RATES) {
+				double nyquist = Math.min(rates[0], rates[1]) / 2.0;
+				for (double fraction : new double[] { 0.1, edge / 2, edge }) {
+					double frequency = fraction * nyquist;
+					float[] out = resample(new Resampler(rates[0], rates[1], quality, BLOCK_SAMPLES), sine(frequency, rates[0]), rates[0] * 2, 1000);
+					double gain = gain(out, frequency, rates[1]);
+					assertTrue(quality + " " + rates[0] + " Hz to " + rates[1] + " Hz at " + frequency + " Hz: " + gain + " dB", Math.abs(gain) < 0.5);
+				}
+			}
+		}
+	}
+
+	/** Above the output's Nyquist frequency, a sine must not alias back down. */
+	public void testStopbandDownsampling() {
+		for (Quality quality : Quality.values()) {
+			double[] limits = limits(quality);
+			for (double fraction : new double[] { limits[1], 1.5, 1.9 }) {
+				double frequency = fraction * 22050 / 2;
+				float[] out = resample(new Resampler(48000, 22050, quality, BLOCK_SAMPLES), sine(frequency, 48000), 48000 * 2, 1000);
+				double gain = gain(out, 22050 - frequency, 22050);
+				assertTrue(quality + " at " + frequency + " Hz: " + gain + " dB", gain < -limits[2]);
+			}
+		}
+	}
+
+	/** When upsampling, the image of a sine mirrored at the input's Nyquist frequency must be suppressed. */
+	public void testStopbandUpsampling() {
+		for (Quality quality : Quality.values()) {
+			double[] limits = limits(quality);
+			for (int inRate : new int[] { 22050, 32000 }) {
+				for (double fraction : new double[] { 0.1, limits[0] / 2, limits[0] }) {
+					double frequency = fraction * inRate / 2;
+					float[] out = resample(new Resampler(inRate, 48000, quality, BLOCK_SAMPLES), sine(frequency, inRate), inRate * 2, 1000);
+					double gain = gain(out, inRate - frequency, 48000);
+					assertTrue(quality + " " + inRate + " Hz, image of " + frequency + " Hz: " + gain + " dB", gain < -limits[2]);
+				}
+			}
+		}
+	}
+}
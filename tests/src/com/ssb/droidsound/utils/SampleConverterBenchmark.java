@@ -0,0 +1,89 @@
+package com.ssb.droidsound.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures the conversions of {@link SampleConverter} that the float output
+ * path adds, per second of 44.1 kHz stereo: the default
+ * DroidSoundPlugin.getSoundData(float[]) converts every buffer the emulator
+ * renders, audio from the render cache or a preloaded head comes from a
+ * direct buffer, and the render cache is written back in 16 bits. Run it on a
+ * device; the results go to the log.
+ */
+public class SampleConverterBenchmark extends TestCase {
+	private static final String TAG = SampleConverterBenchmark.class.getSimpleName();
+	/** Samples in a second of 44.1 kHz stereo. */
+	private static final int SECOND = 44100 * 2;
+	/** Samples the player renders per call. */
+	private static final int BUFFER_SAMPLES = 4096 * 2;
+	private static final int SECONDS = 500;
+	private static final int RUNS = 3;
+
+	private enum Conversion {
+		/** What the default getSoundData(float[]) does. */
+		ARRAY_TO_FLOAT,
+		/** Cache and preloaded head, from a direct buffer. */
+		BUFFER_TO_FLOAT,
+		/** Floats back to 16 bits for the render cache. */
+		FLOAT_TO_SHORT,
+	}
+
+	private final short[] shorts = new short[BUFFER_SAMPLES];
+	private final float[] floats = new float[BUFFER_SAMPLES];
+	private ShortBuffer direct;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Random random = new Random(1);
+		for (int i = 0; i < shorts.length; i ++) {
+			shorts[i] = (short) random.nextInt();
+		}
+		direct = ByteBuffer.allocateDirect(BUFFER_SAMPLES * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+		direct.put(shorts);
+		direct.flip();
+		SampleConverter.toFloat(shorts, floats, shorts.length);
+	}
+
+	/** @return nanoseconds per second of audio, the best of {@link #RUNS} */
+	private long measure(Conversion conversion) {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run < RUNS; run ++) {
+			float sum = 0;
+			long startTime = System.nanoTime();
+			for (long done = 0; done < (long) SECONDS * SECOND; done += BUFFER_SAMPLES) {
+				switch (conversion) {
+				case ARRAY_TO_FLOAT:
+					SampleConverter.toFloat(shorts, floats, BUFFER_SAMPLES);
+					sum += floats[BUFFER_SAMPLES - 1];
+					break;
+				case BUFFER_TO_FLOAT:
+					SampleConverter.toFloat(direct, floats);
+					sum += floats[BUFFER_SAMPLES - 1];
+					break;
+				case FLOAT_TO_SHORT:
+					direct.clear();
+					SampleConverter.toShort(floats, BUFFER_SAMPLES, direct);
+					sum += direct.get(BUFFER_SAMPLES - 1);
+					break;
+				}
+			}
+			best = Math.min(best, (System.nanoTime() - startTime) / SECONDS);
+			assertTrue(sum != 0);
+		}
+		return best;
+	}
+
+	public void testConversions() {
+		for (Conversion conversion : Conversion.values()) {
+			long nanos = measure(conversion);
+			Log.i(TAG, "%s: %d us per second of audio, %.2f ns per sample", conversion, nanos / 1000, (double) nanos / SECOND);
+			assertTrue(nanos > 0);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.ssb.droidsound.utils;
+
+import java.nio.ShortBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link SampleConverter} loses nothing on the way from 16 bits to
+ * floats and back, and clips what is out of range.
+ */
+public class SampleConverterTest extends TestCase {
+	/** Every 16-bit value survives the trip through floats. */
+	public void testRoundTrip() {
+		short[] all = new short[65536];
+		for (int i = 0; i < all.length; i ++) {
+			all[i] = (short) (i + Short.MIN_VALUE);
+		}
+		float[] f = new float[all.length];
+		SampleConverter.toFloat(all, f, all.length);
+		assertEquals(-1f, f[0], 0f);
+		ShortBuffer back = ShortBuffer.allocate(all.length);
+		SampleConverter.toShort(f, f.length, back);
+		assertEquals(all.length, back.position());
+		for (int i = 0; i < all.length; i ++) {
+			assertEquals(all[i], back.get(i));
+		}
+	}
+
+	public void testClipping() {
+		ShortBuffer dst = ShortBuffer.allocate(2);
+		SampleConverter.toShort(new float[] { 1.5f, -1.5f }, 2, dst);
+		assertEquals(Short.MAX_VALUE, dst.get(0));
+		assertEquals(Short.MIN_VALUE, dst.get(1));
+	}
+
+	public void testBufferToFloatKeepsPosition() {
+		ShortBuffer src = ShortBuffer.wrap(new short[] { 0, 16384, -32768 });
+		src.position(1);
+		float[] dst = new float[2];
+		assertEquals(2, SampleConverter.toFloat(src, dst));
+		assertEquals(1, src.position());
+		assertEquals(0.5f, dst[0], 0f);
+		assertEquals(-1f, dst[1], 0f);
+	}
+}